@@ -17,6 +17,7 @@
 
 #include <jni.h>
 #include <sys/stat.h>
+#include <unistd.h>
 
 jint Java_org_kde_necessitas_ministro_MinistroActivity_nativeChmode(JNIEnv * env, jobject obj, jstring filePath, jint mode)
 {
@@ -25,3 +26,24 @@ jint Java_org_kde_necessitas_ministro_MinistroActivity_nativeChmode(JNIEnv * env
     (*env)->ReleaseStringUTFChars(env, filePath, file);
     return res;
 }
+
+jlong Java_org_kde_necessitas_ministro_MinistroActivity_nativeInode(JNIEnv * env, jobject obj, jstring filePath)
+{
+    struct stat st;
+    const char *file = (*env)->GetStringUTFChars(env, filePath, 0);
+    int res = stat(file, &st);
+    (*env)->ReleaseStringUTFChars(env, filePath, file);
+    if (res != 0)
+        return -1;
+    return (jlong)st.st_ino;
+}
+
+jint Java_org_kde_necessitas_ministro_MinistroActivity_nativeLink(JNIEnv * env, jobject obj, jstring targetPath, jstring linkPath, jboolean symbolic)
+{
+    const char *target = (*env)->GetStringUTFChars(env, targetPath, 0);
+    const char *link_ = (*env)->GetStringUTFChars(env, linkPath, 0);
+    int res = symbolic ? symlink(target, link_) : link(target, link_);
+    (*env)->ReleaseStringUTFChars(env, linkPath, link_);
+    (*env)->ReleaseStringUTFChars(env, targetPath, target);
+    return res;
+}
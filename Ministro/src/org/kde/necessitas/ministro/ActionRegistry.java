@@ -0,0 +1,141 @@
+/*
+    Copyright (c) 2011, BogDan Vatra <bog_dan_ro@yahoo.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.kde.necessitas.ministro;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** The pending retrievals of the service, keyed by their id.
+*
+* A retrieval is a {@link MinistroActivity} which gets the modules of a client, the client waits
+* for the answer on its splash screen. Every action has a deadline, the activity moves it while
+* it works (see {@link #keepAlive(int)}). The service fails the actions which miss their deadline,
+* e.g. because their activity was killed, so no client waits forever.
+*
+* Actions are looked up by id without locking, adding, joining and removing an action is
+* serialized: a request can't join an action which is being completed.
+*/
+class ActionRegistry
+{
+    static final long TIMEOUT = 10*60*1000; // an action whose activity shows no progress for 10 minutes fails
+
+    private final ConcurrentHashMap<Integer, MinistroService.ActionStruct> m_actions = new ConcurrentHashMap<Integer, MinistroService.ActionStruct>();
+    private int m_lastId = 0; // ids are never reused, a late activity can't finish a newer action
+
+    /**
+    * Adds an action and gives it an id.
+    *
+    * @param maxPending the maximum number of pending actions
+    * @return false if there are too many pending actions
+    */
+    synchronized boolean add(MinistroService.ActionStruct action, int maxPending)
+    {
+        if (m_actions.size() >= maxPending)
+            return false;
+        action.id = ++m_lastId;
+        action.started = System.currentTimeMillis();
+        action.deadline = action.started + TIMEOUT;
+        m_actions.put(action.id, action);
+        return true;
+    }
+
+    /**
+    * Adds request to the pending action for the same modules.
+    *
+    * @return the joined action, null if there is none
+    */
+    synchronized MinistroService.ActionStruct join(String key, RequestExecutor.Request request)
+    {
+        for (MinistroService.ActionStruct action: m_actions.values())
+            if (key.equals(action.key))
+            {
+                action.joined.add(request);
+                return action;
+            }
+        return null;
+    }
+
+    /**
+    * Removes an action, no request can join it anymore.
+    *
+    * @return the action, null if there is no such action (e.g. it expired)
+    */
+    synchronized MinistroService.ActionStruct remove(int id)
+    {
+        return m_actions.remove(id);
+    }
+
+    /**
+    * Returns the action with id, null if there is none.
+    */
+    MinistroService.ActionStruct get(int id)
+    {
+        return m_actions.get(id);
+    }
+
+    /**
+    * Returns a copy of the requests which joined action.
+    */
+    synchronized List<RequestExecutor.Request> joined(MinistroService.ActionStruct action)
+    {
+        return new ArrayList<RequestExecutor.Request>(action.joined);
+    }
+
+    /**
+    * Moves the deadline of an action, its activity is still working.
+    */
+    void keepAlive(int id)
+    {
+        MinistroService.ActionStruct action = m_actions.get(id);
+        if (null != action)
+            action.deadline = System.currentTimeMillis() + TIMEOUT;
+    }
+
+    /**
+    * Removes and returns the actions whose deadline is before now.
+    */
+    synchronized List<MinistroService.ActionStruct> removeExpired(long now)
+    {
+        ArrayList<MinistroService.ActionStruct> expired = new ArrayList<MinistroService.ActionStruct>();
+        for (Iterator<MinistroService.ActionStruct> it = m_actions.values().iterator(); it.hasNext();)
+        {
+            MinistroService.ActionStruct action = it.next();
+            if (action.deadline < now)
+            {
+                it.remove();
+                expired.add(action);
+            }
+        }
+        return expired;
+    }
+
+    /**
+    * Returns a copy of the pending actions.
+    */
+    List<MinistroService.ActionStruct> actions()
+    {
+        return new ArrayList<MinistroService.ActionStruct>(m_actions.values());
+    }
+
+    boolean isEmpty()
+    {
+        return m_actions.isEmpty();
+    }
+}
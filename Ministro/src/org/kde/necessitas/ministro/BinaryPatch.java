@@ -0,0 +1,158 @@
+/*
+    Copyright (c) 2011, BogDan Vatra <bog_dan_ro@yahoo.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.kde.necessitas.ministro;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.zip.GZIPInputStream;
+
+/** Applies bsdiff patches.
+*
+* The patch layout is the one of bsdiff 4 ("BSDIFF40" header, control, diff and extra
+* blocks), but the three blocks are gzip compressed instead of bzip2 compressed, Android
+* doesn't ship a bzip2 decoder.  The manifest announces such patches with
+* <code>type="bsdiff-gzip"</code>.
+*
+* The new file is streamed to the output, only the patch itself is kept in memory.
+*/
+class BinaryPatch
+{
+    public static final String TYPE = "bsdiff-gzip";
+    private static final int HEADER_SIZE = 32;
+    private static final int BUFFER_SIZE = 16384;
+
+    /**
+    * Applies <code>patch</code> to <code>oldFile</code> and writes the result to <code>out</code>.
+    *
+    * @return the size of the new file
+    */
+    public static long apply(File oldFile, byte[] patch, OutputStream out) throws IOException
+    {
+        if (patch.length < HEADER_SIZE || !new String(patch, 0, 8, "US-ASCII").equals("BSDIFF40"))
+            throw new IOException("Not a bsdiff patch");
+
+        long ctrlLength = offtin(patch, 8);
+        long diffLength = offtin(patch, 16);
+        long newSize = offtin(patch, 24);
+        // every length on its own, their sum could overflow
+        if (ctrlLength < 0 || ctrlLength > patch.length - HEADER_SIZE
+                || diffLength < 0 || diffLength > patch.length - HEADER_SIZE - ctrlLength
+                || newSize < 0)
+            throw new IOException("Corrupt patch");
+
+        DataInputStream ctrl = new DataInputStream(new GZIPInputStream(
+                        new ByteArrayInputStream(patch, HEADER_SIZE, (int)ctrlLength)));
+        InputStream diff = new GZIPInputStream(new ByteArrayInputStream(patch
+                        , (int)(HEADER_SIZE + ctrlLength), (int)diffLength));
+        InputStream extra = new GZIPInputStream(new ByteArrayInputStream(patch
+                        , (int)(HEADER_SIZE + ctrlLength + diffLength)
+                        , (int)(patch.length - HEADER_SIZE - ctrlLength - diffLength)));
+
+        RandomAccessFile old = new RandomAccessFile(oldFile, "r");
+        try
+        {
+            long oldSize = old.length();
+            long oldPos = 0, newPos = 0;
+            byte[] ctrlBuffer = new byte[8];
+            byte[] diffBuffer = new byte[BUFFER_SIZE];
+            byte[] oldBuffer = new byte[BUFFER_SIZE];
+            while (newPos < newSize)
+            {
+                ctrl.readFully(ctrlBuffer);
+                long diffBytes = offtin(ctrlBuffer, 0);
+                ctrl.readFully(ctrlBuffer);
+                long extraBytes = offtin(ctrlBuffer, 0);
+                ctrl.readFully(ctrlBuffer);
+                long seek = offtin(ctrlBuffer, 0);
+
+                if (diffBytes < 0 || diffBytes > newSize - newPos
+                        || extraBytes < 0 || extraBytes > newSize - newPos - diffBytes)
+                    throw new IOException("Corrupt patch");
+
+                // add the diff block to the old data
+                while (diffBytes > 0)
+                {
+                    int length = (int)Math.min(diffBytes, BUFFER_SIZE);
+                    readFully(diff, diffBuffer, length);
+                    // only the part of the window which is inside the old file is added
+                    long start = Math.max(oldPos, 0);
+                    long end = Math.min(oldPos + length, oldSize);
+                    if (start < end)
+                    {
+                        int skip = (int)(start - oldPos);
+                        int oldLength = (int)(end - start);
+                        old.seek(start);
+                        old.readFully(oldBuffer, 0, oldLength);
+                        for (int i=0;i<oldLength;i++)
+                            diffBuffer[skip+i] += oldBuffer[i];
+                    }
+                    out.write(diffBuffer, 0, length);
+                    oldPos += length;
+                    newPos += length;
+                    diffBytes -= length;
+                }
+
+                // copy the extra block
+                while (extraBytes > 0)
+                {
+                    int length = (int)Math.min(extraBytes, BUFFER_SIZE);
+                    readFully(extra, diffBuffer, length);
+                    out.write(diffBuffer, 0, length);
+                    newPos += length;
+                    extraBytes -= length;
+                }
+
+                oldPos += seek;
+            }
+            return newSize;
+        }
+        finally
+        {
+            old.close();
+        }
+    }
+
+    private static void readFully(InputStream in, byte[] buffer, int length) throws IOException
+    {
+        int offset = 0;
+        while (offset < length)
+        {
+            int read = in.read(buffer, offset, length - offset);
+            if (read < 0)
+                throw new EOFException("Corrupt patch");
+            offset += read;
+        }
+    }
+
+    // bsdiff's sign-magnitude little endian 64 bit integer
+    private static long offtin(byte[] buffer, int offset)
+    {
+        long y = buffer[offset+7] & 0x7F;
+        for (int i=6;i>=0;i--)
+            y = (y << 8) | (buffer[offset+i] & 0xFF);
+        if ((buffer[offset+7] & 0x80) != 0)
+            y = -y;
+        return y;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+    Copyright (c) 2011, BogDan Vatra <bog_dan_ro@yahoo.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.kde.necessitas.ministro;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLConnection;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/** Decompression of compressed downloads.
+*
+* Only the formats the platform can decode are supported (gzip and zlib "deflate"),
+* the data is decompressed while it is read, nothing is stored twice.
+*/
+class Compression
+{
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
+    private static final int BUFFER_SIZE = 16384;
+
+    public static boolean isSupported(String compression)
+    {
+        return GZIP.equals(compression) || DEFLATE.equals(compression);
+    }
+
+    public static InputStream decompress(InputStream in, String compression) throws IOException
+    {
+        if (GZIP.equals(compression))
+            return new GZIPInputStream(in, BUFFER_SIZE);
+        if (DEFLATE.equals(compression))
+            return new InflaterInputStream(in, new Inflater(), BUFFER_SIZE);
+        throw new IOException("Unsupported compression: "+compression);
+    }
+
+    /**
+    * Asks the server for a gzip compressed response, must be called before the connection
+    * is connected.
+    */
+    public static void acceptEncoding(URLConnection connection)
+    {
+        connection.setRequestProperty("Accept-Encoding", GZIP);
+    }
+
+    /**
+    * Returns the decoded response body of a connection set up with {@link #acceptEncoding(URLConnection)}.
+    */
+    public static InputStream openStream(URLConnection connection) throws IOException
+    {
+        InputStream in = HttpTransfer.inputStream(connection);
+        String encoding = connection.getContentEncoding();
+        if (encoding != null && isSupported(encoding.trim().toLowerCase()))
+            return decompress(in, encoding.trim().toLowerCase());
+        return in;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+    Copyright (c) 2011, BogDan Vatra <bog_dan_ro@yahoo.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.kde.necessitas.ministro;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URLConnection;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/** Conditional GET of a repository file.
+*
+* The ETag and Last-Modified validators of the last response are kept in the
+* "MinistroHttpCache" preferences together with a few values which were extracted from it,
+* the next request sends them back with If-None-Match and If-Modified-Since. When the server
+* answers 304 Not Modified the stored values are used instead of the response.
+*
+* The validators are only sent if the stored <code>stamp</code> matches the current one, the
+* stamp identifies the local copy the validators belong to (e.g. size and time of a file).
+*/
+class ConditionalGet implements MirrorList.ConnectionSetup
+{
+    private static final String PREFERENCES_NAME = "MinistroHttpCache";
+    private static final String ETAG_SUFFIX = "#etag";
+    private static final String LAST_MODIFIED_SUFFIX = "#modified";
+    private static final String STAMP_SUFFIX = "#stamp";
+
+    private final SharedPreferences m_preferences;
+    private final String m_key;
+    private final boolean m_conditional;
+    private final HashMap<String, String> m_values = new HashMap<String, String>();
+
+    /**
+    * @param url the url of the file on the default mirror, the cache key
+    * @param stamp identifies the local copy of the file, use "" if there is none
+    */
+    ConditionalGet(Context c, String url, String stamp)
+    {
+        m_preferences = c.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        m_key = url;
+        m_conditional = stamp.equals(m_preferences.getString(m_key+STAMP_SUFFIX, null));
+    }
+
+    public void setup(URLConnection connection)
+    {
+        Compression.acceptEncoding(connection);
+        if (!m_conditional)
+            return;
+        String etag = m_preferences.getString(m_key+ETAG_SUFFIX, null);
+        if (null != etag)
+            connection.setRequestProperty("If-None-Match", etag);
+        String lastModified = m_preferences.getString(m_key+LAST_MODIFIED_SUFFIX, null);
+        if (null != lastModified)
+            connection.setRequestProperty("If-Modified-Since", lastModified);
+    }
+
+    /**
+    * Returns true if the server answered 304, the (empty) response is released.
+    */
+    boolean notModified(URLConnection connection) throws IOException
+    {
+        if (!m_conditional || !(connection instanceof HttpURLConnection)
+                || ((HttpURLConnection)connection).getResponseCode() != HttpURLConnection.HTTP_NOT_MODIFIED)
+            return false;
+        HttpTransfer.release(connection, HttpTransfer.inputStream(connection), true);
+        return true;
+    }
+
+    /**
+    * Returns a value stored with the validators of the last response.
+    */
+    String value(String name)
+    {
+        return m_preferences.getString(m_key+"#"+name, null);
+    }
+
+    /**
+    * Sets a value to store with the validators of the current response.
+    */
+    void put(String name, String value)
+    {
+        m_values.put(name, value);
+    }
+
+    /**
+    * Stores the validators of the current response, together with the values set with put().
+    */
+    void store(URLConnection connection, String stamp)
+    {
+        String etag = connection.getHeaderField("ETag");
+        String lastModified = connection.getHeaderField("Last-Modified");
+        SharedPreferences.Editor editor = m_preferences.edit();
+        if (null == etag && null == lastModified)
+        {
+            editor.remove(m_key+STAMP_SUFFIX); // nothing to validate against
+        }
+        else
+        {
+            putOrRemove(editor, m_key+ETAG_SUFFIX, etag);
+            putOrRemove(editor, m_key+LAST_MODIFIED_SUFFIX, lastModified);
+            for (Map.Entry<String, String> value: m_values.entrySet())
+                putOrRemove(editor, m_key+"#"+value.getKey(), value.getValue());
+            editor.putString(m_key+STAMP_SUFFIX, stamp);
+        }
+        editor.commit();
+    }
+
+    private static void putOrRemove(SharedPreferences.Editor editor, String key, String value)
+    {
+        if (null == value)
+            editor.remove(key);
+        else
+            editor.putString(key, value);
+    }
+}
@@ -0,0 +1,249 @@
+/*
+    Copyright (c) 2011, BogDan Vatra <bog_dan_ro@yahoo.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.kde.necessitas.ministro;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/** Dependency graph of a set of libraries with a precomputed load order.
+*
+* The graph is built once for every set of downloaded libraries. All libraries get a rank
+* in a topological order of their dependencies (a library is always loaded after the
+* libraries it depends on); the <code>level</code> attribute is only used to order
+* libraries which don't depend on each other.
+*
+* <code>replaces</code> never pulls a library into a resolution: it is applied once the
+* dependency closure is known, a library of the closure which replaces another library of
+* the closure stands in for it (what other applications downloaded doesn't matter). The
+* load order puts a replacement before the libraries which depend on the replaced one.
+* Libraries which are part of a
+* dependency cycle can't be ordered, they are reported by {@link #cycles()} and are
+* loaded after all the other libraries, sorted by level.
+*/
+class DependencyGraph
+{
+    private final Library[] m_libraries;
+    private final HashMap<String, Integer> m_index = new HashMap<String, Integer>(); // name -> node
+    private final int[] m_rank; // node -> position in the load order
+    private final ArrayList<String> m_cycles = new ArrayList<String>();
+
+    /** Result of a {@link DependencyGraph#resolve(Collection)} call. */
+    static class Resolution
+    {
+        public final ArrayList<Library> libraries = new ArrayList<Library>(); // in load order
+        public final ArrayList<String> missing = new ArrayList<String>(); // modules which are not part of the graph
+    }
+
+    DependencyGraph(List<Library> libraries)
+    {
+        m_libraries = libraries.toArray(new Library[libraries.size()]);
+        for (int i=0;i<m_libraries.length;i++)
+            if (!m_index.containsKey(m_libraries[i].name))
+                m_index.put(m_libraries[i].name, i);
+
+        // replaced library -> the libraries replacing it
+        HashMap<String, ArrayList<Integer>> replacedBy = new HashMap<String, ArrayList<Integer>>();
+        for (int i=0;i<m_libraries.length;i++)
+        {
+            if (m_libraries[i].replaces == null)
+                continue;
+            for (String replaced: m_libraries[i].replaces)
+            {
+                ArrayList<Integer> replacements = replacedBy.get(replaced);
+                if (replacements == null)
+                {
+                    replacements = new ArrayList<Integer>(1);
+                    replacedBy.put(replaced, replacements);
+                }
+                replacements.add(i);
+            }
+        }
+
+        // the load order constraints: the dependencies and the replacements of the dependencies,
+        // the latter are only used for the order, not for the closure
+        int[] pending = new int[m_libraries.length]; // number of not yet ordered dependencies per node
+        ArrayList<ArrayList<Integer>> reverse = new ArrayList<ArrayList<Integer>>(m_libraries.length);
+        for (int i=0;i<m_libraries.length;i++)
+            reverse.add(new ArrayList<Integer>());
+
+        for (int i=0;i<m_libraries.length;i++)
+        {
+            Set<Integer> depends = new HashSet<Integer>();
+            if (m_libraries[i].depends != null)
+                for (String depend: m_libraries[i].depends)
+                {
+                    Integer node = m_index.get(depend);
+                    if (node != null)
+                        depends.add(node);
+                    ArrayList<Integer> replacements = replacedBy.get(depend);
+                    if (replacements != null)
+                        depends.addAll(replacements);
+                }
+            depends.remove(i);
+
+            for (Integer node: depends)
+                reverse.get(node).add(i);
+            pending[i] = depends.size();
+        }
+
+        // Kahn's algorithm, the queue picks the lowest level first
+        PriorityQueue<Integer> ready = new PriorityQueue<Integer>(Math.max(1, m_libraries.length), new NodeCompare());
+        for (int i=0;i<m_libraries.length;i++)
+            if (pending[i] == 0)
+                ready.add(i);
+
+        m_rank = new int[m_libraries.length];
+        int rank = 0;
+        while (!ready.isEmpty())
+        {
+            int node = ready.poll();
+            m_rank[node] = rank++;
+            for (int dependent: reverse.get(node))
+                if (--pending[dependent] == 0)
+                    ready.add(dependent);
+        }
+
+        if (rank < m_libraries.length)
+        {
+            // whatever is left is part of (or depends on) a cycle
+            ArrayList<Integer> left = new ArrayList<Integer>();
+            for (int i=0;i<m_libraries.length;i++)
+                if (pending[i] > 0)
+                    left.add(i);
+            Collections.sort(left, new NodeCompare());
+            for (int node: left)
+            {
+                m_rank[node] = rank++;
+                m_cycles.add(m_libraries[node].name);
+            }
+        }
+    }
+
+    /**
+    * Names of the libraries which are part of a dependency cycle (or depend on one).
+    */
+    List<String> cycles()
+    {
+        return Collections.unmodifiableList(m_cycles);
+    }
+
+    boolean contains(String name)
+    {
+        return m_index.containsKey(name);
+    }
+
+    Library get(String name)
+    {
+        Integer node = m_index.get(name);
+        return node == null ? null : m_libraries[node];
+    }
+
+    /**
+    * Computes the dependency closure of the given modules and returns it in load order.
+    *
+    * The cost is linear in the size of the closure (plus sorting it by the precomputed rank).
+    * Libraries replaced by another library of the closure are left out, a library outside of
+    * the closure never replaces anything.
+    */
+    Resolution resolve(Collection<String> modules)
+    {
+        Resolution resolution = new Resolution();
+        HashSet<Integer> closure = new HashSet<Integer>();
+        HashSet<String> missing = new HashSet<String>();
+        ArrayList<Integer> stack = new ArrayList<Integer>();
+        for (String module: modules)
+        {
+            Integer node = m_index.get(module);
+            if (node == null)
+            {
+                if (missing.add(module))
+                    resolution.missing.add(module);
+                continue;
+            }
+            if (closure.add(node))
+                stack.add(node);
+        }
+
+        while (!stack.isEmpty())
+        {
+            int node = stack.remove(stack.size()-1);
+            Library library = m_libraries[node];
+            if (library.depends != null)
+                for (String depend: library.depends)
+                {
+                    Integer dependNode = m_index.get(depend);
+                    if (dependNode == null)
+                    {
+                        if (missing.add(depend))
+                            resolution.missing.add(depend);
+                        continue;
+                    }
+                    if (closure.add(dependNode))
+                        stack.add(dependNode);
+                }
+        }
+
+        HashSet<String> replaced = new HashSet<String>();
+        for (int node: closure)
+            if (m_libraries[node].replaces != null)
+                for (String replace: m_libraries[node].replaces)
+                    if (!replace.equals(m_libraries[node].name))
+                        replaced.add(replace);
+
+        ArrayList<Integer> ordered = new ArrayList<Integer>(closure.size());
+        for (int node: closure)
+            if (!replaced.contains(m_libraries[node].name))
+                ordered.add(node);
+        Collections.sort(ordered, new RankCompare());
+        for (int node: ordered)
+            resolution.libraries.add(m_libraries[node]);
+
+        // a missing library which is replaced by a library we have isn't missing
+        for (int i=resolution.missing.size()-1;i>=0;i--)
+            if (replaced.contains(resolution.missing.get(i)))
+                resolution.missing.remove(i);
+        return resolution;
+    }
+
+    private class NodeCompare implements Comparator<Integer>
+    {
+        public int compare(Integer a, Integer b)
+        {
+            int levelA = m_libraries[a].level;
+            int levelB = m_libraries[b].level;
+            if (levelA != levelB)
+                return levelA < levelB ? -1 : 1;
+            return a.compareTo(b); // keep the manifest order
+        }
+    }
+
+    private class RankCompare implements Comparator<Integer>
+    {
+        public int compare(Integer a, Integer b)
+        {
+            return m_rank[a] - m_rank[b];
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/*
+    Copyright (c) 2011, BogDan Vatra <bog_dan_ro@yahoo.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.kde.necessitas.ministro;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Remembers the SHA-1 of files which were already verified.
+*
+* Every entry records the size, modification time and inode a file had when its SHA-1 was
+* computed. As long as they didn't change the file is not read again, a verification costs
+* a stat() instead of hashing the whole file.
+*
+* Entries are keyed by the path of a library relative to the library tree, the same file
+* keeps its entry when an {@link InstallSlots install slot} made of hard links to it becomes
+* current (a hard link has the same inode).
+*
+* The cache is stored in a small binary file, it is only a hint: a missing or broken cache
+* file just means that all the files are hashed again.
+*/
+class DigestCache
+{
+    private static final int MAGIC = 0x4d444743; // "MDGC"
+    private static final int FORMAT_VERSION = 2;
+    private static final int SHA1_LENGTH = 20;
+    private static final int MIN_ENTRY_SIZE = 2+3*8+4+SHA1_LENGTH; // empty name, stat, sha1
+
+    /** Size, modification time and inode of a file. */
+    static class Stat
+    {
+        long size;
+        long modified;
+        long inode;
+
+        boolean same(Stat other)
+        {
+            return inode != -1 && size == other.size && modified == other.modified && inode == other.inode;
+        }
+    }
+
+    private static class Entry
+    {
+        Stat stat;
+        byte[] sha1;
+    }
+
+    private final File m_cacheFile;
+    private final HashMap<String, Entry> m_entries = new HashMap<String, Entry>(); // path -> entry
+    private boolean m_loaded = false;
+    private boolean m_dirty = false;
+
+    DigestCache(File cacheFile)
+    {
+        m_cacheFile = cacheFile;
+    }
+
+    /**
+    * Returns the metadata of a file, null if it doesn't exist.
+    */
+    static Stat stat(String fileName)
+    {
+        File file = new File(fileName);
+        if (!file.exists())
+            return null;
+        Stat stat = new Stat();
+        stat.size = file.length();
+        stat.modified = file.lastModified();
+        stat.inode = MinistroActivity.nativeInode(fileName);
+        return stat;
+    }
+
+    /**
+    * Returns true if the file was verified to have the given SHA-1 and didn't change since.
+    */
+    synchronized boolean isVerified(String key, Stat stat, byte[] sha1)
+    {
+        load();
+        Entry entry = m_entries.get(key);
+        return null != entry && entry.stat.same(stat) && Library.sameDigest(entry.sha1, sha1);
+    }
+
+    /**
+    * Returns the SHA-1 of a file, it is only read if it changed since it was hashed last time.
+    *
+    * @param key the path of the file relative to the library tree
+    * @param fileName the absolute path of the file
+    */
+    byte[] digest(String key, String fileName) throws IOException
+    {
+        Stat stat = stat(fileName);
+        if (null == stat)
+            throw new FileNotFoundException(fileName);
+        synchronized (this)
+        {
+            load();
+            Entry entry = m_entries.get(key);
+            if (null != entry && entry.stat.same(stat))
+                return entry.sha1;
+        }
+        byte[] sha1 = LibraryVerifier.digest(new File(fileName));
+        verified(key, stat, sha1);
+        return sha1;
+    }
+
+    /**
+    * Records that the file had the given SHA-1 when it had the given metadata (taken before
+    * it was hashed).
+    */
+    synchronized void verified(String key, Stat stat, byte[] sha1)
+    {
+        load();
+        Entry entry = new Entry();
+        entry.stat = stat;
+        entry.sha1 = sha1;
+        m_entries.put(key, entry);
+        m_dirty = true;
+    }
+
+    /**
+    * Forgets a file, e.g. because it was removed or replaced.
+    */
+    synchronized void remove(String key)
+    {
+        load();
+        if (null != m_entries.remove(key))
+            m_dirty = true;
+    }
+
+    /**
+    * Forgets all the files but keys, e.g. the ones which are not part of the manifest anymore.
+    */
+    synchronized void retainOnly(Collection<String> keys)
+    {
+        load();
+        if (m_entries.keySet().retainAll(keys))
+            m_dirty = true;
+    }
+
+    private void load()
+    {
+        if (m_loaded)
+            return;
+        m_loaded = true;
+        if (!m_cacheFile.exists())
+            return;
+        try
+        {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(m_cacheFile)));
+            try
+            {
+                if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION)
+                    return;
+                int count = in.readInt();
+                if (count < 0 || count > m_cacheFile.length()/MIN_ENTRY_SIZE)
+                    throw new IOException("Corrupt digest cache, "+count+" entries");
+                for (int i=0;i<count;i++)
+                {
+                    String fileName = in.readUTF();
+                    Entry entry = new Entry();
+                    entry.stat = new Stat();
+                    entry.stat.size = in.readLong();
+                    entry.stat.modified = in.readLong();
+                    entry.stat.inode = in.readLong();
+                    int length = in.readInt();
+                    if (length != SHA1_LENGTH)
+                        throw new IOException("Corrupt digest cache, SHA-1 of "+length+" bytes");
+                    entry.sha1 = new byte[length];
+                    in.readFully(entry.sha1);
+                    m_entries.put(fileName, entry);
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+            m_entries.clear();
+        }
+    }
+
+    /**
+    * Writes the cache if it changed.
+    */
+    synchronized void save()
+    {
+        if (!m_dirty)
+            return;
+
+        File tmpFile = new File(m_cacheFile.getAbsolutePath()+".tmp");
+        try
+        {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            try
+            {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(m_entries.size());
+                for (Map.Entry<String, Entry> entry: m_entries.entrySet())
+                {
+                    out.writeUTF(entry.getKey());
+                    out.writeLong(entry.getValue().stat.size);
+                    out.writeLong(entry.getValue().stat.modified);
+                    out.writeLong(entry.getValue().stat.inode);
+                    out.writeInt(entry.getValue().sha1.length);
+                    out.write(entry.getValue().sha1);
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+            if (tmpFile.renameTo(m_cacheFile))
+                m_dirty = false;
+            else
+                tmpFile.delete();
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+            tmpFile.delete();
+        }
+    }
+}
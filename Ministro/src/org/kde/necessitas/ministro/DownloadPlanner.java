@@ -0,0 +1,169 @@
+/*
+    Copyright (c) 2011, BogDan Vatra <bog_dan_ro@yahoo.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.kde.necessitas.ministro;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import android.os.StatFs;
+
+/** Works out how much disk space the install of libraries takes, before anything is downloaded.
+*
+* A file takes no space if it is already installed with the right SHA-1 (looked up in the
+* {@link DigestCache}, an unchanged file is not read again) or if its SHA-1 is in
+* the {@link ObjectStore}, it is linked back to its place. Every other file is written to a
+* <code>.part</code> file next to the old one, the old content stays on the disk (it is still
+* linked from the current install slot and the object store), so the whole new size is needed,
+* less what an interrupted download of the same SHA-1 already wrote into the .part file.
+*
+* A file which several libraries need is counted once, by the plan as well as by the
+* progress of {@link LibraryDownloader}, both go through {@link #files(Library[])}.
+*
+* All the sizes are longs, a complete Qt install of some repositories is well above 2Gb.
+*/
+class DownloadPlanner
+{
+    private static final long RESERVE = 1024*1024; // journals, directories and the version files
+
+    /** The disk space needed by the install of a set of libraries. */
+    static class Plan
+    {
+        final long totalSize; // bytes of all the files
+        final long required; // bytes which still have to be written
+        final long available; // free bytes on the filesystem
+
+        Plan(long totalSize, long required, long available)
+        {
+            this.totalSize = totalSize;
+            this.required = required;
+            this.available = available;
+        }
+
+        /**
+        * Returns how many bytes must be freed before the install can start, 0 if none.
+        */
+        long shortfall()
+        {
+            return Math.max(0, required + RESERVE - available);
+        }
+    }
+
+    /** A file to install: a library or one of its needed files. */
+    static class Item
+    {
+        final String filePath;
+        final String url;
+        final byte[] sha1;
+        final long size;
+
+        Item(String filePath, String url, byte[] sha1, long size)
+        {
+            this.filePath = filePath;
+            this.url = url;
+            this.sha1 = sha1;
+            this.size = size;
+        }
+    }
+
+    private DownloadPlanner()
+    {
+    }
+
+    /**
+    * Returns the files of the libraries and of their needs, a file which several libraries
+    * need is listed once.
+    */
+    static ArrayList<Item> files(Library[] libraries)
+    {
+        ArrayList<Item> items = new ArrayList<Item>();
+        HashSet<String> files = new HashSet<String>();
+        for (Library lib: libraries)
+        {
+            if (files.add(lib.filePath))
+                items.add(new Item(lib.filePath, lib.url, lib.sha1, lib.size));
+            if (lib.needs != null)
+                for (NeedsStruct need: lib.needs)
+                    if (files.add(need.filePath))
+                        items.add(new Item(need.filePath, need.url, need.sha1, need.size));
+        }
+        return items;
+    }
+
+    /**
+    * Returns the bytes of all the files of the libraries.
+    */
+    static long totalSize(Library[] libraries)
+    {
+        long size = 0;
+        for (Item item: files(libraries))
+            size += item.size;
+        return size;
+    }
+
+    /**
+    * Returns the free bytes of the filesystem of path.
+    */
+    static long availableSpace(File path)
+    {
+        StatFs stat = new StatFs(path.getAbsolutePath());
+        return (long)stat.getAvailableBlocks() * stat.getBlockSize();
+    }
+
+    /**
+    * @param rootPath where the libraries are installed
+    * @param libraries the libraries to install
+    * @param objects the store of known file contents
+    * @param digests the SHA-1 sums of the installed files
+    */
+    static Plan plan(String rootPath, Library[] libraries, ObjectStore objects, DigestCache digests)
+    {
+        long totalSize = 0;
+        long required = 0;
+        for (Item item: files(libraries))
+        {
+            totalSize += item.size;
+            required += required(rootPath, item, objects, digests);
+        }
+        digests.save();
+        return new Plan(totalSize, required, availableSpace(new File(rootPath)));
+    }
+
+    private static long required(String rootPath, Item item, ObjectStore objects, DigestCache digests)
+    {
+        if (objects.contains(item.sha1))
+            return 0;
+
+        File file = new File(rootPath+item.filePath);
+        if (null != item.sha1 && file.length() == item.size && file.exists())
+        {
+            try
+            {
+                if (Library.sameDigest(item.sha1, digests.digest(item.filePath, file.getAbsolutePath())))
+                    return 0;
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+        // the .part file of another version is truncated by the download, it doesn't count
+        return Math.max(0, item.size - LibraryDownloader.resumableBytes(rootPath+item.filePath, item.url, item.sha1));
+    }
+}
@@ -0,0 +1,138 @@
+/*
+    Copyright (c) 2011, BogDan Vatra <bog_dan_ro@yahoo.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.kde.necessitas.ministro;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+
+import android.os.Build;
+
+/** All the HTTP requests of Ministro go through this class.
+*
+* HttpURLConnection keeps a pool of persistent connections per host, a connection goes
+* back into the pool only when its response was read to the end and its stream was closed.
+* {@link #release(URLConnection, InputStream, boolean)} takes care of that, so the
+* downloads of many small files reuse a few connections instead of paying a TCP and TLS
+* handshake for every file.
+*/
+class HttpTransfer
+{
+    public static final int CONNECTION_TIMEOUT = 20000; // 20 seconds for connection timeout
+    public static final int READ_TIMEOUT = 10000; // 10 seconds for read timeout
+    private static final int DRAIN_LIMIT = 64*1024; // bigger leftovers are cheaper to drop with the connection
+    private static final int MIN_POOL_SIZE = 5;
+
+    private static int m_poolSize = 0;
+
+    /**
+    * Makes the connection pool keep <code>connections</code> idle connections per host, one
+    * for every concurrent transfer. The pool reads the size when it is created, so this must
+    * be called with the configured number of transfers before the first connection is opened.
+    */
+    public static synchronized void setPoolSize(int connections)
+    {
+        connections = Math.max(MIN_POOL_SIZE, connections);
+        m_poolSize = connections;
+        if (Build.VERSION.SDK_INT < 8) // before Froyo a pooled connection could be reused after it was closed
+            System.setProperty("http.keepAlive", "false");
+        else
+        {
+            System.setProperty("http.keepAlive", "true");
+            System.setProperty("http.maxConnections", String.valueOf(connections));
+        }
+    }
+
+    public static URLConnection open(URL url) throws IOException
+    {
+        synchronized (HttpTransfer.class)
+        {
+            if (0 == m_poolSize) // nobody configured the pool
+                setPoolSize(MIN_POOL_SIZE);
+        }
+        URLConnection connection = url.openConnection();
+        connection.setConnectTimeout(CONNECTION_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        connection.setUseCaches(false);
+        return connection;
+    }
+
+    public static URLConnection open(String url) throws IOException
+    {
+        return open(new URL(url));
+    }
+
+    /**
+    * Same as connection.getInputStream(), but if the server answers with an error the
+    * error body is consumed, that way the connection can still be reused.
+    */
+    public static InputStream inputStream(URLConnection connection) throws IOException
+    {
+        try
+        {
+            return connection.getInputStream();
+        }
+        catch (IOException e)
+        {
+            if (connection instanceof HttpURLConnection)
+                release(connection, ((HttpURLConnection)connection).getErrorStream(), true);
+            throw e;
+        }
+    }
+
+    /**
+    * Closes the response stream. If <code>drain</code> is set the rest of a (small) response
+    * is read first, so the connection goes back into the pool, otherwise the connection is
+    * dropped.
+    */
+    public static void release(URLConnection connection, InputStream in, boolean drain)
+    {
+        boolean reusable = false;
+        if (in != null)
+        {
+            try
+            {
+                if (drain)
+                {
+                    byte[] tmp = new byte[4096];
+                    long drained = 0;
+                    int read;
+                    while (drained < DRAIN_LIMIT && (read = in.read(tmp)) != -1)
+                        drained += read;
+                    reusable = drained < DRAIN_LIMIT;
+                }
+            }
+            catch (IOException e)
+            {
+                // the connection is broken anyway
+            }
+            try
+            {
+                in.close();
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+        if (!reusable && connection instanceof HttpURLConnection)
+            ((HttpURLConnection)connection).disconnect();
+    }
+}
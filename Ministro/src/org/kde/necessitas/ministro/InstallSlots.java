@@ -0,0 +1,583 @@
+/*
+    Copyright (c) 2011, BogDan Vatra <bog_dan_ro@yahoo.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.kde.necessitas.ministro;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.TreeSet;
+
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.util.Log;
+
+/** Install slots: complete sets of libraries together with the manifest they belong to.
+*
+* A slot is a directory <code>slots/slot-N/</code> which holds <code>version.xml</code>, its
+* snapshot and the <code>qt/</code> library tree. The <code>slots/current</code> pointer file
+* names the slot which is in use and the previous one, it is replaced atomically (rename).
+*
+* Updates and downloads never touch the current slot: {@link #stage()} makes a new slot out of
+* hard links to the files of the current one, new files are installed there by renaming them
+* over the links. Once all of them are verified {@link #commit(Slot)} switches the pointer,
+* the slot which was current before is kept for {@link #rollback()} and the older ones are
+* removed, unless a running application still uses them (see {@link #lease(String, IBinder)}).
+* A failed or cancelled install is {@link #discard(Slot) discarded}, its partial
+* downloads are kept in <code>slots/partial/</code> and continue in the next staged slot.
+*
+* <code>files/qt</code> is a symbolic link to the library tree of the current slot, it keeps
+* the paths of older Ministro versions (e.g. in the manifest environment) working.
+*/
+class InstallSlots
+{
+    private static final String TAG = "InstallSlots";
+    private static final String SLOTS_DIR = "slots";
+    private static final String POINTER_FILE = "current";
+    private static final String PARTIAL_DIR = "partial";
+    private static final String SLOT_PREFIX = "slot-";
+    private static final String QT_DIR = "qt";
+
+    /** A slot, immutable. */
+    static class Slot
+    {
+        final String name;
+        final File dir;
+
+        Slot(String name, File dir)
+        {
+            this.name = name;
+            this.dir = dir;
+        }
+
+        /** The root of the library tree, ends with a "/". */
+        String qtPath()
+        {
+            return dir.getAbsolutePath()+"/"+QT_DIR+"/";
+        }
+
+        String versionXmlFile()
+        {
+            return dir.getAbsolutePath()+"/version.xml";
+        }
+
+        String versionSnapshotFile()
+        {
+            return dir.getAbsolutePath()+"/version.snapshot";
+        }
+    }
+
+    private final File m_filesDir;
+    private final File m_root;
+    private final HashMap<String, String> m_staging = new HashMap<String, String>(); // staged slot -> slot it was made from
+    private volatile Slot m_current;
+    private volatile Slot m_previous;
+    private final HashMap<String, ArrayList<IBinder>> m_leases = new HashMap<String, ArrayList<IBinder>>(); // slot -> clients using it
+
+    InstallSlots(File filesDir)
+    {
+        m_filesDir = filesDir;
+        m_root = new File(filesDir, SLOTS_DIR);
+        m_root.mkdirs();
+        if (!readPointer())
+            migrate();
+    }
+
+    /**
+    * Returns the slot which is in use, no lock is needed: a slot never changes once committed.
+    */
+    Slot current()
+    {
+        return m_current;
+    }
+
+    Slot previous()
+    {
+        return m_previous;
+    }
+
+    private Slot slot(String name)
+    {
+        return new Slot(name, new File(m_root, name));
+    }
+
+    private boolean readPointer()
+    {
+        File pointer = new File(m_root, POINTER_FILE);
+        if (!pointer.exists())
+            return false;
+        try
+        {
+            BufferedReader in = new BufferedReader(new FileReader(pointer));
+            try
+            {
+                String current = in.readLine();
+                String previous = in.readLine();
+                if (null == current || !new File(m_root, current).isDirectory())
+                    return false;
+                m_current = slot(current);
+                m_previous = (null != previous && previous.length() > 0 && new File(m_root, previous).isDirectory()) ? slot(previous) : null;
+                return true;
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    private boolean writePointer(Slot current, Slot previous)
+    {
+        File pointer = new File(m_root, POINTER_FILE);
+        File tmpFile = new File(m_root, POINTER_FILE+".tmp");
+        try
+        {
+            FileWriter out = new FileWriter(tmpFile);
+            try
+            {
+                out.write(current.name+"\n"+(null != previous ? previous.name : "")+"\n");
+            }
+            finally
+            {
+                out.close();
+            }
+            if (tmpFile.renameTo(pointer))
+                return true;
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+        tmpFile.delete();
+        return false;
+    }
+
+    // points files/qt to the library tree of the current slot
+    private void linkQtDir(Slot slot)
+    {
+        File qtDir = new File(m_filesDir, QT_DIR);
+        File tmpLink = new File(m_filesDir, QT_DIR+".link");
+        tmpLink.delete();
+        if (0 != MinistroActivity.nativeLink(SLOTS_DIR+"/"+slot.name+"/"+QT_DIR, tmpLink.getAbsolutePath(), true)
+                || !tmpLink.renameTo(qtDir))
+        {
+            tmpLink.delete();
+            Log.e(TAG, "Can't link "+qtDir.getAbsolutePath()+" to slot "+slot.name);
+        }
+    }
+
+    // the first start, moves the libraries of older Ministro versions into a slot
+    private void migrate()
+    {
+        Slot slot = newSlot();
+        File qtDir = new File(m_filesDir, QT_DIR);
+        if (isSymbolicLink(qtDir))
+            qtDir.delete(); // points to a slot of a lost pointer file
+        if (qtDir.isDirectory() && !qtDir.renameTo(new File(slot.dir, QT_DIR)))
+            Log.e(TAG, "Can't move "+qtDir.getAbsolutePath()+" to slot "+slot.name);
+        new File(slot.qtPath()).mkdirs();
+        MinistroActivity.nativeChmode(slot.qtPath(), 0755);
+        new File(m_filesDir, "version.xml").renameTo(new File(slot.versionXmlFile()));
+        new File(m_filesDir, "version.snapshot").renameTo(new File(slot.versionSnapshotFile()));
+        writePointer(slot, null);
+        m_current = slot;
+        m_previous = null;
+        linkQtDir(slot);
+    }
+
+    private static boolean isSymbolicLink(File file)
+    {
+        try
+        {
+            return !file.getCanonicalFile().equals(new File(file.getParentFile().getCanonicalFile(), file.getName()));
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+    }
+
+    private Slot newSlot()
+    {
+        long id = System.currentTimeMillis();
+        while (new File(m_root, SLOT_PREFIX+id).exists())
+            ++id;
+        Slot slot = slot(SLOT_PREFIX+id);
+        slot.dir.mkdirs();
+        return slot;
+    }
+
+    /**
+    * Makes a new slot with the same content as the current one, the files are hard links.
+    */
+    synchronized Slot stage() throws IOException
+    {
+        Slot base = m_current;
+        Slot slot = newSlot();
+        m_staging.put(slot.name, base.name);
+        linkTree(base.dir, slot.dir, false);
+        new File(slot.qtPath()).mkdirs();
+
+        // continue the downloads of the last discarded slot
+        File partial = new File(m_root, PARTIAL_DIR);
+        moveTree(partial, new File(slot.dir, QT_DIR), false);
+        delete(partial);
+        return slot;
+    }
+
+    /**
+    * Makes a staged slot the current one, the current slot becomes the previous one.
+    *
+    * <p>If another slot was committed since slot was staged, the files slot didn't change
+    * are brought up to date with that slot (see {@link #merge(File, File, File)}), so neither
+    * commit is lost. If both of them changed version.xml the commit is refused.</p>
+    *
+    * @return false if slot was discarded instead
+    */
+    synchronized boolean commit(Slot slot)
+    {
+        String base = m_staging.remove(slot.name);
+        Slot current = m_current;
+        try
+        {
+            if (!current.name.equals(base))
+            {
+                Slot baseSlot = slot(base);
+                File baseXml = new File(baseSlot.versionXmlFile());
+                if (!baseSlot.dir.isDirectory()
+                        || (!unchanged(baseXml, new File(slot.versionXmlFile()))
+                            && !unchanged(baseXml, new File(current.versionXmlFile()))))
+                {
+                    Log.w(TAG, "Slot "+slot.name+" and "+current.name+" both changed "+base+", "+slot.name+" is discarded");
+                    discard(slot);
+                    return false;
+                }
+                merge(baseSlot.dir, current.dir, slot.dir);
+            }
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+            discard(slot);
+            return false;
+        }
+        if (!writePointer(slot, current))
+        {
+            discard(slot);
+            return false;
+        }
+        m_previous = current;
+        m_current = slot;
+        linkQtDir(slot);
+        Log.i(TAG, "Slot "+slot.name+" is current, "+current.name+" is kept");
+        removeUnused();
+        return true;
+    }
+
+    /**
+    * Removes a staged slot, its partial downloads are kept for the next one.
+    */
+    synchronized void discard(Slot slot)
+    {
+        m_staging.remove(slot.name);
+        if (slot.name.equals(m_current.name) || (null != m_previous && slot.name.equals(m_previous.name)))
+            return;
+        keepPartialDownloads(slot);
+        delete(slot.dir);
+    }
+
+    /**
+    * Switches back to the previous slot.
+    */
+    synchronized boolean rollback()
+    {
+        Slot previous = m_previous;
+        Slot current = m_current;
+        if (null == previous || !writePointer(previous, current))
+            return false;
+        m_current = previous;
+        m_previous = current;
+        linkQtDir(previous);
+        Log.i(TAG, "Rolled back to slot "+previous.name);
+        return true;
+    }
+
+    /**
+    * Keeps the slot which holds qtPath until the client dies. A client which was handed paths
+    * into a slot loads plugins, QML imports and styles from there as long as it runs, the slot
+    * must outlive later commits.
+    *
+    * @param qtPath the library tree of a slot, as returned by {@link Slot#qtPath()}
+    * @param client the binder of the client
+    * @return false if the slot doesn't exist anymore
+    */
+    synchronized boolean lease(String qtPath, final IBinder client)
+    {
+        File dir = new File(qtPath).getParentFile();
+        if (null == dir || !m_root.equals(dir.getParentFile()) || !dir.isDirectory())
+            return false;
+        final String name = dir.getName();
+        ArrayList<IBinder> clients = m_leases.get(name);
+        if (null == clients)
+        {
+            clients = new ArrayList<IBinder>();
+            m_leases.put(name, clients);
+        }
+        if (clients.contains(client))
+            return true;
+        try
+        {
+            client.linkToDeath(new IBinder.DeathRecipient() {
+                public void binderDied()
+                {
+                    release(name, client);
+                }
+            }, 0);
+        }
+        catch (RemoteException e)
+        {
+            // the client is gone already
+            return true;
+        }
+        clients.add(client);
+        return true;
+    }
+
+    private synchronized void release(String name, IBinder client)
+    {
+        ArrayList<IBinder> clients = m_leases.get(name);
+        if (null == clients || !clients.remove(client))
+            return;
+        if (clients.isEmpty())
+            m_leases.remove(name);
+        removeUnused();
+    }
+
+    // true if a living client still uses the slot
+    private boolean leased(String name)
+    {
+        ArrayList<IBinder> clients = m_leases.get(name);
+        if (null == clients)
+            return false;
+        for (int i=clients.size()-1;i>=0;i--)
+            if (!clients.get(i).isBinderAlive())
+                clients.remove(i);
+        if (!clients.isEmpty())
+            return true;
+        m_leases.remove(name);
+        return false;
+    }
+
+    /**
+    * Removes the previous slot, e.g. to free the space its files take.
+    */
+    synchronized void dropPrevious()
+    {
+        Slot previous = m_previous;
+        if (null == previous || !writePointer(m_current, null))
+            return;
+        m_previous = null;
+        removeUnused();
+    }
+
+    // removes the slots which are neither current, previous, staged, the base of a staged one nor leased
+    private void removeUnused()
+    {
+        File[] dirs = m_root.listFiles();
+        if (null == dirs)
+            return;
+        for (File dir: dirs)
+        {
+            String name = dir.getName();
+            if (!dir.isDirectory() || !name.startsWith(SLOT_PREFIX)
+                    || m_staging.containsKey(name) || m_staging.containsValue(name)
+                    || name.equals(m_current.name) || (null != m_previous && name.equals(m_previous.name))
+                    || leased(name))
+                continue;
+            Slot slot = slot(name);
+            keepPartialDownloads(slot);
+            delete(slot.dir);
+        }
+    }
+
+    private void keepPartialDownloads(Slot slot)
+    {
+        try
+        {
+            moveTree(new File(slot.dir, QT_DIR), new File(m_root, PARTIAL_DIR), true);
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    private static boolean isPartialDownload(String name)
+    {
+        return name.endsWith(LibraryDownloader.PART_SUFFIX) || name.endsWith(LibraryDownloader.JOURNAL_SUFFIX);
+    }
+
+    // moves the files of from into to, only the partial downloads if partialOnly is set
+    private static void moveTree(File from, File to, boolean partialOnly) throws IOException
+    {
+        File[] files = from.listFiles();
+        if (null == files)
+            return;
+        for (File file: files)
+        {
+            File target = new File(to, file.getName());
+            if (file.isDirectory())
+                moveTree(file, target, partialOnly);
+            else if (!partialOnly || isPartialDownload(file.getName()))
+            {
+                to.mkdirs();
+                target.delete();
+                if (!file.renameTo(target))
+                    throw new IOException("Can't move "+file.getAbsolutePath()+" to "+target.getAbsolutePath());
+            }
+        }
+    }
+
+    // recreates the tree of from in to with hard links, copies if the filesystem can't link
+    private static void linkTree(File from, File to, boolean keepExisting) throws IOException
+    {
+        File[] files = from.listFiles();
+        if (null == files)
+            return;
+        to.mkdirs();
+        MinistroActivity.nativeChmode(to.getAbsolutePath(), 0755);
+        for (File file: files)
+        {
+            String name = file.getName();
+            File target = new File(to, name);
+            if (file.isDirectory())
+            {
+                linkTree(file, target, keepExisting);
+                continue;
+            }
+            if (isPartialDownload(name) || name.endsWith(".tmp") || name.endsWith(".link")
+                    || (keepExisting && target.exists()))
+                continue;
+            target.delete();
+            if (0 != MinistroActivity.nativeLink(file.getAbsolutePath(), target.getAbsolutePath(), false))
+                copy(file, target);
+        }
+    }
+
+    /**
+    * Three way merge of a staged slot made from base with current, which was committed since.
+    *
+    * A file of slot which is still the same file as in base (the same inode, or for copies the
+    * same size and modification time) wasn't touched by the install, it is replaced by the one
+    * of current, or removed if current removed it. Everything slot installed, replaced or
+    * removed itself stays as it is.
+    */
+    private static void merge(File base, File current, File slot) throws IOException
+    {
+        TreeSet<String> names = new TreeSet<String>();
+        for (File dir: new File[]{base, current, slot})
+        {
+            String[] list = dir.list();
+            if (null != list)
+                for (String name: list)
+                    names.add(name);
+        }
+        for (String name: names)
+        {
+            if (isPartialDownload(name) || name.endsWith(".tmp") || name.endsWith(".link"))
+                continue;
+            File baseFile = new File(base, name);
+            File currentFile = new File(current, name);
+            File slotFile = new File(slot, name);
+            if (baseFile.isDirectory() || currentFile.isDirectory() || slotFile.isDirectory())
+            {
+                merge(baseFile, currentFile, slotFile);
+                continue;
+            }
+            if (!unchanged(baseFile, slotFile))
+                continue;
+            slotFile.delete();
+            if (!currentFile.exists())
+                continue;
+            slot.mkdirs();
+            MinistroActivity.nativeChmode(slot.getAbsolutePath(), 0755);
+            if (0 != MinistroActivity.nativeLink(currentFile.getAbsolutePath(), slotFile.getAbsolutePath(), false))
+                copy(currentFile, slotFile);
+        }
+    }
+
+    // true if to is still the file from was when it was linked or copied, or if neither exists
+    private static boolean unchanged(File from, File to)
+    {
+        if (!from.exists())
+            return !to.exists();
+        if (!to.exists())
+            return false;
+        long inode = MinistroActivity.nativeInode(from.getAbsolutePath());
+        if (-1 != inode && inode == MinistroActivity.nativeInode(to.getAbsolutePath()))
+            return true;
+        return from.length() == to.length() && from.lastModified() == to.lastModified();
+    }
+
+    private static void copy(File from, File to) throws IOException
+    {
+        InputStream in = new FileInputStream(from);
+        try
+        {
+            OutputStream out = new FileOutputStream(to);
+            try
+            {
+                byte[] buffer = new byte[16384];
+                int read;
+                while ((read = in.read(buffer)) != -1)
+                    out.write(buffer, 0, read);
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        to.setLastModified(from.lastModified());
+    }
+
+    // removes a directory with all its content
+    static void delete(File file)
+    {
+        File[] files = file.listFiles();
+        if (null != files)
+            for (File child: files)
+                delete(child);
+        file.delete();
+    }
+}
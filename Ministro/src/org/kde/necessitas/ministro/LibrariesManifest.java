@@ -0,0 +1,205 @@
+/*
+    Copyright (c) 2011, BogDan Vatra <bog_dan_ro@yahoo.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.kde.necessitas.ministro;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import android.util.Xml;
+
+/** Streaming reader for the libs-<version>.xml manifest (version.xml on the device).
+*
+* The manifest is read in a single pass with a pull parser, every root child element
+* becomes a {@link Library}, no DOM tree is built.
+*/
+class LibrariesManifest
+{
+    public double version = -1;
+    public String loaderClassName = "";
+    public String applicationParameters = "";
+    public String environmentVariables = "";
+    public String qtVersion = null; // null if the manifest doesn't specify it
+    public final ArrayList<Library> libraries = new ArrayList<Library>();
+
+    public static LibrariesManifest read(InputStream in, boolean includeNeed) throws XmlPullParserException, IOException
+    {
+        XmlPullParser parser = Xml.newPullParser();
+        parser.setInput(in, null);
+
+        int type;
+        while ((type = parser.next()) != XmlPullParser.START_TAG &&
+                type != XmlPullParser.END_DOCUMENT) {
+            // Empty
+        }
+        if (type != XmlPullParser.START_TAG)
+            throw new XmlPullParserException("No root element found");
+
+        LibrariesManifest manifest = new LibrariesManifest();
+        manifest.version = Double.valueOf(attribute(parser, "version"));
+        manifest.loaderClassName = attribute(parser, "loaderClassName");
+        manifest.applicationParameters = attribute(parser, "applicationParameters");
+        manifest.environmentVariables = attribute(parser, "environmentVariables");
+        manifest.qtVersion = parser.getAttributeValue(null, "qtVersion");
+
+        while ((type = parser.next()) != XmlPullParser.END_DOCUMENT)
+        {
+            if (type == XmlPullParser.START_TAG && parser.getDepth() == 2)
+                manifest.libraries.add(readLibrary(parser, includeNeed));
+        }
+        return manifest;
+    }
+
+    // same as Element.getAttribute, returns an empty string for missing attributes
+    private static String attribute(XmlPullParser parser, String name)
+    {
+        String value = parser.getAttributeValue(null, name);
+        return value != null ? value : "";
+    }
+
+    private static long compressedSize(XmlPullParser parser)
+    {
+        String size = parser.getAttributeValue(null, "compressedSize");
+        if (null == size)
+            return 0;
+        try
+        {
+            return Long.parseLong(size);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return 0;
+    }
+
+    private static Library readLibrary(XmlPullParser parser, boolean includeNeed) throws XmlPullParserException, IOException
+    {
+        Library lib= new Library();
+        lib.name=attribute(parser, "name");
+        lib.sha1=Library.convertFromHex(attribute(parser, "sha1"));
+        lib.filePath=attribute(parser, "file");
+        lib.url=attribute(parser, "url");
+        lib.compression=parser.getAttributeValue(null, "compression");
+        lib.compressedUrl=parser.getAttributeValue(null, "compressedUrl");
+        lib.compressedSize=compressedSize(parser);
+        try
+        {
+            lib.level=Integer.parseInt(attribute(parser, "level"));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        try
+        {
+            lib.size=Long.parseLong(attribute(parser, "size"));
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        int depth = parser.getDepth();
+        int type;
+        while ((type = parser.next()) != XmlPullParser.END_DOCUMENT
+                && (type != XmlPullParser.END_TAG || parser.getDepth() > depth))
+        {
+            if (type != XmlPullParser.START_TAG || parser.getDepth() != depth+1)
+                continue;
+
+            String tag = parser.getName();
+            if (null == lib.depends && tag.equals("depends"))
+                lib.depends=readLibNames(parser);
+            else if (null == lib.replaces && tag.equals("replaces"))
+                lib.replaces=readLibNames(parser);
+            else if (includeNeed && null == lib.needs && tag.equals("needs"))
+                lib.needs=readNeeds(parser);
+            else if (includeNeed && null == lib.patches && tag.equals("patches"))
+                lib.patches=readPatches(parser);
+        }
+        return lib;
+    }
+
+    private static String[] readLibNames(XmlPullParser parser) throws XmlPullParserException, IOException
+    {
+        ArrayList<String> libs = new ArrayList<String>();
+        int depth = parser.getDepth();
+        int type;
+        while ((type = parser.next()) != XmlPullParser.END_DOCUMENT
+                && (type != XmlPullParser.END_TAG || parser.getDepth() > depth))
+        {
+            if (type == XmlPullParser.START_TAG && parser.getName().equals("lib"))
+                libs.add(attribute(parser, "name"));
+        }
+        String[] strings = new String[libs.size()];
+        return libs.toArray(strings);
+    }
+
+    private static NeedsStruct[] readNeeds(XmlPullParser parser) throws XmlPullParserException, IOException
+    {
+        ArrayList<NeedsStruct> needs = new ArrayList<NeedsStruct>();
+        int depth = parser.getDepth();
+        int type;
+        while ((type = parser.next()) != XmlPullParser.END_DOCUMENT
+                && (type != XmlPullParser.END_TAG || parser.getDepth() > depth))
+        {
+            if (type != XmlPullParser.START_TAG || !parser.getName().equals("item"))
+                continue;
+
+            NeedsStruct need=new NeedsStruct();
+            need.name=attribute(parser, "name");
+            need.filePath=attribute(parser, "file");
+            need.url=attribute(parser, "url");
+            need.sha1=Library.convertFromHex(attribute(parser, "sha1"));
+            need.size=Long.valueOf(attribute(parser, "size"));
+            need.type=parser.getAttributeValue(null, "type");
+            need.compression=parser.getAttributeValue(null, "compression");
+            need.compressedUrl=parser.getAttributeValue(null, "compressedUrl");
+            need.compressedSize=compressedSize(parser);
+            needs.add(need);
+        }
+        NeedsStruct[] _needs = new NeedsStruct[needs.size()];
+        return needs.toArray(_needs);
+    }
+
+    private static PatchStruct[] readPatches(XmlPullParser parser) throws XmlPullParserException, IOException
+    {
+        ArrayList<PatchStruct> patches = new ArrayList<PatchStruct>();
+        int depth = parser.getDepth();
+        int type;
+        while ((type = parser.next()) != XmlPullParser.END_DOCUMENT
+                && (type != XmlPullParser.END_TAG || parser.getDepth() > depth))
+        {
+            if (type != XmlPullParser.START_TAG || !parser.getName().equals("patch"))
+                continue;
+
+            PatchStruct patch=new PatchStruct();
+            patch.from=Library.convertFromHex(attribute(parser, "from"));
+            patch.url=attribute(parser, "url");
+            patch.sha1=Library.convertFromHex(attribute(parser, "sha1"));
+            patch.type=attribute(parser, "type");
+            try
+            {
+                patch.size=Long.parseLong(attribute(parser, "size"));
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            patches.add(patch);
+        }
+        return patches.toArray(new PatchStruct[patches.size()]);
+    }
+}
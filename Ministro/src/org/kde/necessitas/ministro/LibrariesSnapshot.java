@@ -0,0 +1,395 @@
+/*
+    Copyright (c) 2011, BogDan Vatra <bog_dan_ro@yahoo.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.kde.necessitas.ministro;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/** Compact binary copy of a parsed {@link LibrariesManifest}.
+*
+* The snapshot is written next to version.xml after a successful parse and is
+* memory mapped on the next start, as long as version.xml still has the same
+* modification time, size and inode (its SHA-1 is only checked when the inode
+* is not available).  All strings are stored once in a string table, libraries
+* refer to them by index, sha1 sums are stored as raw bytes.
+*
+* Every count and length read from the file is checked against the bytes left,
+* a broken snapshot is rejected instead of allocating huge arrays.
+*/
+class LibrariesSnapshot
+{
+    private static final int MAGIC = 0x4d4c5353; // "MLSS"
+    private static final int FORMAT_VERSION = 5;
+    private static final int NO_STRING = -1;
+
+    public static LibrariesManifest load(File snapshotFile, File versionXmlFile)
+    {
+        if (!snapshotFile.exists() || !versionXmlFile.exists())
+            return null;
+
+        try
+        {
+            FileInputStream instream = new FileInputStream(snapshotFile);
+            try
+            {
+                FileChannel channel = instream.getChannel();
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION)
+                    return null;
+
+                if (buffer.getLong() != versionXmlFile.lastModified() || buffer.getLong() != versionXmlFile.length())
+                    return null;
+
+                long inode = buffer.getLong();
+                byte[] xmlSha1 = new byte[20];
+                buffer.get(xmlSha1);
+                // same size, modification time and inode, don't read version.xml again
+                if (-1 == inode || inode != MinistroActivity.nativeInode(versionXmlFile.getAbsolutePath()))
+                {
+                    if (!Arrays.equals(xmlSha1, fileSha1(versionXmlFile)))
+                        return null;
+                }
+
+                String[] strings = new String[readCount(buffer, 4)];
+                for (int i=0;i<strings.length;i++)
+                {
+                    byte[] utf8 = new byte[readCount(buffer, 1)];
+                    buffer.get(utf8);
+                    strings[i] = new String(utf8, "UTF-8");
+                }
+
+                LibrariesManifest manifest = new LibrariesManifest();
+                manifest.version = buffer.getDouble();
+                manifest.loaderClassName = readString(buffer, strings);
+                manifest.applicationParameters = readString(buffer, strings);
+                manifest.environmentVariables = readString(buffer, strings);
+                manifest.qtVersion = readString(buffer, strings);
+
+                int libCount = readCount(buffer, 4);
+                manifest.libraries.ensureCapacity(libCount);
+                for (int i=0;i<libCount;i++)
+                {
+                    Library lib = new Library();
+                    lib.name = readString(buffer, strings);
+                    lib.filePath = readString(buffer, strings);
+                    lib.url = readString(buffer, strings);
+                    lib.sha1 = readSha1(buffer);
+                    lib.level = buffer.getInt();
+                    lib.size = buffer.getLong();
+                    lib.compression = readString(buffer, strings);
+                    lib.compressedUrl = readString(buffer, strings);
+                    lib.compressedSize = buffer.getLong();
+                    lib.depends = readStringArray(buffer, strings);
+                    lib.replaces = readStringArray(buffer, strings);
+                    int needCount = readLength(buffer, 4);
+                    if (needCount >= 0)
+                    {
+                        lib.needs = new NeedsStruct[needCount];
+                        for (int j=0;j<needCount;j++)
+                        {
+                            NeedsStruct need = new NeedsStruct();
+                            need.name = readString(buffer, strings);
+                            need.filePath = readString(buffer, strings);
+                            need.url = readString(buffer, strings);
+                            need.sha1 = readSha1(buffer);
+                            need.type = readString(buffer, strings);
+                            need.size = buffer.getLong();
+                            need.compression = readString(buffer, strings);
+                            need.compressedUrl = readString(buffer, strings);
+                            need.compressedSize = buffer.getLong();
+                            lib.needs[j] = need;
+                        }
+                    }
+                    int patchCount = readLength(buffer, 4);
+                    if (patchCount >= 0)
+                    {
+                        lib.patches = new PatchStruct[patchCount];
+                        for (int j=0;j<patchCount;j++)
+                        {
+                            PatchStruct patch = new PatchStruct();
+                            patch.from = readSha1(buffer);
+                            patch.url = readString(buffer, strings);
+                            patch.sha1 = readSha1(buffer);
+                            patch.type = readString(buffer, strings);
+                            patch.size = buffer.getLong();
+                            lib.patches[j] = patch;
+                        }
+                    }
+                    manifest.libraries.add(lib);
+                }
+                return manifest;
+            }
+            finally
+            {
+                instream.close();
+            }
+        }
+        catch (Exception e)
+        {
+            // a truncated or otherwise broken snapshot, version.xml will be parsed again
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    public static void save(File snapshotFile, File versionXmlFile, LibrariesManifest manifest)
+    {
+        // the service and the activity may save the same snapshot at the same time
+        File tmpFile = new File(snapshotFile.getAbsolutePath()+"."+Thread.currentThread().getId()+".tmp");
+        try
+        {
+            ArrayList<String> strings = new ArrayList<String>();
+            HashMap<String, Integer> stringIndex = new HashMap<String, Integer>();
+            collectStrings(manifest, strings, stringIndex);
+
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 16384));
+            try
+            {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeLong(versionXmlFile.lastModified());
+                out.writeLong(versionXmlFile.length());
+                out.writeLong(MinistroActivity.nativeInode(versionXmlFile.getAbsolutePath()));
+                out.write(fileSha1(versionXmlFile));
+
+                out.writeInt(strings.size());
+                for (String s: strings)
+                {
+                    byte[] utf8 = s.getBytes("UTF-8");
+                    out.writeInt(utf8.length);
+                    out.write(utf8);
+                }
+
+                out.writeDouble(manifest.version);
+                writeString(out, stringIndex, manifest.loaderClassName);
+                writeString(out, stringIndex, manifest.applicationParameters);
+                writeString(out, stringIndex, manifest.environmentVariables);
+                writeString(out, stringIndex, manifest.qtVersion);
+
+                out.writeInt(manifest.libraries.size());
+                for (Library lib: manifest.libraries)
+                {
+                    writeString(out, stringIndex, lib.name);
+                    writeString(out, stringIndex, lib.filePath);
+                    writeString(out, stringIndex, lib.url);
+                    writeSha1(out, lib.sha1);
+                    out.writeInt(lib.level);
+                    out.writeLong(lib.size);
+                    writeString(out, stringIndex, lib.compression);
+                    writeString(out, stringIndex, lib.compressedUrl);
+                    out.writeLong(lib.compressedSize);
+                    writeStringArray(out, stringIndex, lib.depends);
+                    writeStringArray(out, stringIndex, lib.replaces);
+                    if (lib.needs == null)
+                        out.writeInt(-1);
+                    else
+                    {
+                        out.writeInt(lib.needs.length);
+                        for (NeedsStruct need: lib.needs)
+                        {
+                            writeString(out, stringIndex, need.name);
+                            writeString(out, stringIndex, need.filePath);
+                            writeString(out, stringIndex, need.url);
+                            writeSha1(out, need.sha1);
+                            writeString(out, stringIndex, need.type);
+                            out.writeLong(need.size);
+                            writeString(out, stringIndex, need.compression);
+                            writeString(out, stringIndex, need.compressedUrl);
+                            out.writeLong(need.compressedSize);
+                        }
+                    }
+                    if (lib.patches == null)
+                        out.writeInt(-1);
+                    else
+                    {
+                        out.writeInt(lib.patches.length);
+                        for (PatchStruct patch: lib.patches)
+                        {
+                            writeSha1(out, patch.from);
+                            writeString(out, stringIndex, patch.url);
+                            writeSha1(out, patch.sha1);
+                            writeString(out, stringIndex, patch.type);
+                            out.writeLong(patch.size);
+                        }
+                    }
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+            if (!tmpFile.renameTo(snapshotFile))
+                tmpFile.delete();
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+            tmpFile.delete();
+        }
+    }
+
+    private static byte[] fileSha1(File file) throws IOException, NoSuchAlgorithmException
+    {
+        MessageDigest digester = MessageDigest.getInstance("SHA-1");
+        byte[] tmp = new byte[16384];
+        int read;
+        FileInputStream inFile = new FileInputStream(file);
+        try
+        {
+            while ((read = inFile.read(tmp)) != -1)
+                digester.update(tmp, 0, read);
+        }
+        finally
+        {
+            inFile.close();
+        }
+        return digester.digest();
+    }
+
+    // a count of elements of at least elementSize bytes each, which must fit in the rest of the buffer
+    private static int readCount(MappedByteBuffer buffer, int elementSize) throws IOException
+    {
+        int count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining() / elementSize)
+            throw new IOException("Invalid count " + count + " in snapshot");
+        return count;
+    }
+
+    // same as readCount, but -1 stands for a missing array
+    private static int readLength(MappedByteBuffer buffer, int elementSize) throws IOException
+    {
+        int length = buffer.getInt();
+        if (length < -1 || length > buffer.remaining() / elementSize)
+            throw new IOException("Invalid length " + length + " in snapshot");
+        return length;
+    }
+
+    private static void addString(String s, ArrayList<String> strings, HashMap<String, Integer> stringIndex)
+    {
+        if (s != null && !stringIndex.containsKey(s))
+        {
+            stringIndex.put(s, strings.size());
+            strings.add(s);
+        }
+    }
+
+    private static void collectStrings(LibrariesManifest manifest, ArrayList<String> strings, HashMap<String, Integer> stringIndex)
+    {
+        addString(manifest.loaderClassName, strings, stringIndex);
+        addString(manifest.applicationParameters, strings, stringIndex);
+        addString(manifest.environmentVariables, strings, stringIndex);
+        addString(manifest.qtVersion, strings, stringIndex);
+        for (Library lib: manifest.libraries)
+        {
+            addString(lib.name, strings, stringIndex);
+            addString(lib.filePath, strings, stringIndex);
+            addString(lib.url, strings, stringIndex);
+            addString(lib.compression, strings, stringIndex);
+            addString(lib.compressedUrl, strings, stringIndex);
+            if (lib.depends != null)
+                for (String depend: lib.depends)
+                    addString(depend, strings, stringIndex);
+            if (lib.replaces != null)
+                for (String replace: lib.replaces)
+                    addString(replace, strings, stringIndex);
+            if (lib.needs != null)
+                for (NeedsStruct need: lib.needs)
+                {
+                    addString(need.name, strings, stringIndex);
+                    addString(need.filePath, strings, stringIndex);
+                    addString(need.url, strings, stringIndex);
+                    addString(need.type, strings, stringIndex);
+                    addString(need.compression, strings, stringIndex);
+                    addString(need.compressedUrl, strings, stringIndex);
+                }
+            if (lib.patches != null)
+                for (PatchStruct patch: lib.patches)
+                {
+                    addString(patch.url, strings, stringIndex);
+                    addString(patch.type, strings, stringIndex);
+                }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, HashMap<String, Integer> stringIndex, String s) throws IOException
+    {
+        out.writeInt(s == null ? NO_STRING : stringIndex.get(s));
+    }
+
+    private static String readString(MappedByteBuffer buffer, String[] strings)
+    {
+        int index = buffer.getInt();
+        return index == NO_STRING ? null : strings[index];
+    }
+
+    private static void writeStringArray(DataOutputStream out, HashMap<String, Integer> stringIndex, String[] array) throws IOException
+    {
+        if (array == null)
+        {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(array.length);
+        for (String s: array)
+            writeString(out, stringIndex, s);
+    }
+
+    private static String[] readStringArray(MappedByteBuffer buffer, String[] strings) throws IOException
+    {
+        int length = readLength(buffer, 4);
+        if (length < 0)
+            return null;
+        String[] array = new String[length];
+        for (int i=0;i<length;i++)
+            array[i] = readString(buffer, strings);
+        return array;
+    }
+
+    // sha1 sums are stored as raw bytes, -1 for a missing one
+    private static void writeSha1(DataOutputStream out, byte[] sha1) throws IOException
+    {
+        if (sha1 == null)
+        {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(sha1.length);
+        out.write(sha1);
+    }
+
+    private static byte[] readSha1(MappedByteBuffer buffer) throws IOException
+    {
+        int length = readLength(buffer, 1);
+        if (length < 0)
+            return null;
+        byte[] raw = new byte[length];
+        buffer.get(raw);
+        return raw;
+    }
+}
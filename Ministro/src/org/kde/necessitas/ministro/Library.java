@@ -18,18 +18,11 @@
 package org.kde.necessitas.ministro;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
 
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-
 import android.os.Bundle;
 
 
@@ -40,146 +33,57 @@ class Library
     public String[] depends = null;
     public String[] replaces = null;
     public NeedsStruct[] needs = null;
+    public PatchStruct[] patches = null; // binary patches from older versions of this library
     public int level=0;
     public long size = 0;
-    public String sha1 = null;
+    public byte[] sha1 = null;
     public String url;
+    public String compression = null; // compression of compressedUrl, see Compression
+    public String compressedUrl = null;
+    public long compressedSize = 0;
 
-    public static String[] getLibNames(Element libNode)
-    {
-        if (libNode == null)
-            return null;
-        NodeList list=libNode.getElementsByTagName("lib");
-        ArrayList<String> libs = new ArrayList<String>();
-        for (int i=0;i<list.getLength();i++)
-        {
-            if (list.item(i).getNodeType() != Node.ELEMENT_NODE)
-                continue;
-            Element lib=(Element)list.item(i);
-            if (lib!=null)
-                libs.add(lib.getAttribute("name"));
-        }
-        String[] strings = new String[libs.size()];
-        return libs.toArray(strings);
-    }
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
 
-    public static NeedsStruct[] getNeeds(Element libNode)
+    // hex representation of a digest, for logging
+    public static String convertToHex(byte[] data)
     {
-        if (libNode == null)
-            return null;
-        NodeList list=libNode.getElementsByTagName("item");
-        ArrayList<NeedsStruct> needs = new ArrayList<NeedsStruct>();
-
-        for (int i=0;i<list.getLength();i++)
+        if (data == null)
+            return "null";
+        char[] hex = new char[data.length*2];
+        for (int i = 0; i < data.length; i++)
         {
-            if (list.item(i).getNodeType() != Node.ELEMENT_NODE)
-                continue;
-            Element lib=(Element)list.item(i);
-            if (lib!=null)
-            {
-                NeedsStruct need=new NeedsStruct();
-                need.name=lib.getAttribute("name");
-                need.filePath=lib.getAttribute("file");
-                need.url=lib.getAttribute("url");
-                need.sha1=lib.getAttribute("sha1");
-                need.size=Long.valueOf(lib.getAttribute("size"));
-                if ( lib.hasAttribute("type") )
-                    need.type=lib.getAttribute("type");
-                needs.add(need);
-            }
+            hex[2*i] = HEX_DIGITS[(data[i] >>> 4) & 0x0F];
+            hex[2*i+1] = HEX_DIGITS[data[i] & 0x0F];
         }
-        NeedsStruct[] _needs = new NeedsStruct[needs.size()];
-        return needs.toArray(_needs);
+        return new String(hex);
     }
 
-    public static  Library getLibrary(Element libNode, boolean includeNeed)
+    // returns null if hex is empty or not a hex string
+    public static byte[] convertFromHex(String hex)
     {
-        Library lib= new Library();
-        lib.name=libNode.getAttribute("name");
-        lib.sha1=libNode.getAttribute("sha1").toUpperCase();
-        lib.filePath=libNode.getAttribute("file");
-        lib.url=libNode.getAttribute("url");
-        try
-        {
-            lib.level=Integer.parseInt(libNode.getAttribute("level"));
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-
-        try
-        {
-            lib.size=Long.parseLong(libNode.getAttribute("size"));
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        NodeList list=libNode.getElementsByTagName("depends");
-        for (int i=0;i<list.getLength();i++)
-        {
-            if (list.item(i).getNodeType() != Node.ELEMENT_NODE)
-                continue;
-            lib.depends=getLibNames((Element) list.item(i));
-            break;
-        }
-        list=libNode.getElementsByTagName("replaces");
-        for (int i=0;i<list.getLength();i++)
+        if (hex == null || hex.length() == 0 || hex.length() % 2 != 0)
+            return null;
+        byte[] raw = new byte[hex.length()/2];
+        for (int i=0;i<raw.length;i++)
         {
-            if (list.item(i).getNodeType() != Node.ELEMENT_NODE)
-                continue;
-            lib.replaces=getLibNames((Element) list.item(i));
-            break;
+            int hi = Character.digit(hex.charAt(2*i), 16);
+            int lo = Character.digit(hex.charAt(2*i+1), 16);
+            if (hi < 0 || lo < 0)
+                return null;
+            raw[i] = (byte) ((hi << 4) | lo);
         }
-
-        if (!includeNeed) // don't waste time.
-            return lib;
-
-        list=libNode.getElementsByTagName("needs");
-        for (int i=0;i<list.getLength();i++)
-        {
-            if (list.item(i).getNodeType() != Node.ELEMENT_NODE)
-                continue;
-            lib.needs=getNeeds((Element) list.item(i));
-            break;
-        }
-        return lib;
+        return raw;
     }
 
-    public static String convertToHex(byte[] data)
+    // compares two digests, a missing digest never matches
+    public static boolean sameDigest(byte[] a, byte[] b)
     {
-        StringBuffer buf = new StringBuffer();
-        for (int i = 0; i < data.length; i++)
-        {
-            int halfbyte = (data[i] >>> 4) & 0x0F;
-            int two_halfs = 0;
-            do
-            {
-                if ((0 <= halfbyte) && (halfbyte <= 9))
-                    buf.append((char) ('0' + halfbyte));
-                else
-                    buf.append((char) ('a' + (halfbyte - 10)));
-                halfbyte = data[i] & 0x0F;
-            } while(two_halfs++ < 1);
-        }
-        return buf.toString();
+        return a != null && b != null && MessageDigest.isEqual(a, b);
     }
 
-    public static boolean checkCRC(String fileName, String sha1) throws IOException
+    public static boolean checkCRC(String fileName, byte[] sha1) throws IOException
     {
-        try
-        {
-            byte[] tmp = new byte[2048];
-            MessageDigest digester = MessageDigest.getInstance("SHA-1");
-            int downloaded;
-            FileInputStream inFile = new FileInputStream(new File(fileName));
-            while ((downloaded = inFile.read(tmp)) != -1)
-            {
-                digester.update(tmp, 0, downloaded);
-            }
-            inFile.close();
-            return sha1.equalsIgnoreCase(convertToHex(digester.digest()));
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        }
-        return false;
+        return sameDigest(sha1, LibraryVerifier.digest(new File(fileName)));
     }
 
     public static String mkdirParents(String rootPath, String filePath, int skip)
@@ -252,8 +156,20 @@ class NeedsStruct
 {
     public String name = null;
     public String filePath = null;
-    public String sha1 = null;
+    public byte[] sha1 = null;
+    public String url = null;
+    public String type = null;
+    public long size = 0;
+    public String compression = null;
+    public String compressedUrl = null;
+    public long compressedSize = 0;
+};
+
+class PatchStruct
+{
+    public byte[] from = null; // sha1 of the file the patch applies to
     public String url = null;
+    public byte[] sha1 = null; // sha1 of the patch
     public String type = null;
     public long size = 0;
 };
\ No newline at end of file
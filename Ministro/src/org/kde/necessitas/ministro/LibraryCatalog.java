@@ -0,0 +1,75 @@
+/*
+    Copyright (c) 2011, BogDan Vatra <bog_dan_ro@yahoo.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.kde.necessitas.ministro;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** The libraries of an install slot, as loaded by {@link MinistroService#refreshLibraries(boolean)}.
+*
+* A catalog never changes once it is built. The service publishes a new one after every
+* refresh through a single volatile reference, readers (module resolution, update check,
+* download planning) take the reference once and get a consistent view without locking.
+*/
+class LibraryCatalog
+{
+    static final double DEFAULT_QT_VERSION = 0x040800;
+
+    final InstallSlots.Slot slot;
+    final double version; // version of the manifest, -1 if there is none
+    final double qtVersion;
+    final String loaderClassName;
+    final String applicationParams;
+    final String environmentVariables;
+    final List<Library> downloaded; // the installed libraries
+    final List<Library> available; // all the libraries of the manifest
+    final Map<String, Library> availableIndex; // name -> available library
+    final DependencyGraph graph; // dependency graph and load order of the downloaded libraries
+
+    LibraryCatalog(InstallSlots.Slot slot, double version, double qtVersion, String loaderClassName
+                    , String applicationParams, String environmentVariables
+                    , List<Library> downloaded, List<Library> available)
+    {
+        this.slot = slot;
+        this.version = version;
+        this.qtVersion = qtVersion;
+        this.loaderClassName = loaderClassName;
+        this.applicationParams = applicationParams;
+        this.environmentVariables = environmentVariables;
+        this.downloaded = Collections.unmodifiableList(new ArrayList<Library>(downloaded));
+        this.available = Collections.unmodifiableList(new ArrayList<Library>(available));
+        HashMap<String, Library> index = new HashMap<String, Library>();
+        for (Library lib: available)
+            if (!index.containsKey(lib.name))
+                index.put(lib.name, lib);
+        this.availableIndex = Collections.unmodifiableMap(index);
+        this.graph = new DependencyGraph(this.downloaded);
+    }
+
+    /**
+    * Returns the catalog of a slot without a manifest.
+    */
+    static LibraryCatalog empty(InstallSlots.Slot slot)
+    {
+        return new LibraryCatalog(slot, -1, DEFAULT_QT_VERSION, null, null, null
+                                    , new ArrayList<Library>(), new ArrayList<Library>());
+    }
+}
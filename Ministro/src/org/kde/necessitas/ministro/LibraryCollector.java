@@ -0,0 +1,132 @@
+/*
+    Copyright (c) 2011, BogDan Vatra <bog_dan_ro@yahoo.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.kde.necessitas.ministro;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/** Chooses the downloaded libraries which can be removed.
+*
+* The last use of a library is the last time a client resolved modules whose dependency
+* closure contains it (see {@link LibraryUsage}), libraries nobody resolved since the usage
+* tracking started count as used at that time.
+*
+* Libraries which were not used since <code>unusedBefore</code> are removed. If space has to be
+* freed the least recently used of the remaining ones are removed too, but never a library
+* which was used during the last <code>MIN_AGE</code>. The libraries needed by protected
+* modules (the requests which are in progress) and the dependencies of every library which is
+* kept are never removed.
+*/
+class LibraryCollector
+{
+    private static final long MIN_AGE = 24l*3600*1000; // keep what was used during the last day
+
+    private LibraryCollector()
+    {
+    }
+
+    private static long size(Library library)
+    {
+        long size = library.size;
+        if (library.needs != null)
+            for (NeedsStruct need: library.needs)
+                size += need.size;
+        return size;
+    }
+
+    /**
+    * @param libraries the downloaded libraries
+    * @param graph the dependency graph of libraries
+    * @param usage the resolved modules
+    * @param protectedModules modules which must stay usable
+    * @param unusedBefore libraries not used since then are removed
+    * @param bytesToFree bytes to free by removing the least recently used libraries, 0 for none
+    * @return the libraries to remove
+    */
+    static List<Library> select(List<Library> libraries, DependencyGraph graph, LibraryUsage usage
+                                , Collection<String> protectedModules, long unusedBefore, long bytesToFree)
+    {
+        final HashMap<String, Long> lastUse = new HashMap<String, Long>(); // library name -> last use
+        long since = usage.since();
+        for (Library library: libraries)
+            lastUse.put(library.name, since);
+        for (LibraryUsage.Entry entry: usage.entries())
+            for (Library library: graph.resolve(Arrays.asList(entry.modules)).libraries)
+                if (lastUse.get(library.name) < entry.lastUsed)
+                    lastUse.put(library.name, entry.lastUsed);
+
+        HashSet<String> keep = new HashSet<String>();
+        for (Library library: graph.resolve(protectedModules).libraries)
+            keep.add(library.name);
+
+        ArrayList<Library> candidates = new ArrayList<Library>();
+        HashSet<String> remove = new HashSet<String>();
+        long freed = 0;
+        for (Library library: libraries)
+        {
+            if (keep.contains(library.name))
+                continue;
+            if (lastUse.get(library.name) < unusedBefore)
+            {
+                if (remove.add(library.name))
+                    freed += size(library);
+            }
+            else
+                candidates.add(library);
+        }
+
+        if (freed < bytesToFree)
+        {
+            // least recently used first
+            Collections.sort(candidates, new Comparator<Library>() {
+                public int compare(Library a, Library b)
+                {
+                    return lastUse.get(a.name).compareTo(lastUse.get(b.name));
+                }
+            });
+            long recent = System.currentTimeMillis() - MIN_AGE;
+            for (Library library: candidates)
+            {
+                if (freed >= bytesToFree || lastUse.get(library.name) >= recent)
+                    break;
+                if (remove.add(library.name))
+                    freed += size(library);
+            }
+        }
+
+        // the libraries which are kept must keep their dependencies
+        ArrayList<String> kept = new ArrayList<String>();
+        for (Library library: libraries)
+            if (!remove.contains(library.name))
+                kept.add(library.name);
+        for (Library library: graph.resolve(kept).libraries)
+            remove.remove(library.name);
+
+        ArrayList<Library> removed = new ArrayList<Library>();
+        for (Library library: libraries)
+            if (remove.contains(library.name))
+                removed.add(library);
+        return removed;
+    }
+}
@@ -0,0 +1,830 @@
+/*
+    Copyright (c) 2011, BogDan Vatra <bog_dan_ro@yahoo.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.kde.necessitas.ministro;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+/** Downloads libraries and their needed files using a fixed number of concurrent transfers.
+*
+* Every file (a library or one of its <code>needs</code>) is a separate job in the work queue,
+* the workers take the jobs in queue order, a file which several libraries need is one job.
+* A library and its needed files are installed all or nothing: once one of them fails, the
+* remaining files of that library are skipped and the ones which were already downloaded
+* are removed, unless an installed library needs them too.
+*
+* Files are downloaded into a <code>.part</code> file next to their final place, a small journal
+* records the url, the expected sha1 and how much was written. A failed transfer continues
+* from there with a HTTP <code>Range</code> request, also after the activity was cancelled or
+* killed. The file gets its final name only after its SHA-1 was verified.
+*
+* Files which are already installed with the right SHA-1 are not downloaded again, neither are
+* files whose SHA-1 is in the {@link ObjectStore}: they were installed before, e.g. by another
+* version or repository, and are linked back to their place. If the
+* manifest has a binary patch from the installed version of a library, only the patch is
+* downloaded and applied (see {@link BinaryPatch}), a full download is the fallback.
+*
+* If the manifest has a compressed variant of a file in a format we can decode, a fresh
+* download uses it and decompresses it while writing the .part file, the SHA-1 is computed on
+* the decompressed data. The .part file always holds uncompressed data, so an interrupted
+* compressed transfer is continued with a range request of the uncompressed file.
+*
+* Urls which belong to the repository are fetched from the healthiest {@link MirrorList mirror},
+* a failed or too slow transfer continues on the next one.
+*
+* The class doesn't depend on any activity, progress is reported through a {@link Listener}.
+*/
+class LibraryDownloader
+{
+    private static final String TAG = "LibraryDownloader";
+    private static final int BUFFER_SIZE = 16384;
+    private static final int ATTEMPTS = 3; // attempts in a row without getting any data
+    static final String PART_SUFFIX = ".part";
+    static final String JOURNAL_SUFFIX = ".part.journal";
+    private static final int JOURNAL_VERSION = 2;
+    private static final int SHA1_LENGTH = 20;
+    private static final long JOURNAL_INTERVAL = 256*1024; // update the journal every 256Kb
+    private static final long SLOW_WINDOW = 15000; // ms
+    private static final long SLOW_THROUGHPUT = 4096; // bytes per second, slower mirrors are left for another one
+
+    // parses the first byte position of a "bytes first-last/length" Content-Range header
+    static long rangeStart(String contentRange)
+    {
+        if (contentRange == null)
+            return -1;
+        try
+        {
+            String range = contentRange.trim();
+            if (range.startsWith("bytes"))
+                range = range.substring(5).trim();
+            return Long.parseLong(range.substring(0, range.indexOf('-')).trim());
+        }
+        catch (Exception e)
+        {
+            return -1;
+        }
+    }
+
+    // returns the offset recorded by the journal or 0 if the journal doesn't belong to url and sha1
+    private static long readJournal(File journalFile, String expectedUrl, byte[] expectedSha1)
+    {
+        if (!journalFile.exists())
+            return 0;
+        try
+        {
+            DataInputStream in = new DataInputStream(new FileInputStream(journalFile));
+            try
+            {
+                if (in.readInt() != JOURNAL_VERSION)
+                    return 0;
+                String url = in.readUTF();
+                int length = in.readInt();
+                if (length != SHA1_LENGTH)
+                    return 0;
+                byte[] sha1 = new byte[length];
+                in.readFully(sha1);
+                long offset = in.readLong();
+                if (url.equals(expectedUrl) && Library.sameDigest(sha1, expectedSha1))
+                    return Math.max(0, offset);
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+        return 0;
+    }
+
+    /**
+    * Returns how many bytes of the <code>.part</code> file of filePath an interrupted download
+    * of url left for the next one, 0 if the journal belongs to another url or SHA-1.
+    */
+    static long resumableBytes(String filePath, String url, byte[] sha1)
+    {
+        File partFile = new File(filePath+PART_SUFFIX);
+        if (!partFile.exists())
+            return 0;
+        return Math.min(readJournal(new File(filePath+JOURNAL_SUFFIX), url, sha1), partFile.length());
+    }
+
+    interface Listener
+    {
+        /**
+        * Called from the download threads every time the overall progress changes by at
+        * least one percent and every time a new file is started.
+        *
+        * @param downloaded bytes downloaded so far
+        * @param total bytes to download
+        * @param current name of the file which was started last
+        */
+        void onProgress(long downloaded, long total, String current);
+    }
+
+    private final String m_rootPath;
+    private final int m_maxTransfers;
+    private final MirrorList m_mirrors;
+    private final ObjectStore m_objects;
+    private final DigestCache m_digests;
+    private final Listener m_listener;
+    private volatile boolean m_cancelled = false;
+
+    private final AtomicLong m_downloaded = new AtomicLong(0);
+    private long m_totalSize = 0;
+    private int m_lastPercent = -1;
+
+    LibraryDownloader(String rootPath, int maxTransfers, MirrorList mirrors, ObjectStore objects
+                        , DigestCache digests, Listener listener)
+    {
+        m_rootPath = rootPath;
+        m_maxTransfers = Math.max(1, maxTransfers);
+        m_mirrors = mirrors;
+        m_objects = objects;
+        m_digests = digests;
+        HttpTransfer.setPoolSize(m_maxTransfers);
+        m_listener = listener;
+    }
+
+    void cancel()
+    {
+        m_cancelled = true;
+    }
+
+    boolean isCancelled()
+    {
+        return m_cancelled;
+    }
+
+    /**
+    * Downloads the libraries, blocks until all transfers are done.
+    *
+    * @return the libraries which were completely installed
+    */
+    ArrayList<Library> download(Library[] libraries) throws InterruptedException
+    {
+        m_totalSize = DownloadPlanner.totalSize(libraries);
+        m_downloaded.set(0);
+        m_lastPercent = -1;
+
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(m_maxTransfers, m_maxTransfers
+                                                    , 0, TimeUnit.MILLISECONDS
+                                                    , new LinkedBlockingQueue<Runnable>());
+        ArrayList<LibraryJob> jobs = new ArrayList<LibraryJob>(libraries.length);
+        // a file several libraries need is downloaded once for all of them, like the planner counts it
+        LinkedHashMap<String, FileJob> files = new LinkedHashMap<String, FileJob>();
+        for (Library lib: libraries)
+        {
+            LibraryJob job = new LibraryJob(lib);
+            jobs.add(job);
+            if (files.containsKey(lib.filePath))
+                files.get(lib.filePath).addOwner(job);
+            else
+                files.put(lib.filePath, new FileJob(job, lib.name, lib.url, lib.filePath, lib.size, lib.sha1
+                                                    , lib.compression, lib.compressedUrl, lib.patches));
+            if (lib.needs != null)
+                for (NeedsStruct need: lib.needs)
+                {
+                    if (files.containsKey(need.filePath))
+                        files.get(need.filePath).addOwner(job);
+                    else
+                        files.put(need.filePath, new FileJob(job, need.name, need.url, need.filePath, need.size, need.sha1
+                                                            , need.compression, need.compressedUrl, null));
+                }
+        }
+        try
+        {
+            for (FileJob file: files.values())
+                executor.execute(file);
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+
+        try
+        {
+            while (!executor.awaitTermination(500, TimeUnit.MILLISECONDS))
+            {
+                if (m_cancelled)
+                    executor.shutdownNow();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            // the caller is going to discard the slot, the transfers must be
+            // stopped before it does so, they would still write into it otherwise
+            m_cancelled = true;
+            executor.shutdownNow();
+            boolean terminated = false;
+            while (!terminated)
+            {
+                try
+                {
+                    terminated = executor.awaitTermination(500, TimeUnit.MILLISECONDS);
+                }
+                catch (InterruptedException ignored)
+                {
+                }
+            }
+            Thread.currentThread().interrupt();
+            throw e;
+        }
+
+        m_mirrors.save();
+        m_digests.save();
+
+        ArrayList<Library> installed = new ArrayList<Library>();
+        HashSet<String> keep = new HashSet<String>(); // files of the installed libraries, failed ones may share them
+        for (LibraryJob job: jobs)
+        {
+            if (!job.failed && !m_cancelled)
+            {
+                installed.add(job.library);
+                keep.add(job.library.filePath);
+                if (job.library.needs != null)
+                    for (NeedsStruct need: job.library.needs)
+                        keep.add(need.filePath);
+            }
+        }
+        for (LibraryJob job: jobs)
+            if (job.failed || m_cancelled)
+                job.removeFiles(keep);
+        return installed;
+    }
+
+    private void progress(String current)
+    {
+        if (m_listener == null)
+            return;
+        long downloaded = m_downloaded.get();
+        int percent = m_totalSize > 0 ? (int)(downloaded*100/m_totalSize) : 0;
+        synchronized (this)
+        {
+            if (current == null && percent == m_lastPercent)
+                return;
+            m_lastPercent = percent;
+        }
+        m_listener.onProgress(downloaded, m_totalSize, current);
+    }
+
+    // all the files of a library, they are installed all or nothing
+    private class LibraryJob
+    {
+        final Library library;
+        volatile boolean failed = false;
+
+        LibraryJob(Library lib)
+        {
+            library = lib;
+        }
+
+        void removeFiles(Set<String> keep)
+        {
+            if (!keep.contains(library.filePath))
+                new File(m_rootPath+library.filePath).delete();
+            if (library.needs != null)
+                for (NeedsStruct need: library.needs)
+                    if (!keep.contains(need.filePath))
+                        new File(m_rootPath+need.filePath).delete();
+        }
+    }
+
+    private class FileJob implements Runnable
+    {
+        private final ArrayList<LibraryJob> m_owners = new ArrayList<LibraryJob>(); // the libraries which need the file
+        private final String m_name;
+        private final String m_url;
+        private final String m_file;
+        private final long m_size;
+        private final byte[] m_sha1;
+        private final String m_compression;
+        private final String m_compressedUrl;
+        private final PatchStruct[] m_patches;
+        private boolean m_useCompressed; // false once the compressed variant failed
+        private long m_offset = 0; // bytes in the .part file, all of them are hashed
+        private long m_counted = 0; // bytes of this file counted in m_downloaded
+
+        FileJob(LibraryJob job, String name, String url, String file, long size, byte[] sha1
+                , String compression, String compressedUrl, PatchStruct[] patches)
+        {
+            m_owners.add(job);
+            m_name = name;
+            m_url = url;
+            m_file = file;
+            m_size = size;
+            m_sha1 = sha1;
+            m_compression = compression;
+            m_compressedUrl = compressedUrl;
+            m_patches = patches;
+            m_useCompressed = compressedUrl != null && compressedUrl.length() > 0 && Compression.isSupported(compression);
+        }
+
+        // called before the job is executed
+        void addOwner(LibraryJob job)
+        {
+            m_owners.add(job);
+        }
+
+        // the file isn't needed anymore once all the libraries which need it failed
+        private boolean unneeded()
+        {
+            for (LibraryJob job: m_owners)
+                if (!job.failed)
+                    return false;
+            return true;
+        }
+
+        public void run()
+        {
+            boolean ok = false;
+            try
+            {
+                if (!unneeded() && !m_cancelled)
+                {
+                    progress(m_name);
+                    ok = downloadItem();
+                }
+            }
+            catch (Exception e)
+            {
+                e.printStackTrace();
+            }
+            if (!ok)
+                for (LibraryJob job: m_owners)
+                    job.failed = true; // the other files of these libraries are not needed anymore
+        }
+
+        private boolean downloadItem() throws Exception
+        {
+            Library.mkdirParents(m_rootPath, m_file, 1);
+            String filePath=m_rootPath+m_file;
+            File partFile = new File(filePath+PART_SUFFIX);
+            File journalFile = new File(filePath+JOURNAL_SUFFIX);
+            boolean ok = false;
+            try
+            {
+                File file = new File(filePath);
+                byte[] installedSha1 = null;
+                if (file.exists() && readJournal(journalFile) == 0)
+                {
+                    // there is no full download to continue, check what is installed,
+                    // the planner usually hashed it already
+                    installedSha1 = m_digests.digest(m_file, filePath);
+                    m_objects.add(file, installedSha1); // keep it before it gets replaced
+                }
+                if (Library.sameDigest(m_sha1, installedSha1) || checkout(file, partFile, journalFile)
+                        || patch(file, installedSha1, partFile, journalFile))
+                {
+                    m_downloaded.addAndGet(m_size-m_counted);
+                    m_counted = m_size;
+                    progress(null);
+                    ok = true;
+                    return true;
+                }
+
+                int failures = 0; // attempts in a row which didn't get any data
+                int attempts = Math.max(ATTEMPTS, m_mirrors.urls(m_url).length); // give every mirror a chance
+                while (failures < attempts && !m_cancelled && !unneeded())
+                {
+                    MessageDigest digester = MessageDigest.getInstance("SHA-1");
+                    resume(partFile, journalFile, digester);
+                    long startOffset = m_offset;
+                    boolean complete = m_size > 0 && m_offset >= m_size;
+                    boolean compressed = m_useCompressed && m_offset == 0;
+                    if (!complete)
+                    {
+                        try
+                        {
+                            complete = transfer(partFile, journalFile, digester, compressed);
+                        }
+                        catch (Exception e)
+                        {
+                            e.printStackTrace();
+                        }
+                        finally
+                        {
+                            writeJournal(journalFile); // remember how far we got
+                        }
+                    }
+
+                    if (!complete)
+                    {
+                        if (compressed && m_offset == startOffset)
+                            m_useCompressed = false; // try the uncompressed file
+                        if (m_offset == startOffset)
+                            ++failures;
+                        else
+                            failures = 0;
+                        continue;
+                    }
+
+                    byte[] sha1 = digester.digest();
+                    if (Library.sameDigest(sha1, m_sha1))
+                    {
+                        file.delete();
+                        if (partFile.renameTo(file))
+                        {
+                            journalFile.delete();
+                            MinistroActivity.nativeChmode(filePath, 0644);
+                            m_objects.add(file, m_sha1);
+                            ok = true;
+                            return true;
+                        }
+                        Log.e(TAG, "can't rename "+partFile.getAbsolutePath()+" to "+filePath);
+                    }
+                    else
+                        Log.e(TAG, "sha1 mismatch, the file:"+m_file+" will be removed, expected sha1:"+Library.convertToHex(m_sha1)+" got sha1:"+Library.convertToHex(sha1)+" file was downloaded from "+m_url);
+
+                    // a complete but bad file can't be resumed
+                    if (compressed)
+                        m_useCompressed = false;
+                    partFile.delete();
+                    journalFile.delete();
+                    m_downloaded.addAndGet(-m_counted);
+                    m_counted = 0;
+                    ++failures;
+                }
+            }
+            finally
+            {
+                if (!ok)
+                    m_downloaded.addAndGet(-m_counted); // the .part file is kept for the next try
+            }
+            return false;
+        }
+
+        /**
+        * Installs the file from the object store, if it has the right SHA-1.
+        *
+        * @return true if the file was installed, false if it has to be downloaded
+        */
+        private boolean checkout(File file, File partFile, File journalFile)
+        {
+            if (!m_objects.contains(m_sha1))
+                return false;
+            try
+            {
+                if (!Library.sameDigest(m_sha1, LibraryVerifier.digest(m_objects.object(m_sha1))))
+                {
+                    Log.e(TAG, "damaged object "+Library.convertToHex(m_sha1)+" will be removed");
+                    m_objects.remove(m_sha1);
+                    return false;
+                }
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+                return false;
+            }
+            if (!m_objects.checkout(m_sha1, file))
+                return false;
+            partFile.delete();
+            journalFile.delete();
+            MinistroActivity.nativeChmode(file.getAbsolutePath(), 0644);
+            Log.i(TAG, m_file+" was installed from the object store");
+            return true;
+        }
+
+        /**
+        * Updates the installed file with a patch from its SHA-1, if the manifest has one.
+        *
+        * @return true if the file was patched, false if it has to be downloaded
+        */
+        private boolean patch(File file, byte[] installedSha1, File partFile, File journalFile)
+        {
+            if (null == m_patches || null == installedSha1)
+                return false;
+
+            PatchStruct patch = null;
+            for (PatchStruct p: m_patches)
+                if (BinaryPatch.TYPE.equals(p.type) && Library.sameDigest(installedSha1, p.from))
+                {
+                    patch = p;
+                    break;
+                }
+            if (null == patch)
+                return false;
+
+            try
+            {
+                byte[] data = fetch(patch.url, patch.size);
+                if (null == data)
+                    return false;
+                MessageDigest digester = MessageDigest.getInstance("SHA-1");
+                byte[] sha1 = digester.digest(data);
+                if (!Library.sameDigest(sha1, patch.sha1))
+                {
+                    Log.e(TAG, "sha1 mismatch, the patch for "+m_file+" will be ignored, expected sha1:"+Library.convertToHex(patch.sha1)+" got sha1:"+Library.convertToHex(sha1)+" patch was downloaded from "+patch.url);
+                    return false;
+                }
+
+                digester.reset();
+                DigestOutputStream outstream = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(partFile), BUFFER_SIZE), digester);
+                try
+                {
+                    BinaryPatch.apply(file, data, outstream);
+                }
+                finally
+                {
+                    outstream.close();
+                }
+
+                sha1 = digester.digest();
+                if (Library.sameDigest(sha1, m_sha1))
+                {
+                    file.delete();
+                    if (partFile.renameTo(file))
+                    {
+                        journalFile.delete();
+                        MinistroActivity.nativeChmode(file.getAbsolutePath(), 0644);
+                        m_objects.add(file, m_sha1);
+                        return true;
+                    }
+                    Log.e(TAG, "can't rename "+partFile.getAbsolutePath()+" to "+file.getAbsolutePath());
+                }
+                else
+                    Log.e(TAG, "sha1 mismatch, the patched file:"+m_file+" will be downloaded, expected sha1:"+Library.convertToHex(m_sha1)+" got sha1:"+Library.convertToHex(sha1));
+            }
+            catch (Exception e)
+            {
+                e.printStackTrace();
+            }
+            partFile.delete();
+            return false;
+        }
+
+        // downloads a (small) file into memory, returns null if the download was cancelled
+        private byte[] fetch(String url, long size) throws IOException
+        {
+            url = m_mirrors.url(url);
+            long start = System.currentTimeMillis();
+            URLConnection connection = HttpTransfer.open(url);
+            InputStream instream;
+            try
+            {
+                instream = HttpTransfer.inputStream(connection);
+            }
+            catch (IOException e)
+            {
+                m_mirrors.reportFailure(url);
+                throw e;
+            }
+            m_mirrors.reportSuccess(url, System.currentTimeMillis()-start);
+            boolean finished = false;
+            try
+            {
+                ByteArrayOutputStream outstream = new ByteArrayOutputStream(size > 0 && size < Integer.MAX_VALUE ? (int)size : BUFFER_SIZE);
+                int downloaded;
+                byte[] tmp = new byte[BUFFER_SIZE];
+                while ((downloaded = instream.read(tmp)) != -1)
+                {
+                    if (m_cancelled || unneeded())
+                        return null;
+                    outstream.write(tmp, 0, downloaded);
+                }
+                finished = true;
+                return outstream.toByteArray();
+            }
+            finally
+            {
+                HttpTransfer.release(connection, instream, finished);
+            }
+        }
+
+        /**
+        * Continues from the .part file if its journal belongs to this file, the SHA-1 of the
+        * data which is already there is computed again (MessageDigest state can't be saved).
+        */
+        private void resume(File partFile, File journalFile, MessageDigest digester) throws IOException
+        {
+            long offset = resumableBytes(m_rootPath+m_file, m_url, m_sha1);
+
+            RandomAccessFile part = new RandomAccessFile(partFile, "rw");
+            try
+            {
+                part.setLength(offset);
+            }
+            finally
+            {
+                part.close();
+            }
+
+            if (offset > 0)
+            {
+                byte[] tmp = new byte[BUFFER_SIZE];
+                int read;
+                FileInputStream instream = new FileInputStream(partFile);
+                try
+                {
+                    while ((read = instream.read(tmp)) != -1)
+                        digester.update(tmp, 0, read);
+                }
+                finally
+                {
+                    instream.close();
+                }
+            }
+
+            m_downloaded.addAndGet(offset-m_counted);
+            m_counted = offset;
+            m_offset = offset;
+        }
+
+        /**
+        * Downloads the rest of the file, asks for a range if a part of it is already here.
+        * A <code>compressed</code> transfer downloads the compressed variant of the whole file.
+        *
+        * @return true if the whole file was downloaded, false if it was interrupted
+        */
+        private boolean transfer(File partFile, File journalFile, MessageDigest digester, boolean compressed) throws IOException
+        {
+            String url = m_mirrors.url(compressed ? m_compressedUrl : m_url);
+            long start = System.currentTimeMillis();
+            URLConnection connection = HttpTransfer.open(url);
+            if (m_offset > 0)
+                connection.setRequestProperty("Range", "bytes="+m_offset+"-");
+            InputStream response;
+            try
+            {
+                response = HttpTransfer.inputStream(connection);
+            }
+            catch (IOException e)
+            {
+                m_mirrors.reportFailure(url);
+                throw e;
+            }
+            m_mirrors.reportSuccess(url, System.currentTimeMillis()-start);
+            boolean failover = m_mirrors.urls(url).length > 1;
+            InputStream instream = response;
+            boolean finished = false;
+            try
+            {
+                if (compressed)
+                    instream = Compression.decompress(instream, m_compression);
+                boolean append = m_offset > 0;
+                if (append && (!(connection instanceof HttpURLConnection)
+                            || ((HttpURLConnection)connection).getResponseCode() != HttpURLConnection.HTTP_PARTIAL
+                            || rangeStart(connection.getHeaderField("Content-Range")) != m_offset))
+                {
+                    // the server sent the whole file, start again
+                    append = false;
+                    digester.reset();
+                    m_downloaded.addAndGet(-m_counted);
+                    m_counted = 0;
+                    m_offset = 0;
+                }
+
+                // a dropped connection may look like the end of the stream
+                long expectedEnd = -1;
+                try
+                {
+                    // Content-Length is the compressed size, truncated compressed data fails to decompress
+                    if (!compressed)
+                        expectedEnd = m_offset + Long.parseLong(connection.getHeaderField("Content-Length"));
+                }
+                catch (Exception e)
+                {
+                    // unknown length
+                }
+
+                FileOutputStream outstream = new FileOutputStream(partFile, append);
+                try
+                {
+                    long journalOffset = m_offset;
+                    long windowStart = System.currentTimeMillis();
+                    long windowOffset = m_offset;
+                    int downloaded;
+                    byte[] tmp = new byte[BUFFER_SIZE];
+                    while ((downloaded = instream.read(tmp)) != -1)
+                    {
+                        if (m_cancelled || unneeded())
+                            return false;
+                        long now = System.currentTimeMillis();
+                        if (now - windowStart >= SLOW_WINDOW)
+                        {
+                            if (failover && (m_offset - windowOffset)*1000/(now - windowStart) < SLOW_THROUGHPUT)
+                            {
+                                m_mirrors.reportFailure(url); // continue from another mirror
+                                return false;
+                            }
+                            windowStart = now;
+                            windowOffset = m_offset;
+                        }
+                        digester.update(tmp, 0, downloaded);
+                        outstream.write(tmp, 0, downloaded);
+                        m_offset+=downloaded;
+                        m_counted+=downloaded;
+                        m_downloaded.addAndGet(downloaded);
+                        if (m_offset - journalOffset >= JOURNAL_INTERVAL)
+                        {
+                            writeJournal(journalFile);
+                            journalOffset = m_offset;
+                        }
+                        progress(null);
+                    }
+                    finished = true;
+                }
+                finally
+                {
+                    outstream.close();
+                }
+                if (expectedEnd >= 0 && m_offset < expectedEnd)
+                {
+                    m_mirrors.reportFailure(url); // the connection was dropped, continue from another mirror
+                    return false;
+                }
+                return true;
+            }
+            catch (IOException e)
+            {
+                m_mirrors.reportFailure(url);
+                throw e;
+            }
+            finally
+            {
+                // a completely read response leaves the connection to the next file
+                HttpTransfer.release(connection, response, finished);
+            }
+        }
+
+        private long readJournal(File journalFile)
+        {
+            return LibraryDownloader.readJournal(journalFile, m_url, m_sha1);
+        }
+
+        // a download without a SHA-1 can't prove that a partial file is its own, it is never resumed
+        private void writeJournal(File journalFile)
+        {
+            if (null == m_sha1)
+            {
+                journalFile.delete();
+                return;
+            }
+            File tmpFile = new File(journalFile.getAbsolutePath()+".tmp");
+            try
+            {
+                DataOutputStream out = new DataOutputStream(new FileOutputStream(tmpFile));
+                try
+                {
+                    out.writeInt(JOURNAL_VERSION);
+                    out.writeUTF(m_url);
+                    out.writeInt(m_sha1.length);
+                    out.write(m_sha1);
+                    out.writeLong(m_offset);
+                }
+                finally
+                {
+                    out.close();
+                }
+                if (!tmpFile.renameTo(journalFile))
+                    tmpFile.delete();
+            }
+            catch (Exception e)
+            {
+                e.printStackTrace();
+                tmpFile.delete();
+            }
+        }
+    }
+}
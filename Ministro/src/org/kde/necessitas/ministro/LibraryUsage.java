@@ -0,0 +1,237 @@
+/*
+    Copyright (c) 2011, BogDan Vatra <bog_dan_ro@yahoo.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.kde.necessitas.ministro;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/** Remembers which client applications resolved which modules, and when.
+*
+* There is one entry for every client and set of modules, the libraries a client used are
+* the dependency closure of its modules. {@link LibraryCollector} uses the entries to find
+* the libraries which nobody needed for a while.
+*
+* The entries are stored in a small binary file. A new entry is written at once, a newer
+* time of an existing entry only once per hour, a lost update only makes a library look a
+* bit older than it is.
+*/
+class LibraryUsage
+{
+    private static final int MAGIC = 0x4d555347; // "MUSG"
+    private static final int FORMAT_VERSION = 1;
+    private static final long SAVE_RESOLUTION = 3600*1000;
+    private static final int MIN_ENTRY_SIZE = 2+4+8; // empty client, no modules, time
+    private static final int MIN_MODULE_SIZE = 2; // empty module name
+
+    /** A client and the modules it asked for. */
+    static class Entry
+    {
+        final String client;
+        final String[] modules;
+        long lastUsed;
+
+        Entry(String client, String[] modules, long lastUsed)
+        {
+            this.client = client;
+            this.modules = modules;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    private final File m_file;
+    private final LinkedHashMap<String, Entry> m_entries = new LinkedHashMap<String, Entry>(); // client and modules -> entry
+    private long m_since = 0; // when the tracking started
+    private boolean m_loaded = false;
+    private boolean m_dirty = false;
+
+    LibraryUsage(File file)
+    {
+        m_file = file;
+    }
+
+    private static String key(String client, String[] modules)
+    {
+        StringBuilder key = new StringBuilder(client);
+        for (String module: modules)
+            key.append('\n').append(module);
+        return key.toString();
+    }
+
+    /**
+    * Records that client resolved modules just now.
+    */
+    synchronized void used(String client, String[] modules)
+    {
+        load();
+        long now = System.currentTimeMillis();
+        String[] sortedModules = modules.clone();
+        Arrays.sort(sortedModules);
+        String key = key(null == client ? "" : client, sortedModules);
+        Entry entry = m_entries.get(key);
+        if (null == entry)
+        {
+            m_entries.put(key, new Entry(null == client ? "" : client, sortedModules, now));
+            m_dirty = true;
+            save();
+            return;
+        }
+        boolean stale = now - entry.lastUsed > SAVE_RESOLUTION;
+        entry.lastUsed = now;
+        m_dirty = true;
+        if (stale)
+            save();
+    }
+
+    /**
+    * Returns a copy of all the entries.
+    */
+    synchronized List<Entry> entries()
+    {
+        load();
+        ArrayList<Entry> entries = new ArrayList<Entry>(m_entries.size());
+        for (Entry entry: m_entries.values())
+            entries.add(new Entry(entry.client, entry.modules, entry.lastUsed));
+        return entries;
+    }
+
+    /**
+    * Returns when the tracking started, libraries nobody used since are as old as that.
+    */
+    synchronized long since()
+    {
+        load();
+        return m_since;
+    }
+
+    /**
+    * Forgets the entries which were not used since time.
+    */
+    synchronized void forgetOlderThan(long time)
+    {
+        load();
+        for (Iterator<Entry> it = m_entries.values().iterator(); it.hasNext();)
+            if (it.next().lastUsed < time)
+            {
+                it.remove();
+                m_dirty = true;
+            }
+    }
+
+    private void load()
+    {
+        if (m_loaded)
+            return;
+        m_loaded = true;
+        m_since = System.currentTimeMillis();
+        if (!m_file.exists())
+        {
+            m_dirty = true;
+            return;
+        }
+        try
+        {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(m_file)));
+            try
+            {
+                if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION)
+                    return;
+                m_since = in.readLong();
+                int count = in.readInt();
+                if (count < 0 || count > m_file.length()/MIN_ENTRY_SIZE)
+                    throw new IOException("Corrupt usage file, "+count+" entries");
+                for (int i=0;i<count;i++)
+                {
+                    String client = in.readUTF();
+                    int length = in.readInt();
+                    if (length < 0 || length > m_file.length()/MIN_MODULE_SIZE)
+                        throw new IOException("Corrupt usage file, "+length+" modules");
+                    String[] modules = new String[length];
+                    for (int m=0;m<modules.length;m++)
+                        modules[m] = in.readUTF();
+                    long lastUsed = in.readLong();
+                    m_entries.put(key(client, modules), new Entry(client, modules, lastUsed));
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+            m_entries.clear();
+            m_since = System.currentTimeMillis();
+            m_dirty = true;
+        }
+    }
+
+    /**
+    * Writes the entries if they changed.
+    */
+    synchronized void save()
+    {
+        if (!m_dirty)
+            return;
+
+        File tmpFile = new File(m_file.getAbsolutePath()+".tmp");
+        try
+        {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            try
+            {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeLong(m_since);
+                out.writeInt(m_entries.size());
+                for (Entry entry: m_entries.values())
+                {
+                    out.writeUTF(entry.client);
+                    out.writeInt(entry.modules.length);
+                    for (String module: entry.modules)
+                        out.writeUTF(module);
+                    out.writeLong(entry.lastUsed);
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+            if (tmpFile.renameTo(m_file))
+                m_dirty = false;
+            else
+                tmpFile.delete();
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+            tmpFile.delete();
+        }
+    }
+}
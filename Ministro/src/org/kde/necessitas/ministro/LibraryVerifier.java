@@ -0,0 +1,176 @@
+/*
+    Copyright (c) 2011, BogDan Vatra <bog_dan_ro@yahoo.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.kde.necessitas.ministro;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/** Verifies the SHA-1 of many files at once.
+*
+* The files are hashed concurrently by a small pool of threads, every file is read through
+* memory mapped windows of its FileChannel and the digest is compared as raw bytes with the
+* expected one. The result is a report with one entry per file.
+*/
+class LibraryVerifier
+{
+    private static final long MAP_SIZE = 8*1024*1024; // bytes mapped at once
+    private static final int MAX_THREADS = 4; // hashing is disk bound, more threads don't help
+
+    /** Verification result of a single file. */
+    static class Result
+    {
+        public final String fileName;
+        public final byte[] sha1; // expected sha1
+        public boolean exists = false;
+        public boolean ok = false;
+        public long size = 0;
+        public byte[] digest = null; // null if the file couldn't be read
+        public IOException error = null;
+
+        Result(String fileName, byte[] sha1)
+        {
+            this.fileName = fileName;
+            this.sha1 = sha1;
+        }
+    }
+
+    private final int m_threads;
+
+    LibraryVerifier()
+    {
+        this(Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+    }
+
+    LibraryVerifier(int threads)
+    {
+        m_threads = Math.max(1, threads);
+    }
+
+    /**
+    * Returns the SHA-1 of a file.
+    */
+    static byte[] digest(File file) throws IOException
+    {
+        MessageDigest digester;
+        try
+        {
+            digester = MessageDigest.getInstance("SHA-1");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw (IOException) new IOException("SHA-1 is not available").initCause(e);
+        }
+
+        FileInputStream instream = new FileInputStream(file);
+        try
+        {
+            FileChannel channel = instream.getChannel();
+            long size = channel.size();
+            for (long position = 0; position < size; position += MAP_SIZE)
+            {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_SIZE, size - position));
+                digester.update(buffer);
+            }
+        }
+        finally
+        {
+            instream.close();
+        }
+        return digester.digest();
+    }
+
+    /**
+    * Verifies the files, blocks until all of them are hashed.
+    *
+    * @param files file name -> expected sha1
+    * @return one result per file, in the iteration order of files
+    */
+    List<Result> verify(Map<String, byte[]> files) throws InterruptedException
+    {
+        ArrayList<Result> results = new ArrayList<Result>(files.size());
+        for (Map.Entry<String, byte[]> file: files.entrySet())
+            results.add(new Result(file.getKey(), file.getValue()));
+        if (results.isEmpty())
+            return results;
+
+        int threads = Math.min(m_threads, results.size());
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads
+                                                    , 0, TimeUnit.MILLISECONDS
+                                                    , new LinkedBlockingQueue<Runnable>());
+        try
+        {
+            ArrayList<Callable<Result>> jobs = new ArrayList<Callable<Result>>(results.size());
+            for (final Result result: results)
+                jobs.add(new Callable<Result>() {
+                    public Result call()
+                    {
+                        verify(result);
+                        return result;
+                    }
+                });
+            for (Future<Result> future: executor.invokeAll(jobs))
+            {
+                try
+                {
+                    future.get();
+                }
+                catch (ExecutionException e)
+                {
+                    e.printStackTrace();
+                }
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+        return results;
+    }
+
+    private static void verify(Result result)
+    {
+        File file = new File(result.fileName);
+        result.exists = file.exists();
+        if (!result.exists)
+            return;
+        result.size = file.length();
+        try
+        {
+            result.digest = digest(file);
+            result.ok = Library.sameDigest(result.sha1, result.digest);
+        }
+        catch (IOException e)
+        {
+            result.error = e;
+        }
+    }
+}
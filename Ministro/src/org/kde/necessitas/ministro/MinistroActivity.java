@@ -25,18 +25,15 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.net.MalformedURLException;
-import java.net.URL;
 import java.net.URLConnection;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Enumeration;
-import java.util.concurrent.Semaphore;
+import java.util.List;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -45,7 +42,8 @@ import javax.xml.parsers.ParserConfigurationException;
 import org.apache.http.client.ClientProtocolException;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
-import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xmlpull.v1.XmlPullParserException;
 
 import android.app.Activity;
 import android.app.AlertDialog;
@@ -68,21 +66,19 @@ import android.os.Bundle;
 import android.os.IBinder;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
-import android.os.StatFs;
 import android.provider.Settings;
 import android.util.Log;
 
 public class MinistroActivity extends Activity
 {
-    private static final int CONNECTION_TIMEOUT = 20000; // 20 seconds for connection timeout
-    private static final int READ_TIMEOUT = 10000; // 10 seconds for read timeout
+    private static final String TAG = "MinistroActivity";
 
     public native static int nativeChmode(String filepath, int mode);
-    private static final String DOMAIN_NAME="https://files.kde.org/necessitas/ministro/android/necessitas/";
+    public native static long nativeInode(String filepath); // -1 if the file can't be stat()ed
+    public native static int nativeLink(String target, String link, boolean symbolic); // hard or symbolic link, 0 on success
 
     private String[] m_modules;
     private int m_id=-1;
-    private String m_qtLibsRootPath;
     private WakeLock m_wakeLock;
 
     private void checkNetworkAndDownload(final boolean update)
@@ -158,66 +154,73 @@ public class MinistroActivity extends Activity
     }
     private AlertDialog m_distSpaceDialog=null;
     private final int freeSpaceCode=0xf3ee500;
-    private Semaphore m_diskSpaceSemaphore = new Semaphore(0);
+    private InstallSlots.Slot m_pendingSlot = null; // the install which waits until the user frees some space
+    private volatile boolean m_certificatesExtracted = false; // the staged slot has the certificates of this system
+    private Library[] m_pendingLibraries = null;
 
-    private boolean checkFreeSpace(final long size) throws InterruptedException
+    // asks the user to free size bytes, the install is planned again when the settings activity returns
+    private void askForFreeSpace(InstallSlots.Slot slot, Library[] libraries, long size)
     {
-        final StatFs stat = new StatFs(m_qtLibsRootPath);
-        if (stat.getBlockSize() * stat.getAvailableBlocks() < size)
-        {
-            runOnUiThread(new Runnable() {
-                public void run() {
-
-                    AlertDialog.Builder builder = new AlertDialog.Builder(MinistroActivity.this);
-                    builder.setMessage(getResources().getString(R.string.ministro_disk_space_msg,
-                                                (size-(stat.getBlockSize() * stat.getAvailableBlocks()))/1024+"Kb"));
-                    builder.setCancelable(true);
-                    builder.setNeutralButton(getResources().getString(R.string.settings_msg), new DialogInterface.OnClickListener() {
-                            public void onClick(DialogInterface dialog, int id) {
-                                try {
-                                    startActivityForResult(new Intent(Settings.ACTION_MANAGE_APPLICATIONS_SETTINGS), freeSpaceCode);
-                                } catch(Exception e) {
-                                    e.printStackTrace();
-                                    try {
-                                        startActivityForResult(new Intent(Settings.ACTION_MANAGE_ALL_APPLICATIONS_SETTINGS), freeSpaceCode);
-                                    } catch(Exception e1) {
-
-                                        e1.printStackTrace();
-                                    }
-                                }
-                            }
-                        });
-                    builder.setNegativeButton(android.R.string.cancel, new DialogInterface.OnClickListener() {
-                            public void onClick(DialogInterface dialog, int id)
-                            {
-                                dialog.dismiss();
-                                m_diskSpaceSemaphore.release();
-                            }
-                        });
-                    builder.setOnCancelListener(new DialogInterface.OnCancelListener() {
-                        public void onCancel(DialogInterface dialog)
-                        {
-                            dialog.dismiss();
-                            m_diskSpaceSemaphore.release();
+        m_pendingSlot = slot;
+        m_pendingLibraries = libraries;
+        AlertDialog.Builder builder = new AlertDialog.Builder(MinistroActivity.this);
+        builder.setMessage(getResources().getString(R.string.ministro_disk_space_msg, size/1024+"Kb"));
+        builder.setCancelable(true);
+        builder.setNeutralButton(getResources().getString(R.string.settings_msg), new DialogInterface.OnClickListener() {
+                public void onClick(DialogInterface dialog, int id) {
+                    try {
+                        startActivityForResult(new Intent(Settings.ACTION_MANAGE_APPLICATIONS_SETTINGS), freeSpaceCode);
+                    } catch(Exception e) {
+                        e.printStackTrace();
+                        try {
+                            startActivityForResult(new Intent(Settings.ACTION_MANAGE_ALL_APPLICATIONS_SETTINGS), freeSpaceCode);
+                        } catch(Exception e1) {
+
+                            e1.printStackTrace();
+                            cancelPendingInstall();
                         }
-                    });
-                    m_distSpaceDialog = builder.create();
-                    m_distSpaceDialog.show();
+                    }
+                }
+            });
+        builder.setNegativeButton(android.R.string.cancel, new DialogInterface.OnClickListener() {
+                public void onClick(DialogInterface dialog, int id)
+                {
+                    dialog.dismiss();
+                    cancelPendingInstall();
                 }
             });
-            m_diskSpaceSemaphore.acquire();
+        builder.setOnCancelListener(new DialogInterface.OnCancelListener() {
+            public void onCancel(DialogInterface dialog)
+            {
+                dialog.dismiss();
+                cancelPendingInstall();
+            }
+        });
+        try
+        {
+            m_distSpaceDialog = builder.create();
+            m_distSpaceDialog.show();
         }
-        else
-            return true;
+        catch(Exception e)
+        {
+            e.printStackTrace();
+            cancelPendingInstall();
+        }
+    }
 
-        return stat.getBlockSize() * stat.getAvailableBlocks()>size;
+    private void cancelPendingInstall()
+    {
+        if (null == m_pendingSlot)
+            return;
+        new FinishInstall(m_pendingSlot, false, true).execute();
+        m_pendingSlot = null;
+        m_pendingLibraries = null;
     }
 
     protected void onActivityResult (int requestCode, int resultCode, Intent data)
     {
         if (requestCode == freeSpaceCode)
         {
-            m_diskSpaceSemaphore.release();
             try
             {
                 if (m_distSpaceDialog != null)
@@ -230,6 +233,14 @@ public class MinistroActivity extends Activity
             {
                 e.printStackTrace();
             }
+            if (null != m_pendingSlot)
+            {
+                InstallSlots.Slot slot = m_pendingSlot;
+                Library[] libraries = m_pendingLibraries;
+                m_pendingSlot = null;
+                m_pendingLibraries = null;
+                new DownloadManager(slot).execute(libraries);
+            }
         }
     }
     private ServiceConnection m_ministroConnection=new ServiceConnection()
@@ -279,6 +290,20 @@ public class MinistroActivity extends Activity
         }
     };
 
+    // tells the service that the retrieval is making progress
+    private void keepAlive()
+    {
+        if (-1 != m_id && null != MinistroService.instance())
+            MinistroService.instance().retrievalAlive(m_id);
+    }
+
+    // tells the clients which wait for the retrieval how far it is, can be called from any thread
+    private void reportProgress(String phase, long done, long total, String library)
+    {
+        if (-1 != m_id && null != MinistroService.instance())
+            MinistroService.instance().retrievalProgress(m_id, phase, done, total, library);
+    }
+
     void finishMe()
     {
         if (-1 != m_id && null != MinistroService.instance())
@@ -288,14 +313,21 @@ public class MinistroActivity extends Activity
         finish();
     }
 
-    private static URL getVersionUrl(Context c) throws MalformedURLException
+    // paths relative to the repository (mirror) url
+    private static String getVersionPath(Context c)
+    {
+        return MinistroService.getRepository(c)+"/"+android.os.Build.CPU_ABI+"/android-"+android.os.Build.VERSION.SDK_INT+"/versions.xml";
+    }
+
+    private static String getLibsXmlPath(Context c, String version)
     {
-        return new URL(DOMAIN_NAME+MinistroService.getRepository(c)+"/"+android.os.Build.CPU_ABI+"/android-"+android.os.Build.VERSION.SDK_INT+"/versions.xml");
+        return MinistroService.getRepository(c)+"/"+android.os.Build.CPU_ABI+"/android-"+android.os.Build.VERSION.SDK_INT+"/libs-"+version+".xml";
     }
 
-    private static URL getLibsXmlUrl(Context c, String version) throws MalformedURLException
+    // identifies the local copy of a downloaded file
+    private static String fileStamp(File file)
     {
-        return new URL(DOMAIN_NAME+MinistroService.getRepository(c)+"/"+android.os.Build.CPU_ABI+"/android-"+android.os.Build.VERSION.SDK_INT+"/libs-"+version+".xml");
+        return file.exists() ? file.length()+"/"+file.lastModified() : "";
     }
 
     public static boolean isOnline(Context c)
@@ -341,44 +373,99 @@ public class MinistroActivity extends Activity
         return features;
     }
 
-
-    public static double downloadVersionXmlFile(Context c, boolean checkOnly)
+    /**
+    * Asks the repository for the latest version, if it is newer than the installed one its
+    * manifest is written into slot.
+    *
+    * @param slot a staged install slot, null to only check for a new version
+    * @return the latest version or -1 if the repository can't be reached
+    */
+    public static double downloadVersionXmlFile(Context c, InstallSlots.Slot slot)
     {
         if (!isOnline(c))
             return-1;
         try
         {
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            DocumentBuilder builder = factory.newDocumentBuilder();
-            Document dom = null;
-            Element root = null;
-            URLConnection connection = getVersionUrl(c).openConnection();
-            connection.setConnectTimeout(CONNECTION_TIMEOUT);
-            connection.setReadTimeout(READ_TIMEOUT);
-            dom = builder.parse(connection.getInputStream());
-            root = dom.getDocumentElement();
-            root.normalize();
-            double version = Double.valueOf(root.getAttribute("latest"));
+            boolean checkOnly = null == slot;
+            MirrorList mirrors = MinistroService.instance().getMirrorList();
+            if (!checkOnly)
+                mirrors.probeIfNeeded(getVersionPath(c));
+            ConditionalGet versionsXml = new ConditionalGet(c, MirrorList.DEFAULT_MIRROR+getVersionPath(c), "");
+            URLConnection connection = mirrors.connectConfigured(MirrorList.DEFAULT_MIRROR+getVersionPath(c), versionsXml);
+            double version;
+            String supportedFeatures=null;
+            if (versionsXml.notModified(connection))
+            {
+                version = Double.valueOf(versionsXml.value("latest"));
+                supportedFeatures = versionsXml.value("features");
+            }
+            else
+            {
+                DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+                DocumentBuilder builder = factory.newDocumentBuilder();
+                Document dom = null;
+                Element root = null;
+                InputStream instream = Compression.openStream(connection);
+                try
+                {
+                    dom = builder.parse(instream);
+                }
+                finally
+                {
+                    HttpTransfer.release(connection, instream, true);
+                }
+                root = dom.getDocumentElement();
+                root.normalize();
+                if (root.getElementsByTagName("mirrors").getLength() > 0)
+                {
+                    ArrayList<String> announced = new ArrayList<String>();
+                    NodeList mirrorNodes = root.getElementsByTagName("mirror");
+                    for (int i=0;i<mirrorNodes.getLength();i++)
+                        announced.add(((Element)mirrorNodes.item(i)).getAttribute("url"));
+                    mirrors.setAnnouncedMirrors(announced);
+                    mirrors.save();
+                }
+                version = Double.valueOf(root.getAttribute("latest"));
+                if (root.hasAttribute("features"))
+                    supportedFeatures=root.getAttribute("features");
+                versionsXml.put("latest", root.getAttribute("latest"));
+                versionsXml.put("features", supportedFeatures);
+                versionsXml.store(connection, "");
+            }
             if ( MinistroService.instance().getVersion() >= version )
                 return MinistroService.instance().getVersion();
 
             if (checkOnly)
                 return version;
-            String supportedFeatures=null;
-            if (root.hasAttribute("features"))
-                supportedFeatures=root.getAttribute("features");
-            connection = getLibsXmlUrl(c, version+deviceSupportedFeatures(supportedFeatures)).openConnection();
-            File file= new File(MinistroService.instance().getVersionXmlFile());
-            file.delete();
-            FileOutputStream outstream = new FileOutputStream(MinistroService.instance().getVersionXmlFile());
-            InputStream instream = connection.getInputStream();
-            byte[] tmp = new byte[2048];
-            int downloaded;
-            while ((downloaded = instream.read(tmp)) != -1)
-                outstream.write(tmp, 0, downloaded);
-
-            outstream.close();
-            MinistroService.instance().refreshLibraries(false);
+            File file= new File(slot.versionXmlFile());
+            File tmpFile = new File(slot.versionXmlFile()+".tmp");
+            String libsXmlUrl = MirrorList.DEFAULT_MIRROR+getLibsXmlPath(c, version+deviceSupportedFeatures(supportedFeatures));
+            ConditionalGet libsXml = new ConditionalGet(c, libsXmlUrl, fileStamp(file));
+            connection = mirrors.connectConfigured(libsXmlUrl, libsXml);
+            if (!libsXml.notModified(connection))
+            {
+                FileOutputStream outstream = new FileOutputStream(tmpFile);
+                InputStream instream = Compression.openStream(connection);
+                try
+                {
+                    byte[] tmp = new byte[2048];
+                    int downloaded;
+                    while ((downloaded = instream.read(tmp)) != -1)
+                        outstream.write(tmp, 0, downloaded);
+                }
+                finally
+                {
+                    outstream.close();
+                    HttpTransfer.release(connection, instream, true);
+                }
+                if (!tmpFile.renameTo(file)) // the hard link to the current manifest is replaced, not overwritten
+                {
+                    tmpFile.delete();
+                    throw new IOException("Can't write "+file.getAbsolutePath());
+                }
+                libsXml.store(connection, fileStamp(file));
+            }
+            mirrors.save();
             return version;
         } catch (ClientProtocolException e) {
             e.printStackTrace();
@@ -394,11 +481,95 @@ public class MinistroActivity extends Activity
         return -1;
     }
 
+    /**
+    * Commits a staged install slot or discards it, the service is refreshed if the current
+    * slot changed.
+    */
+    private void finishInstall(InstallSlots.Slot slot, boolean commit)
+    {
+        if (null == slot)
+            return;
+        InstallSlots slots = MinistroService.instance().getInstallSlots();
+        if (commit)
+            reportProgress(MinistroService.PHASE_INSTALL, 0, 0, null);
+        if (commit && slots.commit(slot))
+        {
+            if (m_certificatesExtracted)
+            {
+                SharedPreferences.Editor editor= getSharedPreferences("Ministro", MODE_PRIVATE).edit();
+                editor.putString("CODENAME",android.os.Build.VERSION.CODENAME);
+                editor.putString("INCREMENTAL", android.os.Build.VERSION.INCREMENTAL);
+                editor.putString("RELEASE", android.os.Build.VERSION.RELEASE);
+                editor.commit();
+            }
+            MinistroService.instance().refreshLibraries(false);
+        }
+        else
+            slots.discard(slot);
+    }
+
+    // runs finishInstall off the UI thread, the refresh after a commit can take a while
+    private class FinishInstall extends AsyncTask<Void, Void, Void>
+    {
+        private final InstallSlots.Slot m_slot;
+        private final boolean m_commit;
+        private final boolean m_finish; // finish the activity afterwards
+
+        FinishInstall(InstallSlots.Slot slot, boolean commit, boolean finish)
+        {
+            m_slot = slot;
+            m_commit = commit;
+            m_finish = finish;
+        }
+
+        @Override
+        protected Void doInBackground(Void... params)
+        {
+            finishInstall(m_slot, m_commit);
+            return null;
+        }
+
+        @Override
+        protected void onPostExecute(Void result)
+        {
+            if (m_finish)
+                finishMe();
+            super.onPostExecute(result);
+        }
+    }
+
     private class DownloadManager extends AsyncTask<Library, Integer, Long>
     {
         private ProgressDialog m_dialog = null;
-        private String m_status = getResources().getString(R.string.start_downloading_msg);
-        private int m_totalSize=0, m_totalProgressSize=0;
+        private volatile String m_status = getResources().getString(R.string.start_downloading_msg); // set from the download threads
+        private final InstallSlots.Slot m_slot;
+        private Library[] m_libraries = null;
+        private long m_shortfall = 0; // bytes the user has to free
+        private volatile String m_library = null; // the library which is being downloaded
+        private volatile boolean m_commit = false; // some libraries were installed
+        private final LibraryDownloader m_downloader;
+
+        DownloadManager(InstallSlots.Slot slot)
+        {
+            m_slot = slot;
+            m_downloader = new LibraryDownloader(slot.qtPath()
+                    , MinistroService.getMaxTransfers(MinistroActivity.this)
+                    , MinistroService.instance().getMirrorList()
+                    , MinistroService.instance().getObjectStore()
+                    , MinistroService.instance().getDigestCache()
+                    , new LibraryDownloader.Listener() {
+                        public void onProgress(long downloaded, long total, String current)
+                        {
+                            if (current != null)
+                            {
+                                m_status=current+" ";
+                                m_library=current;
+                            }
+                            reportProgress(MinistroService.PHASE_DOWNLOAD, downloaded, total, m_library);
+                            publishProgress(total > 0 ? (int)(downloaded*100/total) : 0, (int)(downloaded/1024));
+                        }
+                    });
+        }
 
         @Override
         protected void onPreExecute()
@@ -412,6 +583,7 @@ public class MinistroActivity extends Activity
             m_dialog.setOnCancelListener(new DialogInterface.OnCancelListener(){
                 public void onCancel(DialogInterface dialog)
                 {
+                    m_downloader.cancel();
                     DownloadManager.this.cancel(false);
                     finishMe();
                 }
@@ -428,116 +600,43 @@ public class MinistroActivity extends Activity
             super.onPreExecute();
         }
 
-        private boolean DownloadItem(String url, String file, long size, String fileSha1) throws NoSuchAlgorithmException, MalformedURLException, IOException
-        {
-            for (int i=0;i<2;i++)
-            {
-                MessageDigest digester = MessageDigest.getInstance("SHA-1");
-                URLConnection connection = new URL(url).openConnection();
-                Library.mkdirParents(m_qtLibsRootPath, file, 1);
-                String filePath=m_qtLibsRootPath+file;
-                int progressSize=0;
-                try
-                {
-                    FileOutputStream outstream = new FileOutputStream(filePath);
-                    InputStream instream = connection.getInputStream();
-                    int downloaded;
-                    byte[] tmp = new byte[2048];
-                    int oldProgress=-1;
-                    while ((downloaded = instream.read(tmp)) != -1)
-                    {
-                        if (isCancelled())
-                            break;
-                        progressSize+=downloaded;
-                        m_totalProgressSize+=downloaded;
-                        digester.update(tmp, 0, downloaded);
-                        outstream.write(tmp, 0, downloaded);
-                        int progress=(int)(progressSize*100/size);
-                        if (progress!=oldProgress)
-                        {
-                            publishProgress(progress
-                                    , m_totalProgressSize);
-                            oldProgress = progress;
-                        }
-                    }
-                    String sha1 =  Library.convertToHex(digester.digest());
-                    if (sha1.equalsIgnoreCase(fileSha1))
-                    {
-                        outstream.close();
-                        nativeChmode(filePath, 0644);
-                        return true;
-                    }
-                    else
-                        Log.e("Ministro", "sha1 mismatch, the file:"+file+" will be removed, expected sha1:"+fileSha1+" got sha1:"+sha1+" file was downloaded from "+url);
-                    outstream.close();
-                    File f = new File(filePath);
-                    f.delete();
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    File f = new File(filePath);
-                    f.delete();
-                }
-                m_totalProgressSize-=progressSize;
-            }
-            return false;
-        }
-
-        void removeFile(String file)
-        {
-            File f = new File(m_qtLibsRootPath+file);
-            f.delete();
-        }
-
         @Override
         protected Long doInBackground(Library... params)
         {
             try
             {
-                for (int i=0;i<params.length;i++)
+                m_libraries = params;
+                ObjectStore objects = MinistroService.instance().getObjectStore();
+                DigestCache digests = MinistroService.instance().getDigestCache();
+                DownloadPlanner.Plan plan = DownloadPlanner.plan(m_slot.qtPath(), params, objects, digests);
+                if (plan.shortfall() > 0)
                 {
-                    m_totalSize+=params[i].size;
-                    if (null != params[i].needs)
-                        for (int j=0;j<params[i].needs.length;j++)
-                            m_totalSize+=params[i].needs[j].size;
-                }
-                m_dialog.setMax(m_totalSize);
-                if (!checkFreeSpace(m_totalSize))
-                    return null;
-                for (int i=0;i<params.length;i++)
-                {
-                    if (isCancelled())
-                        break;
-                    synchronized (m_status)
+                    // make room by removing what nobody needs before asking the user
+                    ArrayList<String> modules = new ArrayList<String>();
+                    for (Library lib: params)
+                        modules.add(lib.name);
+                    MinistroService.instance().reclaimSpace(plan.shortfall(), m_slot, modules);
+                    plan = DownloadPlanner.plan(m_slot.qtPath(), params, objects, digests);
+                    if (plan.shortfall() > 0)
                     {
-                        m_status=params[i].name+" ";
+                        m_shortfall = plan.shortfall();
+                        return null;
                     }
-                    publishProgress(0, m_totalProgressSize);
-                    if (!DownloadItem(params[i].url, params[i].filePath, params[i].size, params[i].sha1))
-                        break;
-
-                    if (null != params[i].needs)
-                        for (int j=0;j<params[i].needs.length;j++)
-                        {
-                            synchronized (m_status)
-                            {
-                                m_status=params[i].needs[j].name+" ";
-                            }
-                            publishProgress(0, m_totalProgressSize);
-                            if (!DownloadItem(params[i].needs[j].url, params[i].needs[j].filePath, params[i].needs[j].size, params[i].needs[j].sha1))
-                            {
-                                for (int k=0;k<j;k++) // remove previous neede files
-                                    removeFile(params[i].needs[k].filePath);
-                                removeFile(params[i].filePath); // remove the parent
-                                break;
-                            }
-                        }
                 }
-            } catch (NoSuchAlgorithmException e) {
-                e.printStackTrace();
-            } catch (MalformedURLException e) {
-                e.printStackTrace();
-            } catch (IOException e) {
-                e.printStackTrace();
+                if (m_dialog != null)
+                    m_dialog.setMax((int)(plan.totalSize/1024));
+                ArrayList<Library> installed = m_downloader.download(params);
+                // every library is installed all or nothing, keep the ones which made it like the
+                // prefetcher does, the service reports the missing modules to the client
+                m_commit = !installed.isEmpty() && !m_downloader.isCancelled();
+                if (installed.size() != params.length)
+                {
+                    ArrayList<String> failed = new ArrayList<String>();
+                    for (Library lib: params)
+                        if (!installed.contains(lib))
+                            failed.add(lib.name);
+                    Log.e(TAG, "Installed "+installed.size()+" of "+params.length+" libraries, failed: "+Library.join(failed, " "));
+                }
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -547,15 +646,13 @@ public class MinistroActivity extends Activity
         @Override
         protected void onProgressUpdate(Integer... values)
         {
+            keepAlive();
             try
             {
                 if (m_dialog != null)
                 {
-                    synchronized (m_status)
-                    {
-                        m_dialog.setMessage(m_status+values[0]+"%");
-                        m_dialog.setProgress(values[1]);
-                    }
+                    m_dialog.setMessage(m_status+values[0]+"%");
+                    m_dialog.setProgress(values[1]);
                 }
             }
             catch(Exception e)
@@ -574,8 +671,19 @@ public class MinistroActivity extends Activity
                 m_dialog.dismiss();
                 m_dialog = null;
             }
-            MinistroService.instance().refreshLibraries(false);
-            finishMe();
+            if (m_shortfall > 0)
+            {
+                askForFreeSpace(m_slot, m_libraries, m_shortfall);
+                return;
+            }
+            new FinishInstall(m_slot, m_commit, true).execute();
+        }
+
+        @Override
+        protected void onCancelled()
+        {
+            new FinishInstall(m_slot, false, false).execute();
+            super.onCancelled();
         }
     }
 
@@ -584,6 +692,8 @@ public class MinistroActivity extends Activity
         private ProgressDialog m_dialog = null;
         private final ArrayList<Library> newLibs = new ArrayList<Library>();
         private String m_message;
+        private InstallSlots.Slot m_slot = null; // the libraries are installed into this slot
+        private boolean m_changed = false; // the slot has a new manifest, style or certificates
         @Override
         protected void onPreExecute()
         {
@@ -606,15 +716,18 @@ public class MinistroActivity extends Activity
             double version=0.0;
             try
             {
-                DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-                DocumentBuilder builder = factory.newDocumentBuilder();
-                Document dom = null;
-                Element root = null;
-                double oldVersion=MinistroService.instance().getVersion();
-                if (update[0] || MinistroService.instance().getVersion()<0)
-                    version = downloadVersionXmlFile(MinistroActivity.this, false);
+                m_slot = MinistroService.instance().getInstallSlots().stage();
+                String manifestStamp = fileStamp(new File(m_slot.versionXmlFile()));
+                LibraryCatalog catalog = MinistroService.instance().getCatalog(); // the installed libraries, it doesn't change
+                double oldVersion=catalog.version;
+                if (update[0] || catalog.version<0)
+                {
+                    reportProgress(MinistroService.PHASE_MANIFEST, 0, 0, null);
+                    version = downloadVersionXmlFile(MinistroActivity.this, m_slot);
+                }
                 else
-                    version = MinistroService.instance().getVersion();
+                    version = catalog.version;
+                m_changed = !manifestStamp.equals(fileStamp(new File(m_slot.versionXmlFile())));
 
                 SharedPreferences preferences=getSharedPreferences("Ministro", MODE_PRIVATE);
                 // extract device look&feel
@@ -622,37 +735,35 @@ public class MinistroActivity extends Activity
                         !preferences.getString("INCREMENTAL", "").equals(android.os.Build.VERSION.INCREMENTAL) ||
                         !preferences.getString("RELEASE", "").equals(android.os.Build.VERSION.RELEASE) ||
                         !preferences.getString("MINISTRO_VERSION", "").equals(getPackageManager().getPackageInfo(getPackageName(), 0).versionName) ||
-                        !(new File(m_qtLibsRootPath+"style").exists()))
+                        !(new File(m_slot.qtPath()+"style").exists()))
                 {
                     m_message = getResources().getString(R.string.extracting_look_n_feel_msg);
                     publishProgress(m_message);
-                    new ExtractStyle(MinistroActivity.this, m_qtLibsRootPath+"style/");
+                    reportProgress(MinistroService.PHASE_STYLE, 0, 0, null);
+                    InstallSlots.delete(new File(m_slot.qtPath()+"style")); // don't write into the links to the current slot
+                    new ExtractStyle(MinistroActivity.this, m_slot.qtPath()+"style/");
+                    m_changed = true;
                     SharedPreferences.Editor editor= preferences.edit();
                     editor.putString("MINISTRO_VERSION",getPackageManager().getPackageInfo(getPackageName(), 0).versionName);
                     editor.commit();
                 }
 
-                ArrayList<Library> libraries;
+                List<Library> libraries;
                 if (update[0])
                 {
                     if (oldVersion!=version)
-                        libraries = MinistroService.instance().getDownloadedLibraries();
+                        libraries = catalog.downloaded;
                     else
                         return version;
                 }
                 else
-                    libraries = MinistroService.instance().getAvailableLibraries();
+                    libraries = catalog.available;
 
                 ArrayList<String> notFoundModules = new ArrayList<String>();
                 if (m_modules!=null)
                     MinistroService.instance().checkModules(m_modules, notFoundModules);
 
-                dom = builder.parse(new FileInputStream(MinistroService.instance().getVersionXmlFile()));
-
-                factory = DocumentBuilderFactory.newInstance();
-                builder = factory.newDocumentBuilder();
-                root = dom.getDocumentElement();
-                root.normalize();
+                LibrariesManifest manifest = MinistroService.loadManifest(m_slot);
 
                 // extract device root certificates
                 if (!preferences.getString("CODENAME", "").equals(android.os.Build.VERSION.CODENAME) ||
@@ -661,16 +772,26 @@ public class MinistroActivity extends Activity
                 {
                     m_message = getResources().getString(R.string.extracting_SSL_msg);
                     publishProgress(m_message);
-                    String environmentVariables=root.getAttribute("environmentVariables");
-                    environmentVariables=environmentVariables.replaceAll("MINISTRO_PATH", "");
+                    String environmentVariables=manifest.environmentVariables;
                     String environmentVariablesList[]=environmentVariables.split("\t");
                     for (int i=0;i<environmentVariablesList.length;i++)
                     {
                         String environmentVariable[]=environmentVariablesList[i].split("=");
                         if (environmentVariable[0].equals("MINISTRO_SSL_CERTS_PATH"))
                         {
-                            String path=Library.mkdirParents(getFilesDir().getAbsolutePath(),environmentVariable[1], 0);
-                            Library.removeAllFiles(path);
+                            // MINISTRO_PATH/qt/ is the library tree of the staged slot, as in
+                            // MinistroService.refreshLibraries, the committed slots never change
+                            String rootPath=getFilesDir().getAbsolutePath();
+                            String certsPath=environmentVariable[1];
+                            if (certsPath.startsWith("MINISTRO_PATH/qt/"))
+                            {
+                                rootPath=new File(m_slot.qtPath()).getAbsolutePath();
+                                certsPath=certsPath.substring("MINISTRO_PATH/qt/".length());
+                            }
+                            else
+                                certsPath=certsPath.replaceAll("MINISTRO_PATH", "");
+                            InstallSlots.delete(new File(rootPath+"/"+certsPath)); // don't write into the links to the current slot
+                            String path=Library.mkdirParents(rootPath, certsPath, 0);
                             try
                             {
                                 KeyStore ks = null;
@@ -718,48 +839,32 @@ public class MinistroActivity extends Activity
                             } catch (CertificateException e) {
                                 e.printStackTrace();
                             }
-                            SharedPreferences.Editor editor= preferences.edit();
-                            editor.putString("CODENAME",android.os.Build.VERSION.CODENAME);
-                            editor.putString("INCREMENTAL", android.os.Build.VERSION.INCREMENTAL);
-                            editor.putString("RELEASE", android.os.Build.VERSION.RELEASE);
-                            editor.commit();
+                            m_changed = true;
+                            m_certificatesExtracted = true; // remembered once the slot is committed
                             break;
                         }
                     }
                 }
 
-                Node node = root.getFirstChild();
-                while(node != null)
+                for (Library lib: manifest.libraries)
                 {
-                    if (node.getNodeType() == Node.ELEMENT_NODE)
-                    {
-                        Library lib= Library.getLibrary((Element)node, true);
-                        if (update[0])
-                        { // check for updates
-                            for (int j=0;j<libraries.size();j++)
-                                if (libraries.get(j).name.equals(lib.name))
-                                {
-                                    newLibs.add(lib);
-                                    break;
-                                }
-                        }
-                        else
-                        {// download missing libraries
-                            for(String module : notFoundModules)
-                                if (module.equals(lib.name))
-                                {
-                                    newLibs.add(lib);
-                                    break;
-                                }
-                        }
+                    if (update[0])
+                    { // check for updates
+                        for (int j=0;j<libraries.size();j++)
+                            if (libraries.get(j).name.equals(lib.name))
+                            {
+                                newLibs.add(lib);
+                                break;
+                            }
                     }
-
-                    // Workaround for an unbelievable bug !!!
-                    try {
-                        node = node.getNextSibling();
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                        break;
+                    else
+                    {// download missing libraries
+                        for(String module : notFoundModules)
+                            if (module.equals(lib.name))
+                            {
+                                newLibs.add(lib);
+                                break;
+                            }
                     }
                 }
                 return version;
@@ -767,7 +872,7 @@ public class MinistroActivity extends Activity
                 e.printStackTrace();
             } catch (IOException e) {
                 e.printStackTrace();
-            } catch (ParserConfigurationException e) {
+            } catch (XmlPullParserException e) {
                 e.printStackTrace();
             } catch (IllegalStateException e) {
                 e.printStackTrace();
@@ -780,6 +885,7 @@ public class MinistroActivity extends Activity
         @Override
         protected void onProgressUpdate(String... messages)
         {
+            keepAlive();
             try
             {
                 if (null != m_dialog)
@@ -811,10 +917,12 @@ public class MinistroActivity extends Activity
             {
                 Library[] libs = new Library[newLibs.size()];
                 libs = newLibs.toArray(libs);
-                new DownloadManager().execute(libs);
+                new DownloadManager(m_slot).execute(libs);
             }
             else
-                finishMe();
+            {
+                new FinishInstall(m_slot, m_changed && result>0, true).execute();
+            }
             super.onPostExecute(result);
         }
     }
@@ -824,10 +932,6 @@ public class MinistroActivity extends Activity
     {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.main);
-        m_qtLibsRootPath = getFilesDir().getAbsolutePath()+"/qt/";
-        File dir=new File(m_qtLibsRootPath);
-        dir.mkdirs();
-        nativeChmode(m_qtLibsRootPath, 0755);
         bindService(new Intent("org.kde.necessitas.ministro.IMinistro"), m_ministroConnection, Context.BIND_AUTO_CREATE);
         PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
         m_wakeLock = pm.newWakeLock(PowerManager.SCREEN_DIM_WAKE_LOCK, "Ministro");
@@ -19,19 +19,18 @@ package org.kde.necessitas.ministro;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
@@ -39,7 +38,6 @@ import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
@@ -54,6 +52,17 @@ public class MinistroService extends Service
     private static final String MINISTRO_CHECK_FREQUENCY_KEY="CHECKFREQUENCY";
     private static final String MINISTRO_REPOSITORY_KEY="REPOSITORY";
     private static final String MINISTRO_DEFAULT_REPOSITORY="stable";
+    private static final String MINISTRO_MAX_TRANSFERS_KEY="MAXTRANSFERS";
+    private static final int MINISTRO_DEFAULT_MAX_TRANSFERS=3; // concurrent downloads
+    private static final String MINISTRO_MIRRORS_KEY="MIRRORS";
+    private static final String MINISTRO_PARANOID_CHECK_KEY="PARANOIDCHECK";
+    private static final String MINISTRO_UNUSED_DAYS_KEY="UNUSEDDAYS";
+    private static final int MINISTRO_DEFAULT_UNUSED_DAYS=60; // remove libraries which weren't used for two months
+    private static final String MINISTRO_MIN_FREE_SPACE_KEY="MINFREESPACE";
+    private static final int MINISTRO_DEFAULT_MIN_FREE_SPACE=32; // Mb
+    private static final String MINISTRO_MAX_PENDING_KEY="MAXPENDING";
+    private static final int MINISTRO_DEFAULT_MAX_PENDING=16; // retrievals
+    private static final long SWEEP_INTERVAL=60*1000; // how often the expired retrievals are failed
 
     /// Ministro server parameter keys
     private static final String REQUIRED_MODULES_KEY="required.modules";
@@ -74,14 +83,39 @@ public class MinistroService extends Service
     private static final String ENVIRONMENT_VARIABLES_KEY="environment.variables";
     private static final String APPLICATION_PARAMETERS_KEY="application.parameters";
     private static final String QT_VERSION_PARAMETER_KEY="qt.version.parameter";
+    private static final String LOADER_PARAMS_LIST_KEY="loader.params.list";
+    private static final String MISSING_MODULES_KEY="missing.modules";
     /// loader parameter keys
 
+    /// state keys
+    private static final String MINISTRO_API_LEVEL_KEY="ministro.api.level";
+    private static final String REPOSITORY_VERSION_KEY="repository.version";
+    private static final String QT_VERSION_KEY="qt.version";
+    private static final String INSTALLED_MODULES_KEY="installed.modules";
+    private static final String AVAILABLE_MODULES_KEY="available.modules";
+    private static final String PENDING_RETRIEVALS_KEY="pending.retrievals";
+    /// state keys
+
+    /// progress keys and phases
+    private static final String PROGRESS_PHASE_KEY="progress.phase";
+    private static final String PROGRESS_DONE_KEY="progress.done";
+    private static final String PROGRESS_TOTAL_KEY="progress.total";
+    private static final String PROGRESS_LIBRARY_KEY="progress.library";
+    private static final String PROGRESS_ELAPSED_KEY="progress.elapsed";
+    static final String PHASE_MANIFEST="manifest";
+    static final String PHASE_STYLE="style";
+    static final String PHASE_DOWNLOAD="download";
+    static final String PHASE_INSTALL="install";
+    /// progress keys and phases
+
     /// loader error codes
     private static final int EC_NO_ERROR=0;
     private static final int EC_INCOMPATIBLE=1;
     private static final int EC_NOT_FOUND=2;
     private static final int EC_INVALID_PARAMETERS=3;
     private static final int EC_INVALID_QT_VERSION=3;
+    private static final int EC_TIMEOUT=4; // the retrieval didn't finish in time
+    private static final int EC_BUSY=5; // too many pending retrievals
     /// loader error codes
 
 
@@ -98,6 +132,7 @@ public class MinistroService extends Service
         editor.putString(MINISTRO_REPOSITORY_KEY,value);
         editor.putLong(MINISTRO_CHECK_UPDATES_KEY,0);
         editor.commit();
+        rescheduleUpdateCheck();
     }
 
     public static Long getCheckFrequency(Context c)
@@ -113,17 +148,130 @@ public class MinistroService extends Service
         editor.putLong(MINISTRO_CHECK_FREQUENCY_KEY, value*24*3600*1000);
         editor.putLong(MINISTRO_CHECK_UPDATES_KEY,0);
         editor.commit();
+        rescheduleUpdateCheck();
+    }
+
+    public static long getLastCheck(Context c)
+    {
+        SharedPreferences preferences=c.getSharedPreferences("Ministro", MODE_PRIVATE);
+        return preferences.getLong(MINISTRO_CHECK_UPDATES_KEY, 0);
+    }
+
+    public static void setLastCheck(Context c, long value)
+    {
+        SharedPreferences preferences=c.getSharedPreferences("Ministro", MODE_PRIVATE);
+        SharedPreferences.Editor editor= preferences.edit();
+        editor.putLong(MINISTRO_CHECK_UPDATES_KEY, value);
+        editor.commit();
+    }
+
+    private static void rescheduleUpdateCheck()
+    {
+        MinistroService service = m_instance;
+        if (null != service && null != service.m_updateScheduler)
+            service.m_updateScheduler.schedule();
+    }
+
+    public static int getMaxTransfers(Context c)
+    {
+        SharedPreferences preferences=c.getSharedPreferences("Ministro", MODE_PRIVATE);
+        return preferences.getInt(MINISTRO_MAX_TRANSFERS_KEY, MINISTRO_DEFAULT_MAX_TRANSFERS);
+    }
+
+    public static void setMaxTransfers(Context c, int value)
+    {
+        SharedPreferences preferences=c.getSharedPreferences("Ministro", MODE_PRIVATE);
+        SharedPreferences.Editor editor= preferences.edit();
+        editor.putInt(MINISTRO_MAX_TRANSFERS_KEY, value);
+        editor.commit();
+        HttpTransfer.setPoolSize(value);
+    }
+
+    // if set, the update check hashes all the libraries instead of trusting the digest cache
+    public static boolean getParanoidCheck(Context c)
+    {
+        SharedPreferences preferences=c.getSharedPreferences("Ministro", MODE_PRIVATE);
+        return preferences.getBoolean(MINISTRO_PARANOID_CHECK_KEY, false);
+    }
+
+    public static void setParanoidCheck(Context c, boolean value)
+    {
+        SharedPreferences preferences=c.getSharedPreferences("Ministro", MODE_PRIVATE);
+        SharedPreferences.Editor editor= preferences.edit();
+        editor.putBoolean(MINISTRO_PARANOID_CHECK_KEY, value);
+        editor.commit();
+    }
+
+    // libraries which weren't used for that many days are removed
+    public static int getUnusedDays(Context c)
+    {
+        SharedPreferences preferences=c.getSharedPreferences("Ministro", MODE_PRIVATE);
+        return preferences.getInt(MINISTRO_UNUSED_DAYS_KEY, MINISTRO_DEFAULT_UNUSED_DAYS);
+    }
+
+    public static void setUnusedDays(Context c, int value)
+    {
+        SharedPreferences preferences=c.getSharedPreferences("Ministro", MODE_PRIVATE);
+        SharedPreferences.Editor editor= preferences.edit();
+        editor.putInt(MINISTRO_UNUSED_DAYS_KEY, value);
+        editor.commit();
+    }
+
+    // while the free space (in Mb) is below that, the least recently used libraries are removed
+    public static int getMinFreeSpace(Context c)
+    {
+        SharedPreferences preferences=c.getSharedPreferences("Ministro", MODE_PRIVATE);
+        return preferences.getInt(MINISTRO_MIN_FREE_SPACE_KEY, MINISTRO_DEFAULT_MIN_FREE_SPACE);
+    }
+
+    public static void setMinFreeSpace(Context c, int value)
+    {
+        SharedPreferences preferences=c.getSharedPreferences("Ministro", MODE_PRIVATE);
+        SharedPreferences.Editor editor= preferences.edit();
+        editor.putInt(MINISTRO_MIN_FREE_SPACE_KEY, value);
+        editor.commit();
+    }
+
+    // the maximum number of retrievals which wait for their activity
+    public static int getMaxPending(Context c)
+    {
+        SharedPreferences preferences=c.getSharedPreferences("Ministro", MODE_PRIVATE);
+        return preferences.getInt(MINISTRO_MAX_PENDING_KEY, MINISTRO_DEFAULT_MAX_PENDING);
+    }
+
+    public static void setMaxPending(Context c, int value)
+    {
+        SharedPreferences preferences=c.getSharedPreferences("Ministro", MODE_PRIVATE);
+        SharedPreferences.Editor editor= preferences.edit();
+        editor.putInt(MINISTRO_MAX_PENDING_KEY, value);
+        editor.commit();
+    }
+
+    // whitespace separated list of repository mirrors, in addition to the default one
+    public static String getMirrors(Context c)
+    {
+        SharedPreferences preferences=c.getSharedPreferences("Ministro", MODE_PRIVATE);
+        return preferences.getString(MINISTRO_MIRRORS_KEY, "");
+    }
+
+    public static void setMirrors(Context c, String value)
+    {
+        SharedPreferences preferences=c.getSharedPreferences("Ministro", MODE_PRIVATE);
+        SharedPreferences.Editor editor= preferences.edit();
+        editor.putString(MINISTRO_MIRRORS_KEY, value);
+        editor.commit();
+        if (null != m_instance)
+            m_instance.m_mirrorList = new MirrorList(m_instance);
     }
 
     // used to check Ministro Service compatibility
     private static final int MINISTRO_MIN_API_LEVEL=1;
-    private static final int MINISTRO_MAX_API_LEVEL=2;
+    private static final int MINISTRO_MAX_API_LEVEL=4;
+    private static final int PROGRESS_API_LEVEL=4; // clients which ask for this level get progress callbacks
+    private static final long PROGRESS_INTERVAL=250; // ms between two progress callbacks of a retrieval
 
     // MinistroService instance, its used by MinistroActivity to directly access services data (e.g. libraries)
     private static MinistroService m_instance = null;
-    private String m_environmentVariables = null;
-    private String m_applicationParams = null;
-    private String m_loaderClassName = null;
     private String m_pathSeparator = null;
     public static MinistroService instance()
     {
@@ -135,36 +283,53 @@ public class MinistroService extends Service
         m_instance = this;
     }
 
-    private int m_actionId=0; // last actions id
     private Handler m_handler = null;
+    private UpdateScheduler m_updateScheduler = null;
+    private DigestCache m_digestCache = null; // SHA-1 sums of the verified libraries
+    private ObjectStore m_objectStore = null; // content of the installed and replaced libraries
+    private LibraryUsage m_usage = null; // which clients resolved which modules
 
-    // current downloaded libraries
-    private final ArrayList<Library> m_downloadedLibraries = new ArrayList<Library>();
+    // the libraries of the current slot, replaced as a whole by refreshLibraries
+    private volatile LibraryCatalog m_catalog = null;
 
-    ArrayList<Library> getDownloadedLibraries()
+    /**
+    * Returns the current catalog, it never changes, a refresh publishes a new one.
+    */
+    LibraryCatalog getCatalog()
     {
-        synchronized (this)
-        {
-            return m_downloadedLibraries;
-        }
+        return m_catalog;
     }
 
-    // current available libraries
-    private final ArrayList<Library> m_availableLibraries = new ArrayList<Library>();
-    ArrayList<Library> getAvailableLibraries()
+    List<Library> getDownloadedLibraries()
     {
-        synchronized (this)
-        {
-            return m_availableLibraries;
-        }
+        return m_catalog.downloaded;
     }
 
-    class CheckForUpdates extends AsyncTask<Void, Void, Void>
+    // finished checkModules results, keyed by the canonical module set
+    private static final int RESOLUTION_CACHE_SIZE=32;
+    @SuppressWarnings("serial")
+    private final LinkedHashMap<String, Bundle> m_resolutionCache = new LinkedHashMap<String, Bundle>(16, 0.75f, true)
     {
         @Override
-        protected void onPreExecute()
+        protected boolean removeEldestEntry(Map.Entry<String, Bundle> eldest)
         {
-            if (m_version<MinistroActivity.downloadVersionXmlFile(MinistroService.this, true))
+            return size() > RESOLUTION_CACHE_SIZE;
+        }
+    };
+    private int m_resolutionCacheGeneration = 0;
+
+    List<Library> getAvailableLibraries()
+    {
+        return m_catalog.available;
+    }
+
+    /**
+    * Tells the user that newer Qt libraries are available, can be called from any thread.
+    */
+    void notifyUpdate()
+    {
+        m_handler.post(new Runnable() {
+            public void run()
             {
                 NotificationManager nm = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
 
@@ -189,176 +354,493 @@ public class MinistroService extends Service
                     e.printStackTrace();
                 }
             }
+        });
+    }
+
+
+    /**
+    * Checks the SHA-1 of the installed libraries, only the files which changed since their
+    * last verification are hashed unless <code>paranoid</code> is set.
+    *
+    * @return the files which don't have the expected SHA-1
+    */
+    private Set<String> verifyLibraries(String rootPath, List<Library> libraries, boolean paranoid) throws InterruptedException
+    {
+        LinkedHashMap<String, byte[]> files = new LinkedHashMap<String, byte[]>();
+        HashMap<String, DigestCache.Stat> stats = new HashMap<String, DigestCache.Stat>();
+        HashSet<String> keys = new HashSet<String>();
+        for (Library lib: libraries)
+        {
+            String fileName = rootPath + lib.filePath;
+            keys.add(lib.filePath);
+            DigestCache.Stat stat = DigestCache.stat(fileName);
+            if (null == stat || (!paranoid && m_digestCache.isVerified(lib.filePath, stat, lib.sha1)))
+                continue;
+            files.put(fileName, lib.sha1);
+            stats.put(fileName, stat);
         }
+        m_digestCache.retainOnly(keys);
 
-        @Override
-        protected Void doInBackground(Void... params) {
-            return null;
+        Set<String> badFiles = new HashSet<String>();
+        for (LibraryVerifier.Result result: new LibraryVerifier().verify(files))
+        {
+            String key = result.fileName.substring(rootPath.length());
+            if (result.ok)
+                m_digestCache.verified(key, stats.get(result.fileName), result.sha1);
+            else if (null != result.error)
+                Log.e(TAG, "Can't verify " + result.fileName + ": " + result.error.getMessage());
+            else if (result.exists)
+            {
+                Log.e(TAG, "sha1 mismatch, the file " + result.fileName + " will be removed");
+                m_digestCache.remove(key);
+                m_objectStore.damaged(result.fileName, result.sha1);
+                badFiles.add(result.fileName);
+            }
         }
+        m_digestCache.save();
+        return badFiles;
     }
 
+    // the SHA-1 sums of all the files of libraries
+    private static ArrayList<byte[]> librarySha1s(List<Library> libraries)
+    {
+        ArrayList<byte[]> sha1s = new ArrayList<byte[]>();
+        for (Library lib: libraries)
+        {
+            sha1s.add(lib.sha1);
+            if (lib.needs != null)
+                for (NeedsStruct need: lib.needs)
+                    sha1s.add(need.sha1);
+        }
+        return sha1s;
+    }
+
+    private long m_refreshes = 0; // refreshLibraries calls so far, guarded by this
+    private long m_publishedRefresh = 0; // the refreshLibraries call which published m_catalog, guarded by this
 
-    // this method reload all downloaded libraries
-    synchronized ArrayList<Library> refreshLibraries(boolean checkCrc)
+    // this method reload all downloaded libraries, readers see the new catalog once it is complete.
+    // The libraries are verified without holding any lock, only publishing the catalog is
+    // synchronized, a refresh which started earlier never replaces the catalog of a later one.
+    LibraryCatalog refreshLibraries(boolean checkCrc)
     {
+        return refreshLibraries(checkCrc, true);
+    }
+
+    private LibraryCatalog refreshLibraries(boolean checkCrc, boolean repair)
+    {
+        ArrayList<String> brokenFiles = new ArrayList<String>(); // removed in a new slot, clients map the current one
+        long refresh;
         synchronized (this)
         {
+            refresh = ++m_refreshes;
+        }
+        InstallSlots.Slot slot = m_slots.current();
+        LibraryCatalog catalog = LibraryCatalog.empty(slot);
+        try
+        {
+            if (! (new File(slot.versionXmlFile())).exists())
+                return catalog;
+            LibrariesManifest manifest;
             try
             {
-                m_downloadedLibraries.clear();
-                m_availableLibraries.clear();
-                if (! (new File(m_versionXmlFile)).exists())
-                    return m_downloadedLibraries;
-                DocumentBuilderFactory documentFactory = DocumentBuilderFactory.newInstance();
-                DocumentBuilder documentBuilder = documentFactory.newDocumentBuilder();
-                Document dom = documentBuilder.parse(new FileInputStream(m_versionXmlFile));
-                Element root = dom.getDocumentElement();
-                m_version = Double.valueOf(root.getAttribute("version"));
-                m_loaderClassName=root.getAttribute("loaderClassName");
-                m_applicationParams=root.getAttribute("applicationParameters");
-                m_applicationParams=m_applicationParams.replaceAll("MINISTRO_PATH", getFilesDir().getAbsolutePath());
-                m_environmentVariables=root.getAttribute("environmentVariables");
-                m_environmentVariables=m_environmentVariables.replaceAll("MINISTRO_PATH", getFilesDir().getAbsolutePath());
-                m_environmentVariables="MINISTRO_ANDROID_STYLE_PATH="+m_qtLibsRootPath+"style/\t"+m_environmentVariables;
-                if (root.hasAttribute("qtVersion"))
-                    m_qtVersion = Integer.valueOf(root.getAttribute("qtVersion"));
-                root.normalize();
-                Node node = root.getFirstChild();
-                while(node != null)
+                manifest = loadManifest(slot);
+            }
+            catch (Exception e)
+            {
+                // slots are only committed with a valid manifest, something damaged this one
+                InstallSlots.Slot previous = m_slots.previous();
+                if (null == previous || !new File(previous.versionXmlFile()).exists())
+                    throw e;
+                manifest = loadManifest(previous);
+                if (!m_slots.rollback())
+                    throw e;
+                slot = previous;
+                catalog = LibraryCatalog.empty(slot);
+            }
+            String qtLibsRootPath = slot.qtPath();
+            String applicationParams=manifest.applicationParameters;
+            applicationParams=applicationParams.replace("MINISTRO_PATH/qt/", qtLibsRootPath);
+            applicationParams=applicationParams.replaceAll("MINISTRO_PATH", getFilesDir().getAbsolutePath());
+            String environmentVariables=manifest.environmentVariables;
+            environmentVariables=environmentVariables.replace("MINISTRO_PATH/qt/", qtLibsRootPath);
+            environmentVariables=environmentVariables.replaceAll("MINISTRO_PATH", getFilesDir().getAbsolutePath());
+            environmentVariables="MINISTRO_ANDROID_STYLE_PATH="+qtLibsRootPath+"style/\t"+environmentVariables;
+            double qtVersion = LibraryCatalog.DEFAULT_QT_VERSION;
+            if (manifest.qtVersion != null)
+                qtVersion = Integer.valueOf(manifest.qtVersion);
+            Set<String> badFiles = new HashSet<String>();
+            if (checkCrc)
+                badFiles = verifyLibraries(qtLibsRootPath, manifest.libraries, getParanoidCheck(this));
+            ArrayList<Library> downloaded = new ArrayList<Library>();
+            for (Library lib: manifest.libraries)
+            {
+                File file=new File(qtLibsRootPath + lib.filePath);
+                if (file.exists())
                 {
-                    if (node.getNodeType() == Node.ELEMENT_NODE)
+                    if (badFiles.contains(qtLibsRootPath + lib.filePath))
+                        brokenFiles.add(lib.filePath);
+                    else
                     {
-                        Library lib= Library.getLibrary((Element)node, true);
-                        File file=new File(m_qtLibsRootPath + lib.filePath);
-                        if (file.exists())
-                        {
-                            if (checkCrc && !Library.checkCRC(file.getAbsolutePath(), lib.sha1))
-                                file.delete();
-                            else
-                            {
 
-                                boolean allOk = true;
-                                if (lib.needs != null)
+                        boolean allOk = true;
+                        if (lib.needs != null)
+                        {
+                            for(NeedsStruct needed: lib.needs)// check if its needed files are available
+                                if (needed.type != null && needed.type.equals("jar"))
                                 {
-                                    for(NeedsStruct needed: lib.needs)// check if its needed files are available
-                                        if (needed.type != null && needed.type.equals("jar"))
-                                        {
-                                            File f=new File(m_qtLibsRootPath + needed.filePath);
-                                            if (!f.exists())
-                                            {
-                                                allOk = false;
-                                                break;
-                                            }
-                                        }
-                                    if (!allOk)
+                                    File f=new File(qtLibsRootPath + needed.filePath);
+                                    if (!f.exists())
                                     {
-                                        for(NeedsStruct needed: lib.needs)// remove all needed files
-                                            if (needed.type != null && needed.type.equals("jar"))
-                                            {
-                                                try {
-                                                    File f=new File(m_qtLibsRootPath + needed.filePath);
-                                                    if (f.exists())
-                                                        f.delete();
-                                                } catch (Exception e)
-                                                {
-                                                    e.printStackTrace();
-                                                }
-                                            }
-                                        file.delete(); // delete the parent
+                                        allOk = false;
+                                        break;
                                     }
                                 }
-                                if (allOk)
-                                    m_downloadedLibraries.add(lib);
+                            if (!allOk)
+                            {
+                                for(NeedsStruct needed: lib.needs)// remove all needed files
+                                    if (needed.type != null && needed.type.equals("jar"))
+                                        brokenFiles.add(needed.filePath);
+                                brokenFiles.add(lib.filePath); // remove the parent
                             }
                         }
-                        m_availableLibraries.add(lib);
-                    }
-                    // Workaround for an unbelievable bug !!!
-                    try {
-                        node = node.getNextSibling();
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                        break;
+                        if (allOk)
+                            downloaded.add(lib);
                     }
                 }
-            } catch (Exception e) {
+            }
+            catalog = new LibraryCatalog(slot, manifest.version, qtVersion, manifest.loaderClassName
+                                            , applicationParams, environmentVariables, downloaded, manifest.libraries);
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            if (!catalog.graph.cycles().isEmpty())
+                Log.e(TAG, "Dependency cycle between: " + Library.join(catalog.graph.cycles(), ", "));
+            synchronized (this)
+            {
+                if (refresh > m_publishedRefresh)
+                {
+                    m_publishedRefresh = refresh;
+                    m_catalog = catalog;
+                    m_objectStore.setRoots(getRepository(this), librarySha1s(catalog.downloaded));
+
+                    // the libraries are complete now, drop everything resolved before or during the refresh
+                    invalidateResolutionCache();
+                }
+                catalog = m_catalog;
+            }
+        }
+        if (repair && !brokenFiles.isEmpty() && removeBrokenFiles(slot, brokenFiles))
+            return refreshLibraries(false, false);
+        return catalog;
+    }
+
+    // removes files from a new slot made from slot, returns true if it was committed
+    private boolean removeBrokenFiles(InstallSlots.Slot slot, List<String> files)
+    {
+        if (!slot.name.equals(m_slots.current().name))
+            return false; // somebody committed meanwhile, the next refresh checks the new slot
+        InstallSlots.Slot staged = null;
+        try
+        {
+            staged = m_slots.stage();
+            for (String fileName: files)
+            {
+                File file = new File(staged.qtPath() + fileName);
+                if (file.exists() && !file.delete())
+                    Log.e(TAG, "Can't remove " + file);
+            }
+            Log.i(TAG, "Removing " + files.size() + " broken files");
+            return m_slots.commit(staged);
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+            if (null != staged)
+                m_slots.discard(staged);
+        }
+        return false;
+    }
+
+    /**
+    * Removes the downloaded libraries which no client used for {@link #getUnusedDays(Context)}
+    * days and, while the free space is below {@link #getMinFreeSpace(Context)}, the least
+    * recently used ones (see {@link LibraryCollector}). The libraries needed by the requests
+    * which are in progress are kept.
+    *
+    * <p>The libraries are removed in a new install slot. Only if the free space is still too
+    * low afterwards the previous slot is removed as well, its links keep the files.</p>
+    *
+    * @return the number of removed libraries
+    */
+    int collectUnusedLibraries()
+    {
+        long minFree = getMinFreeSpace(this)*1024l*1024;
+        long bytesToFree = Math.max(0, minFree - DownloadPlanner.availableSpace(getFilesDir()));
+        int removed = collectUnusedLibraries(bytesToFree, null, null);
+        if (bytesToFree > 0 && DownloadPlanner.availableSpace(getFilesDir()) < minFree)
+            dropRollbackSlot();
+        return removed;
+    }
+
+    /**
+    * Frees disk space for an install. The objects nobody needs are removed first, then, if
+    * that isn't enough, the least recently used libraries. The previous install slot, which
+    * is kept for a rollback, is only removed as a last resort.
+    *
+    * @param bytes how many bytes must be freed
+    * @param staged the slot which is being installed, the removed libraries are removed from it too
+    * @param keepModules the modules which are being installed
+    * @return true if the space was freed
+    */
+    boolean reclaimSpace(long bytes, InstallSlots.Slot staged, Collection<String> keepModules)
+    {
+        long wanted = DownloadPlanner.availableSpace(getFilesDir()) + bytes;
+        m_objectStore.collectGarbage();
+        long available = DownloadPlanner.availableSpace(getFilesDir());
+        if (available < wanted)
+        {
+            collectUnusedLibraries(wanted - available, staged, keepModules);
+            available = DownloadPlanner.availableSpace(getFilesDir());
+        }
+        if (available < wanted)
+        {
+            dropRollbackSlot();
+            available = DownloadPlanner.availableSpace(getFilesDir());
+        }
+        Log.i(TAG, "Reclaimed "+(available + bytes - wanted)/1024+"Kb of "+bytes/1024+"Kb");
+        return available >= wanted;
+    }
+
+    private int collectUnusedLibraries(long bytesToFree, InstallSlots.Slot staged, Collection<String> keepModules)
+    {
+        synchronized (m_collectLock)
+        {
+            LibraryCatalog catalog = m_catalog;
+            List<Library> downloaded = catalog.downloaded;
+            if (!catalog.slot.name.equals(m_slots.current().name))
+                return 0; // the new slot wasn't loaded yet
+
+            long unusedBefore = System.currentTimeMillis() - getUnusedDays(this)*24l*3600*1000;
+            ArrayList<String> protectedModules = new ArrayList<String>();
+            if (null != keepModules)
+                protectedModules.addAll(keepModules);
+            for (ActionStruct action: m_actions.actions())
+            {
+                String[] modules = action.parameters.getStringArray(REQUIRED_MODULES_KEY);
+                if (null != modules)
+                    protectedModules.addAll(Arrays.asList(modules));
+            }
+            if (null != m_prefetcher)
+                protectedModules.addAll(m_prefetcher.activeModules());
+
+            List<Library> unused = LibraryCollector.select(downloaded, catalog.graph, m_usage
+                                                            , protectedModules, unusedBefore, bytesToFree);
+            m_usage.forgetOlderThan(unusedBefore);
+            m_usage.save();
+            if (unused.isEmpty())
+                return 0;
+
+            InstallSlots.Slot slot;
+            try
+            {
+                slot = m_slots.stage();
+            }
+            catch (IOException e)
+            {
                 e.printStackTrace();
+                return 0;
             }
+            HashSet<String> neededFiles = new HashSet<String>(); // files needed by the libraries which are kept
+            for (Library lib: downloaded)
+                if (!unused.contains(lib) && lib.needs != null)
+                    for (NeedsStruct need: lib.needs)
+                        neededFiles.add(need.filePath);
+            for (Library lib: unused)
+            {
+                Log.i(TAG, "Removing unused library " + lib.name);
+                removeLibraryFiles(slot, lib, neededFiles);
+                if (null != staged)
+                    removeLibraryFiles(staged, lib, neededFiles);
+            }
+            if (!m_slots.commit(slot))
+                return 0;
+            refreshLibraries(false);
+            m_objectStore.collectGarbage();
+            return unused.size();
         }
-        return m_downloadedLibraries;
     }
 
-    // version xml file
-    private String m_versionXmlFile;
-    public String getVersionXmlFile()
+    // removes the previous slot and the objects only its links kept
+    private void dropRollbackSlot()
+    {
+        Log.i(TAG, "Removing the previous slot to free space");
+        m_slots.dropPrevious();
+        m_objectStore.collectGarbage();
+    }
+
+    // held while unused libraries are collected, from their selection until the catalog is refreshed
+    Object collectLock()
+    {
+        return m_collectLock;
+    }
+
+    private static void removeLibraryFiles(InstallSlots.Slot slot, Library lib, Set<String> neededFiles)
+    {
+        new File(slot.qtPath() + lib.filePath).delete();
+        if (lib.needs != null)
+            for (NeedsStruct need: lib.needs)
+                if (!neededFiles.contains(need.filePath))
+                    new File(slot.qtPath() + need.filePath).delete();
+    }
+
+    /**
+    * Returns the parsed version xml file of a slot.
+    *
+    * <p>The binary snapshot of the last parse is used while version xml file is unchanged,
+    * otherwise the xml is parsed and a new snapshot is written.</p>
+    */
+    static LibrariesManifest loadManifest(InstallSlots.Slot slot) throws Exception
+    {
+        File versionXmlFile = new File(slot.versionXmlFile());
+        File snapshotFile = new File(slot.versionSnapshotFile());
+        LibrariesManifest manifest = LibrariesSnapshot.load(snapshotFile, versionXmlFile);
+        if (manifest != null)
+            return manifest;
+
+        FileInputStream instream = new FileInputStream(versionXmlFile);
+        try
+        {
+            manifest = LibrariesManifest.read(instream, true);
+        }
+        finally
+        {
+            instream.close();
+        }
+        LibrariesSnapshot.save(snapshotFile, versionXmlFile, manifest);
+        return manifest;
+    }
+
+    // repository mirrors, replaced when the configured mirrors change
+    private volatile MirrorList m_mirrorList;
+    public MirrorList getMirrorList()
+    {
+        return m_mirrorList;
+    }
+
+    public ObjectStore getObjectStore()
+    {
+        return m_objectStore;
+    }
+
+    public DigestCache getDigestCache()
     {
-        return m_versionXmlFile;
+        return m_digestCache;
     }
 
-    private String m_qtLibsRootPath;
-    public String getQtLibsRootPath()
+    // install slots, the current one has the libraries in use
+    private InstallSlots m_slots;
+    public InstallSlots getInstallSlots()
     {
-        return m_qtLibsRootPath;
+        return m_slots;
     }
 
-    private double m_version = -1;
     public double getVersion()
     {
-        return m_version;
+        return m_catalog.version;
     }
 
-    private double m_qtVersion = 0x040800;
     public double getQtVersion()
     {
-        return m_qtVersion;
+        return m_catalog.qtVersion;
     }
 
     // class used to fire an action, this class is used
     // to start an activity when user needs more libraries to start its application
-    class ActionStruct
+    static class ActionStruct
     {
         ActionStruct(IMinistroCallback cb, String[] m, ArrayList<String> notFoundMoules, String appName, Bundle p)
         {
-            id=++m_actionId;
             callback = cb;
             modules = m;
             parameters = p;
+            key = null != m ? resolutionCacheKey(m) : null;
         }
-        public int id;
+        public int id; // given by the ActionRegistry
+        public volatile long deadline; // the action fails if its activity doesn't finish or make progress until then
+        public long started; // when the action was added
+        public String lastPhase = null; // phase and time of the last progress callback, guarded by the action
+        public long lastProgress = 0;
         public IMinistroCallback callback;
         public String[] modules;
         public Bundle parameters;
+        public final String key; // the canonical module set, null if other requests can't join
+        public final ArrayList<RequestExecutor.Request> joined = new ArrayList<RequestExecutor.Request>(); // requests for the same modules
     }
 
     // we can have more then one action
-    ArrayList<ActionStruct> m_actions = new ArrayList<ActionStruct>();
+    private final ActionRegistry m_actions = new ActionRegistry();
+    private boolean m_sweeping = false; // the sweeper is scheduled, only used on the main thread
+    private final Runnable m_sweeper = new Runnable() {
+        public void run()
+        {
+            for (final ActionStruct action: m_actions.removeExpired(System.currentTimeMillis()))
+            {
+                Log.e(TAG, "Retrieval "+action.id+" timed out");
+                m_requests.execute(new Runnable() {
+                    public void run()
+                    {
+                        failRetrieval(action, EC_TIMEOUT, R.string.retrieval_timeout_msg);
+                    }
+                });
+            }
+            if (m_actions.isEmpty())
+                m_sweeping = false;
+            else
+                m_handler.postDelayed(this, SWEEP_INTERVAL);
+        }
+    };
+    // posted after every new action: it runs after any sweep which could have missed the action
+    private final Runnable m_startSweeper = new Runnable() {
+        public void run()
+        {
+            if (m_sweeping)
+                return;
+            m_sweeping = true;
+            m_handler.postDelayed(m_sweeper, SWEEP_INTERVAL);
+        }
+    };
+    private RequestExecutor m_requests = null; // runs the client requests
+    private Prefetcher m_prefetcher = null; // downloads modules without user interface
+    private final Object m_collectLock = new Object(); // one collection of unused libraries at a time
 
     @Override
     public void onCreate()
     {
         m_handler = new Handler();
-        m_versionXmlFile = getFilesDir().getAbsolutePath()+"/version.xml";
-        m_qtLibsRootPath = getFilesDir().getAbsolutePath()+"/qt/";
+        m_slots = new InstallSlots(getFilesDir());
         m_pathSeparator = System.getProperty("path.separator", ":");
-        SharedPreferences preferences=getSharedPreferences("Ministro", MODE_PRIVATE);
-        long lastCheck = preferences.getLong(MINISTRO_CHECK_UPDATES_KEY,0);
-        long checkFrequency = preferences.getLong(MINISTRO_CHECK_FREQUENCY_KEY,7l*24*3600*1000);  // check once per week by default
-        if (MinistroActivity.isOnline(this) && System.currentTimeMillis()-lastCheck>checkFrequency)
-        {
-            refreshLibraries(true);
-            SharedPreferences.Editor editor= preferences.edit();
-            editor.putLong(MINISTRO_CHECK_UPDATES_KEY,System.currentTimeMillis());
-            editor.commit();
-            new CheckForUpdates().execute((Void[])null);
-        }
-        else
-            refreshLibraries(false);
+        HttpTransfer.setPoolSize(getMaxTransfers(this)); // before any connection is opened
+        m_mirrorList = new MirrorList(this);
+        m_digestCache = new DigestCache(new File(getFilesDir(), "digests.cache"));
+        m_objectStore = new ObjectStore(new File(getFilesDir(), "objects"));
+        m_usage = new LibraryUsage(new File(getFilesDir(), "library.usage"));
+        m_requests = new RequestExecutor(this);
+        m_prefetcher = new Prefetcher(this);
+        refreshLibraries(false); // the libraries are verified by the update check
+        m_updateScheduler = new UpdateScheduler(this);
+        m_updateScheduler.schedule();
         super.onCreate();
     }
 
     @Override
     public void onDestroy()
     {
+        m_updateScheduler.stop();
+        m_handler.removeCallbacks(m_startSweeper);
+        m_handler.removeCallbacks(m_sweeper);
+        m_sweeping = false;
+        m_requests.shutdown();
+        m_prefetcher.shutdown();
         super.onDestroy();
     }
 
@@ -369,8 +851,29 @@ public class MinistroService extends Service
         {
             public void requestLoader(IMinistroCallback callback, Bundle parameters) throws RemoteException
             {
+                String[] modules = parameters.getStringArray(REQUIRED_MODULES_KEY);
+                m_requests.submit(null != modules ? resolutionCacheKey(modules) : null, callback, parameters);
+            }
 
-                checkModulesImpl(callback, parameters);
+            public void requestLoaders(final IMinistroCallback callback, final Bundle[] requests) throws RemoteException
+            {
+                m_requests.execute(new Runnable() {
+                    public void run()
+                    {
+                        requestLoadersImpl(callback, requests);
+                    }
+                });
+            }
+
+            public void prefetchModules(Bundle parameters) throws RemoteException
+            {
+                if (null == requestError(parameters))
+                    m_prefetcher.prefetch(parameters.getStringArray(REQUIRED_MODULES_KEY));
+            }
+
+            public Bundle queryState(Bundle parameters) throws RemoteException
+            {
+                return queryStateImpl(parameters);
             }
         };
     }
@@ -384,18 +887,14 @@ public class MinistroService extends Service
     * @param appName
     * @param ministroApiLevel
     * @param necessitasApiLevel
+    * @param batch the requests for the same modules which share the resolution, can be null
     * @throws RemoteException
     */
-    final void checkModulesImpl(IMinistroCallback callback, Bundle parameters) throws RemoteException
+    final void checkModulesImpl(IMinistroCallback callback, Bundle parameters, RequestExecutor.Batch batch) throws RemoteException
     {
-        if (!parameters.containsKey(REQUIRED_MODULES_KEY)
-                || !parameters.containsKey(APPLICATION_TITLE_KEY)
-                || !parameters.containsKey(MINIMUM_MINISTRO_API_KEY)
-                || !parameters.containsKey(MINIMUM_QT_VERSION_KEY))
+        if (!hasRequiredParameters(parameters))
         {
-            Bundle loaderParams = new Bundle();
-            loaderParams.putInt(ERROR_CODE_KEY, EC_INVALID_PARAMETERS);
-            loaderParams.putString(ERROR_MESSAGE_KEY, getResources().getString(R.string.invalid_parameters));
+            Bundle loaderParams = errorParams(EC_INVALID_PARAMETERS, R.string.invalid_parameters);
             try
             {
                 callback.loaderReady(loaderParams);
@@ -410,14 +909,11 @@ public class MinistroService extends Service
         String[] modules = parameters.getStringArray(REQUIRED_MODULES_KEY);
         String appName = parameters.getString(APPLICATION_TITLE_KEY);
 
-        int qtApiLevel = parameters.getInt(MINIMUM_QT_VERSION_KEY);
-        if (qtApiLevel > m_qtVersion) // the application needs a newer qt version
+        if (!qtVersionAvailable(parameters)) // the application needs a newer qt version
         {
             if (parameters.getBoolean(QT_VERSION_PARAMETER_KEY, false))
             {
-                Bundle loaderParams = new Bundle();
-                loaderParams.putInt(ERROR_CODE_KEY, EC_INVALID_QT_VERSION);
-                loaderParams.putString(ERROR_MESSAGE_KEY, getResources().getString(R.string.invalid_qt_version));
+                Bundle loaderParams = errorParams(EC_INVALID_QT_VERSION, R.string.invalid_qt_version);
                 try
                 {
                     callback.loaderReady(loaderParams);
@@ -438,12 +934,10 @@ public class MinistroService extends Service
         if (parameters.containsKey(QT_PROVIDER_KEY))
             qtProvider=parameters.getString(QT_PROVIDER_KEY); // TODO add the possibility to have more than one provider
 
-        if (ministroApiLevel<MINISTRO_MIN_API_LEVEL || ministroApiLevel>MINISTRO_MAX_API_LEVEL)
+        if (!compatibleApiLevel(parameters))
         {
             // panic !!! Ministro service is not compatible, user should upgrade Ministro package
-            Bundle loaderParams = new Bundle();
-            loaderParams.putInt(ERROR_CODE_KEY, EC_INCOMPATIBLE);
-            loaderParams.putString(ERROR_MESSAGE_KEY, getResources().getString(R.string.incompatible_ministo_api));
+            Bundle loaderParams = errorParams(EC_INCOMPATIBLE, R.string.incompatible_ministo_api);
             try
             {
                 callback.loaderReady(loaderParams);
@@ -460,9 +954,11 @@ public class MinistroService extends Service
 
         // this method is called by the activity client who needs modules.
         ArrayList<String> notFoundModules = new ArrayList<String>();
-        Bundle loaderParams = checkModules(modules, notFoundModules);
+        Bundle loaderParams = null != batch ? batch.checkModules(modules, notFoundModules) : checkModules(modules, notFoundModules);
+        loaderParams = leaseResolution(loaderParams, modules, notFoundModules, callback);
         if (loaderParams.containsKey(ERROR_CODE_KEY) && EC_NO_ERROR == loaderParams.getInt(ERROR_CODE_KEY))
         {
+            m_usage.used(appName, modules);
             try
             {
                 Library.mergeBundleParameters(loaderParams, ENVIRONMENT_VARIABLES_KEY, parameters, ENVIRONMENT_VARIABLES_KEY);
@@ -481,10 +977,139 @@ public class MinistroService extends Service
         }
     }
 
+    private static boolean hasRequiredParameters(Bundle parameters)
+    {
+        return null != parameters
+                && parameters.containsKey(REQUIRED_MODULES_KEY)
+                && parameters.containsKey(APPLICATION_TITLE_KEY)
+                && parameters.containsKey(MINIMUM_MINISTRO_API_KEY)
+                && parameters.containsKey(MINIMUM_QT_VERSION_KEY);
+    }
+
+    // false if the application needs a newer qt version than the installed one
+    private boolean qtVersionAvailable(Bundle parameters)
+    {
+        return parameters.getInt(MINIMUM_QT_VERSION_KEY) <= getQtVersion();
+    }
+
+    private static boolean compatibleApiLevel(Bundle parameters)
+    {
+        int ministroApiLevel = parameters.getInt(MINIMUM_MINISTRO_API_KEY);
+        return ministroApiLevel >= MINISTRO_MIN_API_LEVEL && ministroApiLevel <= MINISTRO_MAX_API_LEVEL;
+    }
+
+    private Bundle errorParams(int errorCode, int messageId)
+    {
+        Bundle loaderParams = new Bundle();
+        loaderParams.putInt(ERROR_CODE_KEY, errorCode);
+        loaderParams.putString(ERROR_MESSAGE_KEY, getResources().getString(messageId));
+        return loaderParams;
+    }
+
+    /**
+    * Checks a request which can't start a retrieval (requestLoaders, prefetchModules and
+    * queryState) the same way {@link #checkModulesImpl(IMinistroCallback, Bundle, RequestExecutor.Batch)}
+    * does, with the same error codes. A request for a newer qt version fails at once.
+    *
+    * @return the loader params of the error, null if the request is valid
+    */
+    private Bundle requestError(Bundle parameters)
+    {
+        if (!hasRequiredParameters(parameters))
+        {
+            Log.e(TAG, "Invalid parameters: " + parameters);
+            return errorParams(EC_INVALID_PARAMETERS, R.string.invalid_parameters);
+        }
+        if (!qtVersionAvailable(parameters))
+        {
+            Log.e(TAG, "Invalid qt verson");
+            return errorParams(EC_INVALID_QT_VERSION, R.string.invalid_qt_version);
+        }
+        if (!compatibleApiLevel(parameters))
+        {
+            Log.e(TAG, "Ministro cannot satisfy API version: " + parameters.getInt(MINIMUM_MINISTRO_API_KEY));
+            return errorParams(EC_INCOMPATIBLE, R.string.incompatible_ministo_api);
+        }
+        return null;
+    }
+
+    /**
+    * Implements the {@link IMinistro.Stub#requestLoaders(IMinistroCallback, Bundle[])} service
+    * method, resolves every request without downloading anything.
+    */
+    private void requestLoadersImpl(IMinistroCallback callback, Bundle[] requests)
+    {
+        Bundle[] results = new Bundle[null != requests ? requests.length : 0];
+        for (int i=0;i<results.length;i++)
+        {
+            results[i] = requestError(requests[i]);
+            if (null != results[i])
+                continue;
+            String[] modules = requests[i].getStringArray(REQUIRED_MODULES_KEY);
+            ArrayList<String> notFoundModules = new ArrayList<String>();
+            results[i] = leaseResolution(checkModules(modules, notFoundModules), modules, notFoundModules, callback);
+            if (!notFoundModules.isEmpty())
+                results[i].putStringArray(MISSING_MODULES_KEY, notFoundModules.toArray(new String[notFoundModules.size()]));
+            Library.mergeBundleParameters(results[i], ENVIRONMENT_VARIABLES_KEY, requests[i], ENVIRONMENT_VARIABLES_KEY);
+            Library.mergeBundleParameters(results[i], APPLICATION_PARAMETERS_KEY, requests[i], APPLICATION_PARAMETERS_KEY);
+        }
+        Bundle loaderParams = new Bundle();
+        loaderParams.putParcelableArray(LOADER_PARAMS_LIST_KEY, results);
+        try
+        {
+            callback.loaderReady(loaderParams);
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+    * Implements the {@link IMinistro.Stub#queryState(Bundle)} service method, it only reads
+    * the current catalog.
+    */
+    private Bundle queryStateImpl(Bundle parameters)
+    {
+        LibraryCatalog catalog = m_catalog;
+        Bundle state = new Bundle();
+        state.putInt(MINISTRO_API_LEVEL_KEY, MINISTRO_MAX_API_LEVEL);
+        state.putDouble(REPOSITORY_VERSION_KEY, catalog.version);
+        state.putInt(QT_VERSION_KEY, (int)catalog.qtVersion);
+        state.putStringArray(INSTALLED_MODULES_KEY, libraryNames(catalog.downloaded));
+        state.putStringArray(AVAILABLE_MODULES_KEY, libraryNames(catalog.available));
+        state.putInt(PENDING_RETRIEVALS_KEY, m_actions.actions().size());
+        if (null != parameters && parameters.containsKey(REQUIRED_MODULES_KEY))
+        {
+            Bundle error = requestError(parameters);
+            if (null != error)
+            {
+                state.putAll(error);
+                return state;
+            }
+            ArrayList<String> notFoundModules = new ArrayList<String>();
+            missingModules(catalog, parameters.getStringArray(REQUIRED_MODULES_KEY), notFoundModules);
+            state.putStringArray(MISSING_MODULES_KEY, notFoundModules.toArray(new String[notFoundModules.size()]));
+            state.putInt(ERROR_CODE_KEY, EC_NO_ERROR);
+        }
+        return state;
+    }
+
+    private static String[] libraryNames(List<Library> libraries)
+    {
+        String[] names = new String[libraries.size()];
+        for (int i=0;i<names.length;i++)
+            names[i] = libraries.get(i).name;
+        return names;
+    }
+
     /**
     * Creates and sets up a {@link MinistroActivity} to retrieve the modules specified in the
     * <code>notFoundModules</code> argument.
     *
+    * <p>If the same modules are being retrieved already, the request joins that retrieval. If
+    * there are too many pending retrievals, the request fails at once.</p>
+    *
     * @param callback
     * @param modules
     * @param notFoundModules
@@ -494,8 +1119,19 @@ public class MinistroService extends Service
     private void startRetrieval(IMinistroCallback callback, String[] modules
                                 , ArrayList<String> notFoundModules, String appName, Bundle parameters) throws RemoteException
     {
+        if (null != modules && null != m_actions.join(resolutionCacheKey(modules), new RequestExecutor.Request(callback, parameters)))
+        {
+            Log.i(TAG, appName+" joins a pending retrieval");
+            return;
+        }
         ActionStruct as = new ActionStruct(callback, modules, notFoundModules, appName, parameters);
-        m_actions.add(as); // if not, lets start an activity to do it.
+        if (!m_actions.add(as, getMaxPending(this))) // if not, lets start an activity to do it.
+        {
+            Log.e(TAG, "Too many pending retrievals, "+appName+" must try again later");
+            failRetrieval(as, EC_BUSY, R.string.too_many_requests_msg);
+            return;
+        }
+        m_handler.post(m_startSweeper);
 
         final Intent intent = new Intent(MinistroService.this, MinistroActivity.class);
         intent.putExtra("id", as.id);
@@ -525,7 +1161,7 @@ public class MinistroService extends Service
         {
             // Removes the dead Activity from our list as it will never finish by itself.
             if (failed)
-                m_actions.remove(as);
+                m_actions.remove(as.id);
         }
     }
 
@@ -538,18 +1174,107 @@ public class MinistroService extends Service
     */
     void retrievalFinished(int id)
     {
-        for (int i=0;i<m_actions.size();i++)
-        {
-            ActionStruct action=m_actions.get(i);
-            if (action.id==id)
+        final ActionStruct action = m_actions.remove(id);
+        if (null == action)
+            return; // it expired, the clients got an error already
+        m_requests.execute(new Runnable() {
+            public void run()
             {
                 postRetrieval(action);
-                m_actions.remove(i);
-                break;
+            }
+        });
+    }
+
+    /**
+    * Called by a working {@link MinistroActivity}, moves the deadline of its retrieval.
+    *
+    * @param id
+    */
+    void retrievalAlive(int id)
+    {
+        m_actions.keepAlive(id);
+    }
+
+    /**
+    * Called by a working {@link MinistroActivity}, moves the deadline of its retrieval and tells
+    * the waiting applications which asked for {@link #PROGRESS_API_LEVEL} how far it is.
+    *
+    * <p>A new phase is always reported, within a phase at most one call per
+    * <code>PROGRESS_INTERVAL</code> is.</p>
+    *
+    * @param id
+    * @param phase one of the <code>PHASE_*</code> names
+    * @param done bytes done in this phase
+    * @param total bytes of this phase, 0 if unknown
+    * @param library the library which is being downloaded, can be null
+    */
+    void retrievalProgress(int id, String phase, long done, long total, String library)
+    {
+        ActionStruct action = m_actions.get(id);
+        if (null == action)
+            return;
+        m_actions.keepAlive(id);
+        long now = System.currentTimeMillis();
+        synchronized (action)
+        {
+            if (phase.equals(action.lastPhase) && now - action.lastProgress < PROGRESS_INTERVAL)
+                return;
+            action.lastPhase = phase;
+            action.lastProgress = now;
+        }
+
+        Bundle status = new Bundle();
+        status.putString(PROGRESS_PHASE_KEY, phase);
+        status.putLong(PROGRESS_DONE_KEY, done);
+        status.putLong(PROGRESS_TOTAL_KEY, total);
+        if (null != library)
+            status.putString(PROGRESS_LIBRARY_KEY, library);
+        status.putLong(PROGRESS_ELAPSED_KEY, now - action.started);
+        ArrayList<RequestExecutor.Request> requests = new ArrayList<RequestExecutor.Request>();
+        requests.add(new RequestExecutor.Request(action.callback, action.parameters));
+        requests.addAll(m_actions.joined(action));
+        for (RequestExecutor.Request request: requests)
+        {
+            if (request.parameters.getInt(MINIMUM_MINISTRO_API_KEY, 0) < PROGRESS_API_LEVEL)
+                continue; // older clients don't implement the progress method
+            try
+            {
+                request.callback.progress(status);
+            }
+            catch (Exception e)
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // the requests of an action, the action must be removed from the registry already
+    private static ArrayList<RequestExecutor.Request> requests(ActionStruct action)
+    {
+        ArrayList<RequestExecutor.Request> requests = new ArrayList<RequestExecutor.Request>();
+        requests.add(new RequestExecutor.Request(action.callback, action.parameters));
+        requests.addAll(action.joined);
+        return requests;
+    }
+
+    /**
+    * Tells all the applications which wait for action that it failed.
+    */
+    private void failRetrieval(ActionStruct action, int errorCode, int messageId)
+    {
+        for (RequestExecutor.Request request: requests(action))
+        {
+            Bundle loaderParams = new Bundle();
+            loaderParams.putInt(ERROR_CODE_KEY, errorCode);
+            loaderParams.putString(ERROR_MESSAGE_KEY, getResources().getString(messageId));
+            try
+            {
+                request.callback.loaderReady(loaderParams);
+            }
+            catch (Exception e) {
+                e.printStackTrace();
             }
         }
-        if (m_actions.size() == 0)
-            m_actionId = 0;
     }
 
     /**
@@ -557,30 +1282,39 @@ public class MinistroService extends Service
     *
     * <p>Checks the availability of the requested modules and informs
     * the requesting application about it via the {@link IMinistroCallback}
-    * instance.</p>
+    * instance, as well as the applications which joined the retrieval.</p>
     *
-    * @param callback
-    * @param modules
+    * @param action
     */
     private void postRetrieval(ActionStruct action)
     {
+        ArrayList<RequestExecutor.Request> requests = requests(action);
+        Log.i(TAG, "Retrieval "+action.id+" finished after "+(System.currentTimeMillis()-action.started)+"ms");
+
         // Does a final check whether the libraries are accessible (without caring for
         // the non-accessible ones).
-        try
+        Bundle resolved = null != action.modules ? checkModules(action.modules, null) : null;
+        for (RequestExecutor.Request request: requests)
         {
-            if (null != action.modules)
+            try
             {
-                Bundle loaderParams = checkModules(action.modules, null);
-                Library.mergeBundleParameters(loaderParams, ENVIRONMENT_VARIABLES_KEY, action.parameters, ENVIRONMENT_VARIABLES_KEY);
-                Library.mergeBundleParameters(loaderParams, APPLICATION_PARAMETERS_KEY, action.parameters, APPLICATION_PARAMETERS_KEY);
-                action.callback.loaderReady(loaderParams);
+                if (null != resolved)
+                {
+                    Bundle loaderParams = leaseResolution(new Bundle(resolved), action.modules
+                                                            , new ArrayList<String>(), request.callback);
+                    if (EC_NO_ERROR == loaderParams.getInt(ERROR_CODE_KEY))
+                        m_usage.used(request.parameters.getString(APPLICATION_TITLE_KEY), action.modules);
+                    Library.mergeBundleParameters(loaderParams, ENVIRONMENT_VARIABLES_KEY, request.parameters, ENVIRONMENT_VARIABLES_KEY);
+                    Library.mergeBundleParameters(loaderParams, APPLICATION_PARAMETERS_KEY, request.parameters, APPLICATION_PARAMETERS_KEY);
+                    request.callback.loaderReady(loaderParams);
+                }
+                else
+                    checkModulesImpl(request.callback, request.parameters, null);
+            }
+            catch (Exception e)
+            {
+                e.printStackTrace();
             }
-            else
-                checkModulesImpl(action.callback, action.parameters);
-        }
-        catch (Exception e)
-        {
-            e.printStackTrace();
         }
     }
 
@@ -590,159 +1324,179 @@ public class MinistroService extends Service
     * <p>If the <code>notFoundModules</code> argument is given, the method fills the list with
     * libraries that need to be retrieved first.</p>
     *
+    * <p>Successful resolutions are cached, keyed by the sorted set of requested modules, until
+    * the next {@link #refreshLibraries(boolean)} call.</p>
+    *
     * @param libs
     * @param notFoundModules
     * @return true if all modules are available
     */
     Bundle checkModules(String[] modules, ArrayList<String> notFoundModules)
     {
+        String cacheKey = resolutionCacheKey(modules);
+        int generation;
+        synchronized (m_resolutionCache)
+        {
+            Bundle cached = m_resolutionCache.get(cacheKey);
+            if (cached != null)
+                return new Bundle(cached);
+            generation = m_resolutionCacheGeneration;
+        }
+
         Bundle params = new Bundle();
-        boolean res=true;
-        ArrayList<Module> libs= new ArrayList<Module>();
-        Set<String> jars= new HashSet<String>();
-        for (String module: modules)
-            res = res & addModules(module, libs, notFoundModules, jars); // don't stop on first error
+        LibraryCatalog catalog = m_catalog;
+        DependencyGraph graph = catalog.graph;
+        String qtLibsRootPath = catalog.slot.qtPath();
+        DependencyGraph.Resolution resolution = graph.resolve(Arrays.asList(modules));
+        boolean res = resolution.missing.isEmpty();
+        if (notFoundModules != null)
+            addNotFoundModules(resolution.missing, catalog, notFoundModules);
 
+        // the libraries are already in load order
         ArrayList<String> librariesArray = new ArrayList<String>();
-        // sort all libraries
-        Collections.sort(libs, new ModuleCompare());
-        for (Module lib: libs)
-            librariesArray.add(m_qtLibsRootPath+lib.path);
+        Set<String> jars= new LinkedHashSet<String>();
+        for (Library lib: resolution.libraries)
+        {
+            librariesArray.add(qtLibsRootPath+lib.filePath);
+            if (lib.needs != null)
+                for(NeedsStruct needed: lib.needs)
+                    if (needed.type != null && needed.type.equals("jar"))
+                        jars.add(needed.filePath);
+        }
         params.putStringArrayList(NATIVE_LIBRARIES_KEY, librariesArray);
 
         ArrayList<String> jarsArray = new ArrayList<String>();
         for (String jar: jars)
-            jarsArray.add(m_qtLibsRootPath+jar);
+            jarsArray.add(qtLibsRootPath+jar);
         params.putString(DEX_PATH_KEY, Library.join(jarsArray, m_pathSeparator));
 
-        params.putString(LOADER_CLASS_NAME_KEY, m_loaderClassName);
-        params.putString(LIB_PATH_KEY, m_qtLibsRootPath);
-        params.putString(ENVIRONMENT_VARIABLES_KEY, m_environmentVariables);
-        params.putString(APPLICATION_PARAMETERS_KEY, m_applicationParams);
+        params.putString(LOADER_CLASS_NAME_KEY, catalog.loaderClassName);
+        params.putString(LIB_PATH_KEY, qtLibsRootPath);
+        params.putString(ENVIRONMENT_VARIABLES_KEY, catalog.environmentVariables);
+        params.putString(APPLICATION_PARAMETERS_KEY, catalog.applicationParams);
         params.putInt(ERROR_CODE_KEY, res?EC_NO_ERROR:EC_NOT_FOUND);
         if (!res)
             params.putString(ERROR_MESSAGE_KEY, getResources().getString(R.string.dependencies_error));
+        else
+        {
+            synchronized (m_resolutionCache)
+            {
+                // don't cache a result computed from libraries which were refreshed meanwhile
+                if (generation == m_resolutionCacheGeneration)
+                    m_resolutionCache.put(cacheKey, new Bundle(params));
+            }
+        }
         return params;
     }
 
-/**
-    * Helper method for the module resolution mechanism. It deals with an individual module's
-    * resolution request.
-    *
-    * <p>The method checks whether a given <em>single</em> <code>module</code> is already
-    * accessible or needs to be retrieved first. In the latter case the method returns
-    * <code>false</code>.</p>
-    *
-    * <p>The method traverses a <code>module<code>'s dependencies automatically.</p>
-    *
-    * <p>In order to find out whether a <code>module</code> is accessible the method consults
-    * the list of downloaded libraries. If found, an entry to the <code>modules</code> list is
-    * added.</p>
+    private static final int LEASE_ATTEMPTS = 3;
+
+    /**
+    * Leases the slot of a successful resolution to the client (see {@link #leaseSlot(Bundle, IMinistroCallback)}).
     *
-    * <p>In case the <code>module</code> is not immediately accessible and the <code>notFoundModules</code>
-    * argument exists, a list of available libraries is consulted to fill a list of modules which
-    * yet need to be retrieved.</p>
+    * <p>If the slot is gone, it was replaced twice since the resolution (which may come from
+    * the cache), the modules are resolved again without the cache and the new slot is leased.
+    * If that keeps failing the modules count as not found, the caller retrieves them.</p>
     *
-    * @param module
-    * @param modules
-    * @param notFoundModules
-    * @param jars
-    * @return <code>true</code> if the given module and all its dependencies are readily available.
+    * @return the leased resolution or an error
     */
-    private boolean addModules(String module, ArrayList<Module> modules
-                            , ArrayList<String> notFoundModules, Set<String> jars)
+    private Bundle leaseResolution(Bundle loaderParams, String[] modules, ArrayList<String> notFoundModules, IMinistroCallback callback)
     {
-        // Module argument is not supposed to be null at this point.
-        if (modules == null)
-            return false; // we are in deep shit if this happens
-
-        // Short-cut: If the module is already in our list of previously found modules then we do not
-        // need to consult the list of downloaded modules.
-        for (int i=0;i<modules.size();i++)
-        {
-            if (modules.get(i).name.equals(module))
-                return true;
-        }
-
-        // Consult the list of downloaded modules. If a matching entry is found, it is added to the
-        // list of readily accessible modules and its dependencies are checked via a recursive call.
-        for (Library library:m_downloadedLibraries)
+        for (int attempt=0;attempt<LEASE_ATTEMPTS;attempt++)
         {
-            if (library.name.equals(module))
+            if (EC_NO_ERROR != loaderParams.getInt(ERROR_CODE_KEY) || leaseSlot(loaderParams, callback))
+                return loaderParams;
+            synchronized (m_resolutionCache)
             {
-                Module m = new Module();
-                m.name=library.name;
-                m.path=library.filePath;
-                m.level=library.level;
-                if (library.needs != null)
-                    for(NeedsStruct needed: library.needs)
-                        if (needed.type != null && needed.type.equals("jar"))
-                            jars.add(needed.filePath);
-                modules.add(m);
-
-                boolean res = true;
-                if (library.depends != null)
-                    for (String depend: library.depends)
-                        res &= addModules(depend, modules, notFoundModules, jars);
-
-                if (library.replaces != null)
-                    for (String replaceLibrary: library.replaces)
-                        for (int mIt=0; mIt<modules.size();mIt++)
-                            if (replaceLibrary.equals(modules.get(mIt).name))
-                                modules.remove(mIt--);
-
-                return res;
+                m_resolutionCache.remove(resolutionCacheKey(modules));
             }
+            notFoundModules.clear();
+            loaderParams = checkModules(modules, notFoundModules);
         }
+        if (EC_NO_ERROR != loaderParams.getInt(ERROR_CODE_KEY) || leaseSlot(loaderParams, callback))
+            return loaderParams;
+        Log.e(TAG, "Can't lease the slot of "+loaderParams.getString(LIB_PATH_KEY));
+        return errorParams(EC_NOT_FOUND, R.string.dependencies_error);
+    }
 
-        // Requested module is not readily accessible.
-        if (notFoundModules != null)
-        {
-            // Checks list of modules which are known to not be readily accessible and returns early to
-            // prevent double entries.
-            for (int i=0;i<notFoundModules.size();i++)
-            {
-                if (notFoundModules.get(i).equals(module))
-                    return false;
-            }
+    // keeps the install slot the paths of loaderParams point into for as long as the client
+    // runs, it must not be removed by later commits while the application loads files from it
+    private boolean leaseSlot(Bundle loaderParams, IMinistroCallback callback)
+    {
+        String libPath = loaderParams.getString(LIB_PATH_KEY);
+        if (null == libPath || null == callback)
+            return true;
+        if (m_slots.lease(libPath, callback.asBinder()))
+            return true;
+        Log.w(TAG, "The slot of "+libPath+" was removed meanwhile");
+        return false;
+    }
 
-            // Deal with not yet readily accessible module's dependencies.
-            notFoundModules.add(module);
-            for (int i = 0; i< m_availableLibraries.size(); i++)
-            {
-                if (m_availableLibraries.get(i).name.equals(module))
-                {
-                    if (m_availableLibraries.get(i).depends != null)
-                        for (int depIt=0;depIt<m_availableLibraries.get(i).depends.length;depIt++)
-                            addModules(m_availableLibraries.get(i).depends[depIt], modules, notFoundModules, jars);
-                    break;
-                }
-            }
+    static String resolutionCacheKey(String[] modules)
+    {
+        String[] sortedModules = modules.clone();
+        Arrays.sort(sortedModules);
+        StringBuilder key = new StringBuilder();
+        String last = null;
+        for (String module: sortedModules)
+        {
+            if (module.equals(last))
+                continue;
+            key.append(module).append('\n');
+            last = module;
         }
-        return false;
+        return key.toString();
     }
 
-    /** Sorter for libraries.
-    *
-    * Hence the order in which the libraries have to be loaded is important, it is neccessary
-    * to sort them.
-    */
-    static private class ModuleCompare implements Comparator<Module>
+    private void invalidateResolutionCache()
     {
-        public int compare(Module a, Module b)
+        synchronized (m_resolutionCache)
         {
-            return a.level-b.level;
+            m_resolutionCache.clear();
+            ++m_resolutionCacheGeneration;
         }
     }
 
-    /** Helper class which allows manipulating libraries.
+    // adds the missing modules and their not yet downloaded dependencies to notFoundModules
+    private static void addNotFoundModules(List<String> missing, LibraryCatalog catalog, ArrayList<String> notFoundModules)
+    {
+        Set<String> notFoundSet = new HashSet<String>(notFoundModules);
+        for (String module: missing)
+            addNotFoundModules(module, catalog, notFoundModules, notFoundSet);
+    }
+
+    /**
+    * Collects the modules which must be downloaded for modules, without building loader parameters.
+    */
+    static void missingModules(LibraryCatalog catalog, String[] modules, ArrayList<String> notFoundModules)
+    {
+        addNotFoundModules(catalog.graph.resolve(Arrays.asList(modules)).missing, catalog, notFoundModules);
+    }
+
+/**
+    * Helper method for the module resolution mechanism. It collects the modules which
+    * need to be retrieved.
+    *
+    * <p>The <code>module</code> is not part of the downloaded libraries, the method adds it
+    * to the <code>notFoundModules</code> list and consults the index of available libraries
+    * to add its not yet downloaded dependencies too.</p>
     *
-    * It is similar to the {@link Library} class but has fewer fields.
+    * @param module
+    * @param catalog the downloaded and available libraries
+    * @param notFoundModules
+    * @param notFoundSet the same names as <code>notFoundModules</code>, used for lookups
     */
-    static private class Module
+    private static void addNotFoundModules(String module, LibraryCatalog catalog
+                            , ArrayList<String> notFoundModules, Set<String> notFoundSet)
     {
-        String path;
-        String name;
-        int level;
+        // Prevent double entries, downloaded modules don't need to be retrieved.
+        if (catalog.graph.contains(module) || !notFoundSet.add(module))
+            return;
+
+        notFoundModules.add(module);
+        Library library = catalog.availableIndex.get(module);
+        if (library != null && library.depends != null)
+            for (String depend: library.depends)
+                addNotFoundModules(depend, catalog, notFoundModules, notFoundSet);
     }
 }
@@ -0,0 +1,410 @@
+/*
+    Copyright (c) 2011, BogDan Vatra <bog_dan_ro@yahoo.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.kde.necessitas.ministro;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/** The mirrors of the Ministro repository, ordered by their health.
+*
+* The list is made of the default repository, the mirrors configured by the user and the
+* mirrors announced by versions.xml. All of them must have the same layout, any url which
+* starts with one of the mirrors can be fetched from every other mirror. Announced mirrors
+* must use https and are used only for the libraries, whose SHA-1 is checked against the
+* manifest. versions.xml and the manifest themselves come only from the configured mirrors.
+*
+* Every mirror has a score: the smoothed time it needs to answer a request plus a penalty
+* for every failure in a row. Failures are connection errors, any answer but 200 or 206
+* (304 only for conditional requests), e.g. the redirect of a captive portal, and transfers
+* which are too slow. The scores are kept across runs in the "MinistroMirrors" preferences
+* and are refreshed by probing all the mirrors once a day.
+*/
+class MirrorList
+{
+    private static final String TAG = "MirrorList";
+    public static final String DEFAULT_MIRROR="https://files.kde.org/necessitas/ministro/android/necessitas/";
+
+    private static final String PREFERENCES_NAME = "MinistroMirrors";
+    private static final String ANNOUNCED_MIRRORS_KEY = "ANNOUNCED";
+    private static final String LAST_PROBE_KEY = "LASTPROBE";
+    private static final String LATENCY_SUFFIX = "#latency";
+    private static final String FAILURES_SUFFIX = "#failures";
+
+    private static final long PROBE_INTERVAL = 24l*3600*1000; // probe the mirrors once per day
+    private static final int PROBE_TIMEOUT = 5000;
+    private static final float UNKNOWN_LATENCY = 1000; // ms, for mirrors which were never used
+    private static final float FAILURE_PENALTY = 10000; // ms added to the score for every failure in a row
+    private static final float SMOOTHING = 0.3f; // weight of a new latency sample
+
+    private final Context m_context;
+    private final ArrayList<String> m_configured = new ArrayList<String>(); // default and user mirrors
+    private final ArrayList<String> m_announced = new ArrayList<String>(); // mirrors from versions.xml
+    private final HashMap<String, Health> m_health = new HashMap<String, Health>();
+    private boolean m_dirty = false;
+
+    interface ConnectionSetup
+    {
+        /** Sets the request properties of a connection before it is connected. */
+        void setup(URLConnection connection);
+    }
+
+    private static class Health
+    {
+        float latency = UNKNOWN_LATENCY;
+        int failures = 0;
+    }
+
+    MirrorList(Context c)
+    {
+        m_context = c;
+        m_configured.add(DEFAULT_MIRROR);
+        for (String mirror: MinistroService.getMirrors(c).split("\\s+"))
+            addMirror(m_configured, mirror);
+
+        SharedPreferences preferences = c.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        for (String mirror: preferences.getString(ANNOUNCED_MIRRORS_KEY, "").split("\\s+"))
+            addAnnouncedMirror(mirror);
+
+        for (String mirror: mirrors())
+        {
+            Health health = new Health();
+            health.latency = preferences.getFloat(mirror+LATENCY_SUFFIX, UNKNOWN_LATENCY);
+            health.failures = preferences.getInt(mirror+FAILURES_SUFFIX, 0);
+            m_health.put(mirror, health);
+        }
+    }
+
+    private static void addMirror(List<String> mirrors, String mirror)
+    {
+        mirror = mirror.trim();
+        if (mirror.length() == 0)
+            return;
+        if (!mirror.endsWith("/"))
+            mirror += "/";
+        if (!mirrors.contains(mirror))
+            mirrors.add(mirror);
+    }
+
+    // an announced mirror comes from a download which might be tampered with, only a mirror
+    // the device can authenticate is accepted
+    private void addAnnouncedMirror(String mirror)
+    {
+        mirror = mirror.trim();
+        if (mirror.length() == 0)
+            return;
+        if (!mirror.regionMatches(true, 0, "https://", 0, "https://".length()))
+        {
+            Log.w(TAG, "Ignoring the announced mirror "+mirror+", it doesn't use https");
+            return;
+        }
+        addMirror(m_announced, mirror);
+    }
+
+    private synchronized ArrayList<String> mirrors()
+    {
+        ArrayList<String> mirrors = new ArrayList<String>(m_configured);
+        for (String mirror: m_announced)
+            if (!mirrors.contains(mirror))
+                mirrors.add(mirror);
+        return mirrors;
+    }
+
+    private synchronized Health health(String mirror)
+    {
+        Health health = m_health.get(mirror);
+        if (null == health)
+        {
+            health = new Health();
+            m_health.put(mirror, health);
+        }
+        return health;
+    }
+
+    /**
+    * Replaces the mirrors announced by versions.xml.
+    */
+    synchronized void setAnnouncedMirrors(List<String> mirrors)
+    {
+        m_announced.clear();
+        for (String mirror: mirrors)
+            addAnnouncedMirror(mirror);
+        m_dirty = true;
+    }
+
+    /**
+    * Returns the mirrors, the healthiest first.
+    */
+    synchronized List<String> ordered()
+    {
+        final ArrayList<String> mirrors = mirrors();
+        final HashMap<String, Float> scores = new HashMap<String, Float>();
+        for (String mirror: mirrors)
+        {
+            Health health = health(mirror);
+            scores.put(mirror, health.latency + health.failures*FAILURE_PENALTY);
+        }
+        final ArrayList<String> order = new ArrayList<String>(mirrors);
+        Collections.sort(order, new Comparator<String>() {
+            public int compare(String a, String b)
+            {
+                int c = scores.get(a).compareTo(scores.get(b));
+                return c != 0 ? c : mirrors.indexOf(a) - mirrors.indexOf(b);
+            }
+        });
+        return order;
+    }
+
+    // the mirror url starts with, or null
+    private String mirrorOf(String url, List<String> mirrors)
+    {
+        String found = null;
+        for (String mirror: mirrors)
+            if (url.startsWith(mirror) && (null == found || mirror.length() > found.length()))
+                found = mirror;
+        return found;
+    }
+
+    /**
+    * Returns url on every mirror, the healthiest mirror first. A url which doesn't belong
+    * to any mirror is returned as it is.
+    */
+    synchronized String[] urls(String url)
+    {
+        return urls(url, ordered());
+    }
+
+    private String[] urls(String url, List<String> mirrors)
+    {
+        String mirror = mirrorOf(url, mirrors);
+        if (null == mirror)
+            return new String[]{url};
+        String path = url.substring(mirror.length());
+        String[] urls = new String[mirrors.size()];
+        for (int i=0;i<urls.length;i++)
+            urls[i] = mirrors.get(i)+path;
+        return urls;
+    }
+
+    /**
+    * Returns the healthiest copy of url.
+    */
+    String url(String url)
+    {
+        return urls(url)[0];
+    }
+
+    /**
+    * A request to url was answered after latency milliseconds.
+    */
+    synchronized void reportSuccess(String url, long latency)
+    {
+        String mirror = mirrorOf(url, mirrors());
+        if (null == mirror)
+            return;
+        Health health = health(mirror);
+        health.latency += SMOOTHING*(latency-health.latency);
+        health.failures = 0;
+        m_dirty = true;
+    }
+
+    /**
+    * A request to url failed or was too slow.
+    */
+    synchronized void reportFailure(String url)
+    {
+        String mirror = mirrorOf(url, mirrors());
+        if (null == mirror)
+            return;
+        Log.i(TAG, "Mirror "+mirror+" failed for "+url);
+        ++health(mirror).failures;
+        m_dirty = true;
+    }
+
+    /**
+    * Connects to url on the healthiest mirror which answers, the other mirrors are tried
+    * in order if it fails.
+    *
+    * @param setup called for every connection before it is connected, may be null
+    */
+    URLConnection connect(String url, ConnectionSetup setup) throws IOException
+    {
+        return connect(urls(url), url, setup);
+    }
+
+    /**
+    * Like {@link #connect(String, ConnectionSetup)} but only the default and the user mirrors
+    * are tried, for the files which tell which libraries are trusted.
+    */
+    URLConnection connectConfigured(String url, ConnectionSetup setup) throws IOException
+    {
+        String[] urls;
+        synchronized (this)
+        {
+            List<String> configured = ordered();
+            configured.retainAll(m_configured);
+            urls = urls(url, configured);
+        }
+        return connect(urls, url, setup);
+    }
+
+    private URLConnection connect(String[] urls, String url, ConnectionSetup setup) throws IOException
+    {
+        IOException error = new IOException("No mirror for "+url);
+        for (String candidate: urls)
+        {
+            URLConnection connection = HttpTransfer.open(candidate);
+            if (null != setup)
+                setup.setup(connection);
+            boolean conditional = null != connection.getRequestProperty("If-None-Match")
+                                    || null != connection.getRequestProperty("If-Modified-Since");
+            long start = System.currentTimeMillis();
+            try
+            {
+                connection.connect();
+                if (connection instanceof HttpURLConnection
+                        && !validResponse(((HttpURLConnection)connection).getResponseCode(), conditional))
+                    throw new IOException(candidate+" "+((HttpURLConnection)connection).getResponseCode());
+                reportSuccess(candidate, System.currentTimeMillis()-start);
+                return connection;
+            }
+            catch (IOException e)
+            {
+                reportFailure(candidate);
+                if (connection instanceof HttpURLConnection)
+                    HttpTransfer.release(connection, ((HttpURLConnection)connection).getErrorStream(), true);
+                error = e;
+            }
+        }
+        throw error;
+    }
+
+    // only a complete or partial body is an answer of a healthy mirror, a 304 is
+    // one only if the request was conditional
+    private static boolean validResponse(int status, boolean conditional)
+    {
+        return status == HttpURLConnection.HTTP_OK
+                || status == HttpURLConnection.HTTP_PARTIAL
+                || (conditional && status == HttpURLConnection.HTTP_NOT_MODIFIED);
+    }
+
+    /**
+    * Probes all the mirrors if the last probe is older than a day.
+    *
+    * @param path a file which every mirror has, relative to the mirror url
+    */
+    void probeIfNeeded(String path)
+    {
+        SharedPreferences preferences = m_context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        if (System.currentTimeMillis()-preferences.getLong(LAST_PROBE_KEY, 0) < PROBE_INTERVAL)
+            return;
+        if (mirrors().size() > 1)
+            probe(path);
+        SharedPreferences.Editor editor = preferences.edit();
+        editor.putLong(LAST_PROBE_KEY, System.currentTimeMillis());
+        editor.commit();
+    }
+
+    /**
+    * Measures how long every mirror needs to answer a HEAD request for path, all mirrors
+    * are probed at the same time.
+    */
+    void probe(final String path)
+    {
+        ArrayList<Thread> probes = new ArrayList<Thread>();
+        for (final String mirror: mirrors())
+        {
+            Thread probe = new Thread() {
+                public void run()
+                {
+                    URLConnection connection = null;
+                    try
+                    {
+                        long start = System.currentTimeMillis();
+                        connection = HttpTransfer.open(mirror+path);
+                        connection.setConnectTimeout(PROBE_TIMEOUT);
+                        connection.setReadTimeout(PROBE_TIMEOUT);
+                        if (connection instanceof HttpURLConnection)
+                        {
+                            ((HttpURLConnection)connection).setRequestMethod("HEAD");
+                            if (!validResponse(((HttpURLConnection)connection).getResponseCode(), false))
+                                throw new IOException(mirror+path+" "+((HttpURLConnection)connection).getResponseCode());
+                        }
+                        else
+                            connection.connect();
+                        reportSuccess(mirror+path, System.currentTimeMillis()-start);
+                    }
+                    catch (Exception e)
+                    {
+                        reportFailure(mirror+path);
+                    }
+                    finally
+                    {
+                        if (connection instanceof HttpURLConnection)
+                            ((HttpURLConnection)connection).disconnect();
+                    }
+                }
+            };
+            probe.start();
+            probes.add(probe);
+        }
+
+        long deadline = System.currentTimeMillis()+2*PROBE_TIMEOUT;
+        for (Thread probe: probes)
+        {
+            try
+            {
+                probe.join(Math.max(1, deadline-System.currentTimeMillis()));
+            }
+            catch (InterruptedException e)
+            {
+                e.printStackTrace();
+                break;
+            }
+        }
+        save();
+    }
+
+    /**
+    * Stores the announced mirrors and the health of all mirrors.
+    */
+    synchronized void save()
+    {
+        if (!m_dirty)
+            return;
+        SharedPreferences.Editor editor = m_context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE).edit();
+        editor.putString(ANNOUNCED_MIRRORS_KEY, Library.join(m_announced, " "));
+        for (String mirror: mirrors())
+        {
+            Health health = health(mirror);
+            editor.putFloat(mirror+LATENCY_SUFFIX, health.latency);
+            editor.putInt(mirror+FAILURES_SUFFIX, health.failures);
+        }
+        editor.commit();
+        m_dirty = false;
+    }
+}
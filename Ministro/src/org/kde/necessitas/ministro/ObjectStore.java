@@ -0,0 +1,268 @@
+/*
+    Copyright (c) 2011, BogDan Vatra <bog_dan_ro@yahoo.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.kde.necessitas.ministro;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.TreeSet;
+
+import android.util.Log;
+
+/** Content addressed store of the library files, keyed by their SHA-1.
+*
+* Every installed file is also an object of the store: <code>objects/ab/cdef...</code> is a
+* hard link to the same inode, so it doesn't take any extra space. When a file is replaced
+* (new version, other repository) the old content stays in the store, a file which has to be
+* installed and whose SHA-1 is already there is linked back to its place instead of being
+* downloaded. If the filesystem can't do hard links the installed file becomes a symbolic link
+* to the object.
+*
+* Objects are immutable, files are always installed by renaming a new file over the old one.
+* Every repository records the SHA-1 sums its current manifest needs in <code>roots/</code>,
+* {@link #collectGarbage()} removes the objects which aren't needed by any repository which
+* was used in the last <code>ROOTS_EXPIRY</code>.
+*/
+class ObjectStore
+{
+    private static final String TAG = "ObjectStore";
+    private static final String ROOTS_DIR = "roots";
+    private static final long ROOTS_EXPIRY = 30l*24*3600*1000; // forget repositories unused for 30 days
+    private static final long GRACE_PERIOD = 3600*1000; // objects younger than that are never collected
+
+    private final File m_root;
+
+    ObjectStore(File root)
+    {
+        m_root = root;
+    }
+
+    File object(byte[] sha1)
+    {
+        String hex = Library.convertToHex(sha1);
+        return new File(m_root, hex.substring(0, 2)+"/"+hex.substring(2));
+    }
+
+    boolean contains(byte[] sha1)
+    {
+        return null != sha1 && object(sha1).exists();
+    }
+
+    /**
+    * Adds an installed file to the store, sha1 must be the SHA-1 of its content.
+    *
+    * @return true if the store has the content now
+    */
+    boolean add(File file, byte[] sha1)
+    {
+        if (null == sha1 || !file.exists())
+            return false;
+        File object = object(sha1);
+        if (object.exists())
+            return true;
+        object.getParentFile().mkdirs();
+        if (0 == MinistroActivity.nativeLink(file.getAbsolutePath(), object.getAbsolutePath(), false))
+            return true;
+
+        // no hard links, move the content into the store and leave a symbolic link in its place
+        if (!file.renameTo(object))
+            return object.exists();
+        if (0 != MinistroActivity.nativeLink(object.getAbsolutePath(), file.getAbsolutePath(), true))
+            Log.e(TAG, "Can't link "+file.getAbsolutePath()+" to "+object.getAbsolutePath());
+        return true;
+    }
+
+    /**
+    * Installs the object sha1 as file, the current file (if any) is replaced atomically.
+    *
+    * @return false if the store doesn't have the object or it can't be linked
+    */
+    boolean checkout(byte[] sha1, File file)
+    {
+        if (!contains(sha1))
+            return false;
+        File object = object(sha1);
+        File link = new File(file.getAbsolutePath()+".link");
+        link.delete();
+        if (0 != MinistroActivity.nativeLink(object.getAbsolutePath(), link.getAbsolutePath(), false)
+                && 0 != MinistroActivity.nativeLink(object.getAbsolutePath(), link.getAbsolutePath(), true))
+        {
+            Log.e(TAG, "Can't link "+file.getAbsolutePath()+" to "+object.getAbsolutePath());
+            return false;
+        }
+        if (!link.renameTo(file))
+        {
+            link.delete();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+    * Removes an object, e.g. because it was found to be damaged.
+    */
+    void remove(byte[] sha1)
+    {
+        if (null != sha1)
+            object(sha1).delete();
+    }
+
+    /**
+    * The installed file which should have the SHA-1 sha1 doesn't, removes the object if the
+    * file is a link to it.
+    */
+    void damaged(String fileName, byte[] sha1)
+    {
+        if (!contains(sha1))
+            return;
+        long inode = MinistroActivity.nativeInode(fileName);
+        if (-1 != inode && inode == MinistroActivity.nativeInode(object(sha1).getAbsolutePath()))
+            remove(sha1);
+    }
+
+    private File rootsFile(String repository)
+    {
+        return new File(new File(m_root, ROOTS_DIR), repository.replaceAll("[^A-Za-z0-9._-]", "_"));
+    }
+
+    /**
+    * Records the SHA-1 sums the current manifest of repository needs.
+    */
+    synchronized void setRoots(String repository, Collection<byte[]> sha1s)
+    {
+        TreeSet<String> roots = new TreeSet<String>();
+        for (byte[] sha1: sha1s)
+            if (null != sha1)
+                roots.add(Library.convertToHex(sha1));
+
+        File rootsFile = rootsFile(repository);
+        if (roots.equals(readRoots(rootsFile)))
+        {
+            rootsFile.setLastModified(System.currentTimeMillis()); // still in use
+            return;
+        }
+
+        rootsFile.getParentFile().mkdirs();
+        File tmpFile = new File(rootsFile.getAbsolutePath()+".tmp");
+        try
+        {
+            FileWriter out = new FileWriter(tmpFile);
+            try
+            {
+                for (String root: roots)
+                    out.write(root+"\n");
+            }
+            finally
+            {
+                out.close();
+            }
+            if (!tmpFile.renameTo(rootsFile))
+                tmpFile.delete();
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+            tmpFile.delete();
+        }
+    }
+
+    // the SHA-1 sums (hex) listed in rootsFile, null if it can't be read
+    private static TreeSet<String> readRoots(File rootsFile)
+    {
+        if (!rootsFile.exists())
+            return null;
+        TreeSet<String> roots = new TreeSet<String>();
+        try
+        {
+            BufferedReader in = new BufferedReader(new FileReader(rootsFile));
+            try
+            {
+                String line;
+                while ((line = in.readLine()) != null)
+                    if (line.length() > 0)
+                        roots.add(line);
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+            return null;
+        }
+        return roots;
+    }
+
+    /**
+    * Removes the expired repositories and the objects which none of the remaining ones needs.
+    *
+    * @return the number of removed objects
+    */
+    synchronized int collectGarbage()
+    {
+        long now = System.currentTimeMillis();
+        HashSet<String> live = new HashSet<String>();
+        File[] rootsFiles = new File(m_root, ROOTS_DIR).listFiles();
+        if (null != rootsFiles)
+        {
+            for (File rootsFile: rootsFiles)
+            {
+                if (now - rootsFile.lastModified() > ROOTS_EXPIRY)
+                {
+                    Log.i(TAG, "Repository "+rootsFile.getName()+" expired");
+                    rootsFile.delete();
+                    continue;
+                }
+                TreeSet<String> roots = readRoots(rootsFile);
+                if (null == roots)
+                    return 0; // don't guess what is needed
+                live.addAll(roots);
+            }
+        }
+
+        int removed = 0;
+        File[] dirs = m_root.listFiles();
+        if (null == dirs)
+            return 0;
+        for (File dir: dirs)
+        {
+            if (!dir.isDirectory() || dir.getName().length() != 2)
+                continue;
+            File[] objects = dir.listFiles();
+            if (null == objects)
+                continue;
+            for (File object: objects)
+            {
+                if (live.contains(dir.getName()+object.getName()) || now - object.lastModified() < GRACE_PERIOD)
+                    continue;
+                if (object.delete())
+                    ++removed;
+            }
+            dir.delete(); // only succeeds if it is empty
+        }
+        if (removed > 0)
+            Log.i(TAG, "Removed "+removed+" unused objects");
+        return removed;
+    }
+}
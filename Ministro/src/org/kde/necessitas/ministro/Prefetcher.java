@@ -0,0 +1,197 @@
+/*
+    Copyright (c) 2011, BogDan Vatra <bog_dan_ro@yahoo.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.kde.necessitas.ministro;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/** Downloads modules in background, without any user interface (see <code>IMinistro.prefetchModules</code>).
+*
+* A launcher uses it to install the libraries of applications before the user opens them.
+* The prefetches run one after the other on their own thread, the queue is short and a request
+* for modules which are queued already is dropped. The libraries are downloaded into a staged
+* install slot which is committed like the ones of {@link MinistroActivity}. A prefetch never
+* asks the user anything: if there isn't enough space, even after reclaiming some, it is given up.
+* The modules of the running prefetch are protected from {@link LibraryCollector the collection
+* of unused libraries}, like the ones of the retrievals in progress.
+*/
+class Prefetcher
+{
+    private static final String TAG = "Prefetcher";
+    private static final int QUEUE_SIZE = 8;
+
+    private final MinistroService m_service;
+    private final ThreadPoolExecutor m_executor;
+    private final HashSet<String> m_queued = new HashSet<String>(); // module sets which wait in the queue
+    private volatile String[] m_active = null; // the modules which are being prefetched
+
+    Prefetcher(MinistroService service)
+    {
+        m_service = service;
+        m_executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS
+                                            , new LinkedBlockingQueue<Runnable>(QUEUE_SIZE)
+                                            , new ThreadFactory() {
+                                                public Thread newThread(Runnable r)
+                                                {
+                                                    Thread thread = new Thread(r, "MinistroPrefetch");
+                                                    thread.setPriority(Thread.MIN_PRIORITY);
+                                                    return thread;
+                                                }
+                                            });
+    }
+
+    /**
+    * Queues the download of the missing modules, returns at once.
+    */
+    void prefetch(final String[] modules)
+    {
+        final String key = MinistroService.resolutionCacheKey(modules);
+        synchronized (m_queued)
+        {
+            if (!m_queued.add(key))
+                return;
+        }
+        try
+        {
+            m_executor.execute(new Runnable() {
+                public void run()
+                {
+                    synchronized (m_queued)
+                    {
+                        m_queued.remove(key);
+                    }
+                    m_active = modules;
+                    try
+                    {
+                        download(modules);
+                    }
+                    catch (Exception e)
+                    {
+                        e.printStackTrace();
+                    }
+                    finally
+                    {
+                        m_active = null;
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            synchronized (m_queued)
+            {
+                m_queued.remove(key);
+            }
+            Log.i(TAG, "Too many prefetches, dropped "+key.replace('\n', ' '));
+        }
+    }
+
+    /**
+    * Returns the modules which are being prefetched, they must not be collected meanwhile.
+    */
+    List<String> activeModules()
+    {
+        String[] modules = m_active;
+        if (null == modules)
+            return Collections.emptyList();
+        return Arrays.asList(modules);
+    }
+
+    void shutdown()
+    {
+        m_executor.shutdownNow();
+    }
+
+    private void download(String[] modules) throws Exception
+    {
+        InstallSlots slots = m_service.getInstallSlots();
+        ArrayList<String> notFoundModules = new ArrayList<String>();
+        Library[] libs;
+        InstallSlots.Slot slot;
+        // a collection which didn't see m_active yet finishes before the catalog is read, the
+        // slot is staged from what it left
+        synchronized (m_service.collectLock())
+        {
+            LibraryCatalog catalog = m_service.getCatalog();
+            if (catalog.version < 0)
+            {
+                Log.i(TAG, "There is no libraries manifest yet, nothing to prefetch");
+                return;
+            }
+            MinistroService.missingModules(catalog, modules, notFoundModules);
+            ArrayList<Library> libraries = new ArrayList<Library>();
+            for (String module: notFoundModules)
+            {
+                Library lib = catalog.availableIndex.get(module);
+                if (null != lib)
+                    libraries.add(lib);
+            }
+            if (libraries.isEmpty())
+                return;
+            libs = libraries.toArray(new Library[libraries.size()]);
+            slot = slots.stage();
+        }
+        boolean commit = false;
+        try
+        {
+            ObjectStore objects = m_service.getObjectStore();
+            DigestCache digests = m_service.getDigestCache();
+            DownloadPlanner.Plan plan = DownloadPlanner.plan(slot.qtPath(), libs, objects, digests);
+            if (plan.shortfall() > 0)
+            {
+                m_service.reclaimSpace(plan.shortfall(), slot, notFoundModules);
+                plan = DownloadPlanner.plan(slot.qtPath(), libs, objects, digests);
+                if (plan.shortfall() > 0)
+                {
+                    Log.e(TAG, "Not enough space to prefetch, "+plan.shortfall()/1024+"Kb missing");
+                    return;
+                }
+            }
+            LibraryDownloader downloader = new LibraryDownloader(slot.qtPath()
+                    , MinistroService.getMaxTransfers(m_service)
+                    , m_service.getMirrorList()
+                    , objects
+                    , digests
+                    , new LibraryDownloader.Listener() {
+                        public void onProgress(long downloaded, long total, String current)
+                        {
+                        }
+                    });
+            ArrayList<Library> installed = downloader.download(libs);
+            Log.i(TAG, "Prefetched "+installed.size()+" of "+libs.length+" libraries");
+            commit = !installed.isEmpty(); // every library is installed all or nothing
+        }
+        finally
+        {
+            if (commit && slots.commit(slot))
+                m_service.refreshLibraries(false);
+            else
+                slots.discard(slot);
+        }
+    }
+}
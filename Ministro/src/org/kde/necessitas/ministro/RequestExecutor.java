@@ -0,0 +1,164 @@
+/*
+    Copyright (c) 2011, BogDan Vatra <bog_dan_ro@yahoo.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.kde.necessitas.ministro;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.os.Bundle;
+
+/** Runs the requests of the clients on a worker thread, the binder threads only queue them.
+*
+* Requests for the same set of modules which wait in the queue are coalesced into a batch: the
+* modules are resolved once and every callback gets the result. If the modules have to be
+* retrieved first, the requests join the retrieval which is in progress for the same modules
+* (see {@link MinistroService}), so several Qt applications which start at once (e.g. after
+* boot) cause a single resolution and a single download.
+*
+* The queue is bounded, when it is full a request runs on the calling thread.
+*/
+class RequestExecutor
+{
+    private static final int QUEUE_SIZE = 64;
+
+    /** A request of a client. */
+    static class Request
+    {
+        final IMinistroCallback callback;
+        final Bundle parameters;
+
+        Request(IMinistroCallback callback, Bundle parameters)
+        {
+            this.callback = callback;
+            this.parameters = parameters;
+        }
+    }
+
+    /** The queued requests for the same modules. */
+    class Batch implements Runnable
+    {
+        private final String m_key; // null if the batch can't be joined
+        private final ArrayList<Request> m_requests = new ArrayList<Request>();
+        private Bundle m_loaderParams = null;
+        private ArrayList<String> m_notFoundModules = null;
+
+        private Batch(String key)
+        {
+            m_key = key;
+        }
+
+        /**
+        * Resolves modules, only the first request of the batch does the work.
+        *
+        * @see MinistroService#checkModules(String[], ArrayList)
+        */
+        Bundle checkModules(String[] modules, ArrayList<String> notFoundModules)
+        {
+            if (null == m_loaderParams)
+            {
+                m_notFoundModules = new ArrayList<String>();
+                m_loaderParams = m_service.checkModules(modules, m_notFoundModules);
+            }
+            if (null != notFoundModules)
+                notFoundModules.addAll(m_notFoundModules);
+            return new Bundle(m_loaderParams);
+        }
+
+        public void run()
+        {
+            if (null != m_key)
+            {
+                synchronized (m_batches)
+                {
+                    m_batches.remove(m_key); // later requests start a new batch
+                }
+            }
+            for (Request request: m_requests)
+            {
+                try
+                {
+                    m_service.checkModulesImpl(request.callback, request.parameters, this);
+                }
+                catch (Exception e)
+                {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private final MinistroService m_service;
+    private final ThreadPoolExecutor m_executor;
+    private final HashMap<String, Batch> m_batches = new HashMap<String, Batch>(); // module set -> queued batch
+
+    RequestExecutor(MinistroService service)
+    {
+        m_service = service;
+        m_executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS
+                                            , new LinkedBlockingQueue<Runnable>(QUEUE_SIZE)
+                                            , new ThreadFactory() {
+                                                public Thread newThread(Runnable r)
+                                                {
+                                                    return new Thread(r, "MinistroRequests");
+                                                }
+                                            }
+                                            , new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+    * Queues a request, returns at once.
+    *
+    * @param key the canonical set of the requested modules, null if the request can't be coalesced
+    */
+    void submit(String key, IMinistroCallback callback, Bundle parameters)
+    {
+        Batch batch;
+        synchronized (m_batches)
+        {
+            batch = null != key ? m_batches.get(key) : null;
+            if (null != batch)
+            {
+                batch.m_requests.add(new Request(callback, parameters));
+                return;
+            }
+            batch = new Batch(key);
+            batch.m_requests.add(new Request(callback, parameters));
+            if (null != key)
+                m_batches.put(key, batch);
+        }
+        m_executor.execute(batch);
+    }
+
+    /**
+    * Runs some other work of the service (e.g. the answer to a finished retrieval) after the
+    * requests which are already queued.
+    */
+    void execute(Runnable runnable)
+    {
+        m_executor.execute(runnable);
+    }
+
+    void shutdown()
+    {
+        m_executor.shutdown();
+    }
+}
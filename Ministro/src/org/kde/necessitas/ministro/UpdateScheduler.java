@@ -0,0 +1,143 @@
+/*
+    Copyright (c) 2011, BogDan Vatra <bog_dan_ro@yahoo.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.kde.necessitas.ministro;
+
+import java.util.Random;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+/** Runs the periodic update check of {@link MinistroService} on a background thread.
+*
+* A check verifies the installed libraries and asks the repository for a newer version,
+* it runs <code>CHECKFREQUENCY</code> after the last successful one. A random delay is
+* added to every check, devices which were started at the same time don't ask the server
+* at the same time. A failed check (offline, server error) is retried an hour later.
+*
+* Once per day the same thread also removes the libraries nobody used for a while
+* (see {@link MinistroService#collectUnusedLibraries()}).
+*/
+class UpdateScheduler
+{
+    private static final String TAG = "UpdateScheduler";
+    private static final long MIN_DELAY = 30*1000; // let the service start first
+    private static final long MAX_JITTER = 3600*1000; // at most one hour
+    private static final long RETRY_DELAY = 3600*1000;
+    private static final long COLLECT_INTERVAL = 24l*3600*1000; // look for unused libraries once per day
+
+    private final MinistroService m_service;
+    private final HandlerThread m_thread;
+    private final Handler m_handler;
+    private final Random m_random = new Random();
+
+    private final Runnable m_check = new Runnable() {
+        public void run()
+        {
+            check();
+        }
+    };
+
+    private final Runnable m_collect = new Runnable() {
+        public void run()
+        {
+            try
+            {
+                m_service.collectUnusedLibraries();
+            }
+            catch (Exception e)
+            {
+                e.printStackTrace();
+            }
+            m_handler.postDelayed(m_collect, COLLECT_INTERVAL);
+        }
+    };
+
+    UpdateScheduler(MinistroService service)
+    {
+        m_service = service;
+        m_thread = new HandlerThread("MinistroUpdates", Process.THREAD_PRIORITY_BACKGROUND);
+        m_thread.start();
+        m_handler = new Handler(m_thread.getLooper());
+        m_handler.postDelayed(m_collect, MIN_DELAY + jitter(COLLECT_INTERVAL));
+    }
+
+    // a random delay up to a twentieth of the check frequency
+    private long jitter(long frequency)
+    {
+        long range = Math.max(1, Math.min(MAX_JITTER, frequency/20));
+        return (long)(m_random.nextDouble()*range);
+    }
+
+    /**
+    * (Re)schedules the next check, e.g. after the check frequency changed.
+    */
+    void schedule()
+    {
+        long frequency = MinistroService.getCheckFrequency(m_service)*24l*3600*1000;
+        long due = MinistroService.getLastCheck(m_service) + frequency - System.currentTimeMillis();
+        scheduleIn(Math.max(MIN_DELAY, due) + jitter(frequency));
+    }
+
+    private void scheduleIn(long delay)
+    {
+        Log.i(TAG, "Next update check in "+delay/1000+"s");
+        m_handler.removeCallbacks(m_check);
+        m_handler.postDelayed(m_check, delay);
+    }
+
+    void stop()
+    {
+        m_handler.removeCallbacks(m_check);
+        m_handler.removeCallbacks(m_collect);
+        m_thread.getLooper().quit();
+    }
+
+    private void check()
+    {
+        long frequency = MinistroService.getCheckFrequency(m_service)*24l*3600*1000;
+        if (!MinistroActivity.isOnline(m_service))
+        {
+            scheduleIn(RETRY_DELAY + jitter(frequency));
+            return;
+        }
+
+        try
+        {
+            m_service.refreshLibraries(true);
+            double latest = MinistroActivity.downloadVersionXmlFile(m_service, null);
+            if (latest < 0)
+            {
+                scheduleIn(RETRY_DELAY + jitter(frequency));
+                return;
+            }
+            MinistroService.setLastCheck(m_service, System.currentTimeMillis());
+            m_service.getObjectStore().collectGarbage();
+            if (m_service.getVersion() < latest)
+                m_service.notifyUpdate();
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+            scheduleIn(RETRY_DELAY + jitter(frequency));
+            return;
+        }
+        schedule();
+    }
+}
@@ -0,0 +1,206 @@
+/*
+    Copyright (c) 2011, BogDan Vatra <bog_dan_ro@yahoo.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package org.kde.necessitas.ministro;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import android.test.AndroidTestCase;
+
+/** Round trips and broken patches for {@link BinaryPatch}, the patches are built by the test. */
+public class BinaryPatchTest extends AndroidTestCase
+{
+    private File m_oldFile;
+    private byte[] m_old;
+    private byte[] m_new;
+    private byte[] m_patch;
+
+    // bsdiff's sign-magnitude little endian 64 bit integer
+    private static void offtout(long value, byte[] buffer, int offset)
+    {
+        long y = value < 0 ? -value : value;
+        for (int i=0;i<8;i++)
+        {
+            buffer[offset+i] = (byte)(y & 0xFF);
+            y >>>= 8;
+        }
+        if (value < 0)
+            buffer[offset+7] |= 0x80;
+    }
+
+    private static long offtin(byte[] buffer, int offset)
+    {
+        long y = buffer[offset+7] & 0x7F;
+        for (int i=6;i>=0;i--)
+            y = (y << 8) | (buffer[offset+i] & 0xFF);
+        return (buffer[offset+7] & 0x80) != 0 ? -y : y;
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        out.write(data);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    // a bsdiff-gzip patch from its control triples (diff bytes, extra bytes, seek) and blocks
+    static byte[] patch(long[] ctrl, byte[] diff, byte[] extra, long newSize) throws IOException
+    {
+        byte[] ctrlBlock = new byte[ctrl.length*8];
+        for (int i=0;i<ctrl.length;i++)
+            offtout(ctrl[i], ctrlBlock, i*8);
+        byte[] ctrlGz = gzip(ctrlBlock);
+        byte[] diffGz = gzip(diff);
+        byte[] header = new byte[32];
+        System.arraycopy("BSDIFF40".getBytes("US-ASCII"), 0, header, 0, 8);
+        offtout(ctrlGz.length, header, 8);
+        offtout(diffGz.length, header, 16);
+        offtout(newSize, header, 24);
+        ByteArrayOutputStream patch = new ByteArrayOutputStream();
+        patch.write(header);
+        patch.write(ctrlGz);
+        patch.write(diffGz);
+        patch.write(gzip(extra));
+        return patch.toByteArray();
+    }
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        Random random = new Random(1);
+        m_old = new byte[100000];
+        random.nextBytes(m_old);
+        m_oldFile = new File(getContext().getCacheDir(), "binary-patch-test.so");
+        FileOutputStream out = new FileOutputStream(m_oldFile);
+        try
+        {
+            out.write(m_old);
+        }
+        finally
+        {
+            out.close();
+        }
+
+        // the new file: the first half of the old one with a few changed bytes, 1000 inserted
+        // bytes, then the old file again from 40000 on
+        byte[] inserted = new byte[1000];
+        random.nextBytes(inserted);
+        m_new = new byte[50000+inserted.length+60000];
+        System.arraycopy(m_old, 0, m_new, 0, 50000);
+        for (int i=0;i<50000;i+=997)
+            m_new[i] ^= 0x5a;
+        System.arraycopy(inserted, 0, m_new, 50000, inserted.length);
+        System.arraycopy(m_old, 40000, m_new, 51000, 60000);
+
+        byte[] diff = new byte[50000+60000];
+        for (int i=0;i<50000;i++)
+            diff[i] = (byte)(m_new[i]-m_old[i]);
+        // the second diff block is all zeros, it matches the old file exactly
+        m_patch = patch(new long[]{50000, inserted.length, -10000, 60000, 0, 0}, diff, inserted, m_new.length);
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        m_oldFile.delete();
+        super.tearDown();
+    }
+
+    private byte[] apply(byte[] patch) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long size = BinaryPatch.apply(m_oldFile, patch, out);
+        assertEquals(size, out.size());
+        return out.toByteArray();
+    }
+
+    public void testRoundTrip() throws Exception
+    {
+        assertTrue(Arrays.equals(m_new, apply(m_patch)));
+    }
+
+    public void testTruncatedPatch() throws Exception
+    {
+        for (int length=0;length<m_patch.length;length+=Math.max(1, length/10))
+        {
+            try
+            {
+                apply(Arrays.copyOf(m_patch, length));
+                fail("a patch truncated to "+length+" of "+m_patch.length+" bytes was applied");
+            }
+            catch (IOException e)
+            {
+                // expected
+            }
+        }
+    }
+
+    private void assertCorrupt(byte[] patch)
+    {
+        try
+        {
+            apply(patch);
+            fail("a corrupt patch was applied");
+        }
+        catch (IOException e)
+        {
+            // expected
+        }
+    }
+
+    public void testOverflowingLengths() throws Exception
+    {
+        // lengths whose low 32 bits are the right ones and whose sum overflows, a check of
+        // the sum lets them through and the int casts find the right blocks
+        byte[] patch = m_patch.clone();
+        offtout(0x7fffffff00000000l+offtin(m_patch, 8), patch, 8);
+        offtout(0x100000000l+offtin(m_patch, 16), patch, 16);
+        assertCorrupt(patch);
+
+        patch = m_patch.clone();
+        offtout(Long.MAX_VALUE-20, patch, 8);
+        offtout(100, patch, 16);
+        assertCorrupt(patch);
+
+        patch = m_patch.clone();
+        offtout(Long.MAX_VALUE, patch, 16);
+        assertCorrupt(patch);
+
+        patch = m_patch.clone();
+        offtout(-1, patch, 8);
+        assertCorrupt(patch);
+    }
+
+    public void testOverflowingControl() throws Exception
+    {
+        // diff and extra bytes which add up to a negative number
+        assertCorrupt(patch(new long[]{Long.MAX_VALUE, Long.MAX_VALUE, 0}, new byte[10], new byte[10], 100));
+        assertCorrupt(patch(new long[]{10, -5, 0}, new byte[10], new byte[10], 100));
+        // more data than the new file has
+        assertCorrupt(patch(new long[]{m_new.length, 1, 0}, new byte[m_new.length], new byte[1], m_new.length));
+    }
+}
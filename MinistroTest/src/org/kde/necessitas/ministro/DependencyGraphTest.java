@@ -0,0 +1,142 @@
+/*
+    Copyright (c) 2011, BogDan Vatra <bog_dan_ro@yahoo.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package org.kde.necessitas.ministro;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class DependencyGraphTest extends TestCase
+{
+    private static Library library(String name, int level, String[] depends, String[] replaces)
+    {
+        Library library = new Library();
+        library.name = name;
+        library.filePath = "lib/lib" + name + ".so";
+        library.level = level;
+        library.depends = depends;
+        library.replaces = replaces;
+        return library;
+    }
+
+    private static List<String> names(List<Library> libraries)
+    {
+        ArrayList<String> names = new ArrayList<String>();
+        for (Library library: libraries)
+            names.add(library.name);
+        return names;
+    }
+
+    private static List<String> resolve(DependencyGraph graph, String... modules)
+    {
+        return names(graph.resolve(Arrays.asList(modules)).libraries);
+    }
+
+    public void testLoadOrderFollowsDependencies()
+    {
+        // the levels say the opposite of the dependencies
+        DependencyGraph graph = new DependencyGraph(Arrays.asList(
+                library("Gui", 0, new String[]{"Core"}, null),
+                library("Core", 5, null, null),
+                library("Declarative", 1, new String[]{"Gui", "Core"}, null)));
+        assertEquals(Arrays.asList("Core", "Gui", "Declarative"), resolve(graph, "Declarative"));
+        assertEquals(Arrays.asList("Core", "Gui"), resolve(graph, "Gui"));
+        assertTrue(graph.cycles().isEmpty());
+    }
+
+    public void testLevelBreaksTies()
+    {
+        DependencyGraph graph = new DependencyGraph(Arrays.asList(
+                library("Network", 2, null, null),
+                library("Core", 1, null, null),
+                library("Xml", 2, null, null)));
+        assertEquals(Arrays.asList("Core", "Network", "Xml"), resolve(graph, "Xml", "Network", "Core"));
+    }
+
+    public void testMissingModules()
+    {
+        DependencyGraph graph = new DependencyGraph(Arrays.asList(
+                library("Gui", 1, new String[]{"Core"}, null)));
+        DependencyGraph.Resolution resolution = graph.resolve(Arrays.asList("Gui", "Sql"));
+        assertEquals(Arrays.asList("Gui"), names(resolution.libraries));
+        assertEquals(Arrays.asList("Core", "Sql"), sorted(resolution.missing));
+    }
+
+    public void testReplacementOutsideTheClosureIsIgnored()
+    {
+        // another application downloaded GuiGL, it must not change the load list of Gui users
+        DependencyGraph graph = new DependencyGraph(Arrays.asList(
+                library("Core", 0, null, null),
+                library("Gui", 1, new String[]{"Core"}, null),
+                library("GuiGL", 1, new String[]{"Core"}, new String[]{"Gui"}),
+                library("Widgets", 2, new String[]{"Gui"}, null)));
+        assertEquals(Arrays.asList("Core", "Gui", "Widgets"), resolve(graph, "Widgets"));
+    }
+
+    public void testReplacementInsideTheClosure()
+    {
+        DependencyGraph graph = new DependencyGraph(Arrays.asList(
+                library("Widgets", 0, new String[]{"Gui"}, null),
+                library("Core", 0, null, null),
+                library("Gui", 1, new String[]{"Core"}, null),
+                library("GuiGL", 3, new String[]{"Core"}, new String[]{"Gui"})));
+        // GuiGL replaces Gui and is loaded before Widgets which depends on Gui
+        assertEquals(Arrays.asList("Core", "GuiGL", "Widgets"), resolve(graph, "Widgets", "GuiGL"));
+    }
+
+    public void testReplacedMissingModuleIsNotMissing()
+    {
+        DependencyGraph graph = new DependencyGraph(Arrays.asList(
+                library("GuiGL", 1, null, new String[]{"Gui"}),
+                library("Widgets", 2, new String[]{"Gui"}, null)));
+        DependencyGraph.Resolution resolution = graph.resolve(Arrays.asList("Widgets", "GuiGL"));
+        assertTrue(resolution.missing.isEmpty());
+        resolution = graph.resolve(Arrays.asList("Widgets"));
+        assertEquals(Arrays.asList("Gui"), resolution.missing);
+    }
+
+    public void testCyclesAreReported()
+    {
+        DependencyGraph graph = new DependencyGraph(Arrays.asList(
+                library("Core", 0, null, null),
+                library("A", 2, new String[]{"Core", "B"}, null),
+                library("B", 1, new String[]{"A"}, null),
+                library("C", 0, new String[]{"B"}, null)));
+        assertEquals(Arrays.asList("A", "B", "C"), sorted(graph.cycles()));
+        // the libraries of the cycle come last, sorted by level
+        assertEquals(Arrays.asList("Core", "C", "B", "A"), resolve(graph, "A", "C"));
+    }
+
+    public void testSelfDependencyIsNoCycle()
+    {
+        DependencyGraph graph = new DependencyGraph(Arrays.asList(
+                library("Core", 0, new String[]{"Core"}, new String[]{"Core"})));
+        assertTrue(graph.cycles().isEmpty());
+        assertEquals(Arrays.asList("Core"), resolve(graph, "Core"));
+    }
+
+    private static List<String> sorted(List<String> list)
+    {
+        ArrayList<String> sorted = new ArrayList<String>(list);
+        Collections.sort(sorted);
+        return sorted;
+    }
+}
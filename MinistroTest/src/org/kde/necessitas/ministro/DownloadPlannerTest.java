@@ -0,0 +1,188 @@
+/*
+    Copyright (c) 2011, BogDan Vatra <bog_dan_ro@yahoo.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package org.kde.necessitas.ministro;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import android.test.AndroidTestCase;
+
+/** The sizes {@link DownloadPlanner} computes before an install and the progress of
+* {@link LibraryDownloader} during it count the same files the same way.
+*/
+public class DownloadPlannerTest extends AndroidTestCase
+{
+    private static final int SIZE = 64*1024;
+
+    private TestContext m_context;
+    private TestHttpServer m_server;
+    private File m_dir;
+    private String m_root;
+    private Library[] m_libraries;
+
+    private NeedsStruct need(String name, byte[] data) throws Exception
+    {
+        m_server.put("/plugins/"+name, data);
+        NeedsStruct need = new NeedsStruct();
+        need.name = name;
+        need.url = m_server.url("/plugins/"+name);
+        need.filePath = "plugins/"+name;
+        need.size = data.length;
+        need.sha1 = MessageDigest.getInstance("SHA-1").digest(data);
+        return need;
+    }
+
+    private Library library(String name, byte[] data, NeedsStruct... needs) throws Exception
+    {
+        m_server.put("/lib/lib"+name+".so", data);
+        Library library = new Library();
+        library.name = name;
+        library.url = m_server.url("/lib/lib"+name+".so");
+        library.filePath = "lib/lib"+name+".so";
+        library.size = data.length;
+        library.sha1 = MessageDigest.getInstance("SHA-1").digest(data);
+        library.needs = needs;
+        return library;
+    }
+
+    private static byte[] data(int seed)
+    {
+        byte[] data = new byte[SIZE];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        m_context = new TestContext(getContext());
+        m_server = new TestHttpServer(0);
+        m_dir = new File(getContext().getCacheDir(), "planner-test");
+        InstallSlots.delete(m_dir);
+        m_root = new File(m_dir, "qt").getAbsolutePath()+"/";
+        new File(m_root).mkdirs();
+        // both libraries need the same plugin
+        NeedsStruct plugin = need("libqjpeg.so", data(3));
+        m_libraries = new Library[]{library("QtGui", data(1), plugin), library("QtSvg", data(2), plugin)};
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        m_server.close();
+        InstallSlots.delete(m_dir);
+        m_context.clearPreferences("Ministro", "MinistroMirrors");
+        super.tearDown();
+    }
+
+    private DownloadPlanner.Plan plan()
+    {
+        return DownloadPlanner.plan(m_root, m_libraries, new ObjectStore(new File(m_dir, "objects"))
+                                    , new DigestCache(new File(m_dir, "digests")));
+    }
+
+    private void writePart(String filePath, int length, String url, byte[] sha1) throws IOException
+    {
+        Library.mkdirParents(m_root, filePath, 1);
+        FileOutputStream part = new FileOutputStream(m_root+filePath+LibraryDownloader.PART_SUFFIX);
+        try
+        {
+            part.write(new byte[length]);
+        }
+        finally
+        {
+            part.close();
+        }
+        DataOutputStream journal = new DataOutputStream(new FileOutputStream(m_root+filePath+LibraryDownloader.JOURNAL_SUFFIX));
+        try
+        {
+            journal.writeInt(2); // journal version
+            journal.writeUTF(url);
+            journal.writeInt(sha1.length);
+            journal.write(sha1);
+            journal.writeLong(length);
+        }
+        finally
+        {
+            journal.close();
+        }
+    }
+
+    public void testSharedFileCountsOnce()
+    {
+        assertEquals(3, DownloadPlanner.files(m_libraries).size());
+        assertEquals(3*SIZE, DownloadPlanner.totalSize(m_libraries));
+        DownloadPlanner.Plan plan = plan();
+        assertEquals(3*SIZE, plan.totalSize);
+        assertEquals(3*SIZE, plan.required);
+    }
+
+    public void testPartFileOfTheSameFile() throws Exception
+    {
+        writePart(m_libraries[0].filePath, SIZE/2, m_libraries[0].url, m_libraries[0].sha1);
+        assertEquals(3*SIZE-SIZE/2, plan().required);
+    }
+
+    public void testPartFileOfAnotherVersion() throws Exception
+    {
+        // left by the download of an older version, the download starts over
+        writePart(m_libraries[0].filePath, SIZE/2, m_libraries[0].url, new byte[20]);
+        assertEquals(3*SIZE, plan().required);
+    }
+
+    public void testProgressMatchesThePlan() throws Exception
+    {
+        final long[] last = new long[2];
+        LibraryDownloader downloader = new LibraryDownloader(m_root, 2, new MirrorList(m_context)
+                , new ObjectStore(new File(m_dir, "objects")), new DigestCache(new File(m_dir, "digests"))
+                , new LibraryDownloader.Listener() {
+                    public synchronized void onProgress(long downloaded, long total, String current)
+                    {
+                        last[0] = Math.max(last[0], downloaded);
+                        last[1] = total;
+                    }
+                });
+        assertEquals(2, downloader.download(m_libraries).size());
+        assertEquals(plan().totalSize, last[1]);
+        assertEquals(last[1], last[0]);
+
+        int pluginRequests = 0;
+        for (TestHttpServer.Request request: m_server.requests())
+            if (request.path.startsWith("/plugins/"))
+                ++pluginRequests;
+        assertEquals(1, pluginRequests);
+        assertTrue(new File(m_root+"plugins/libqjpeg.so").exists());
+    }
+
+    public void testFailedLibraryKeepsSharedFiles() throws Exception
+    {
+        m_server.put("/lib/libQtSvg.so", null); // QtSvg can't be downloaded
+        LibraryDownloader downloader = new LibraryDownloader(m_root, 1, new MirrorList(m_context)
+                , new ObjectStore(new File(m_dir, "objects")), new DigestCache(new File(m_dir, "digests")), null);
+        assertEquals(1, downloader.download(m_libraries).size());
+        assertTrue(new File(m_root+m_libraries[0].filePath).exists());
+        assertTrue(new File(m_root+"plugins/libqjpeg.so").exists()); // QtGui needs it
+        assertFalse(new File(m_root+m_libraries[1].filePath).exists());
+    }
+}
@@ -0,0 +1,174 @@
+/*
+    Copyright (c) 2011, BogDan Vatra <bog_dan_ro@yahoo.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package org.kde.necessitas.ministro;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+/** Throughput of {@link LibraryVerifier} (parallel, memory mapped) compared with the single
+* threaded checkCRC it replaced (2 KB FileInputStream reads, hex strings compared), on 256 MB
+* of files in the cache directory.
+*/
+@LargeTest
+public class HashingBenchmark extends AndroidTestCase
+{
+    private static final String TAG = "HashingBenchmark";
+    private static final int FILES = 32;
+    private static final int FILE_SIZE = 8*1024*1024;
+    private static final int WARMUP = 1;
+    private static final int RUNS = 3;
+
+    private File m_dir;
+    private final LinkedHashMap<String, byte[]> m_files = new LinkedHashMap<String, byte[]>(); // file -> sha1
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        m_dir = new File(getContext().getCacheDir(), "hashing-benchmark");
+        m_dir.mkdirs();
+    }
+
+    // random files of FILE_SIZE bytes and their sha1
+    private void createFiles(int count) throws Exception
+    {
+        Random random = new Random(count);
+        byte[] buffer = new byte[64*1024];
+        for (int i=0;i<count;i++)
+        {
+            File file = new File(m_dir, "lib"+i+".so");
+            MessageDigest digester = MessageDigest.getInstance("SHA-1");
+            FileOutputStream out = new FileOutputStream(file);
+            try
+            {
+                for (int written=0;written<FILE_SIZE;written+=buffer.length)
+                {
+                    random.nextBytes(buffer);
+                    out.write(buffer);
+                    digester.update(buffer);
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+            m_files.put(file.getAbsolutePath(), digester.digest());
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        for (String file: m_files.keySet())
+            new File(file).delete();
+        m_dir.delete();
+        super.tearDown();
+    }
+
+    /**
+    * The hex conversion checkCRC used: a synchronized StringBuffer append per nibble.
+    */
+    static String stringBufferHex(byte[] data)
+    {
+        StringBuffer buf = new StringBuffer();
+        for (int i = 0; i < data.length; i++)
+        {
+            int halfbyte = (data[i] >>> 4) & 0x0F;
+            int two_halfs = 0;
+            do
+            {
+                if ((0 <= halfbyte) && (halfbyte <= 9))
+                    buf.append((char) ('0' + halfbyte));
+                else
+                    buf.append((char) ('a' + (halfbyte - 10)));
+                halfbyte = data[i] & 0x0F;
+            } while(two_halfs++ < 1);
+        }
+        return buf.toString();
+    }
+
+    // checkCRC before LibraryVerifier, the expected sha1 was an upper case hex string
+    private static boolean checkCRC(String fileName, String sha1) throws Exception
+    {
+        byte[] tmp = new byte[2048];
+        MessageDigest digester = MessageDigest.getInstance("SHA-1");
+        int downloaded;
+        FileInputStream inFile = new FileInputStream(new File(fileName));
+        while ((downloaded = inFile.read(tmp)) != -1)
+            digester.update(tmp, 0, downloaded);
+        inFile.close();
+        return sha1.equalsIgnoreCase(stringBufferHex(digester.digest()));
+    }
+
+    public void testThroughput() throws Exception
+    {
+        createFiles(FILES);
+        final LinkedHashMap<String, String> hexFiles = new LinkedHashMap<String, String>();
+        for (String file: m_files.keySet())
+            hexFiles.put(file, stringBufferHex(m_files.get(file)).toUpperCase());
+        long total = (long)FILES*FILE_SIZE;
+        String what = FILES+" files, "+total/(1024*1024)+" MB";
+
+        Measurement single = Measurement.run(TAG, "checkCRC, "+what, WARMUP, RUNS, new Measurement.Task() {
+            void run() throws Exception
+            {
+                for (String file: hexFiles.keySet())
+                    if (!checkCRC(file, hexFiles.get(file)))
+                        throw new IOException("Wrong digest of "+file);
+            }
+        });
+        final LibraryVerifier verifier = new LibraryVerifier();
+        Measurement parallel = Measurement.run(TAG, "LibraryVerifier, "+what, WARMUP, RUNS, new Measurement.Task() {
+            void run() throws Exception
+            {
+                for (LibraryVerifier.Result result: verifier.verify(m_files))
+                    if (!result.ok)
+                        throw new IOException("Wrong digest of "+result.fileName);
+            }
+        });
+        Log.i(TAG, String.format("checkCRC %.0f MB/s, LibraryVerifier %.0f MB/s"
+                , single.megabytesPerSecond(total), parallel.megabytesPerSecond(total)));
+    }
+
+    public void testReportsEveryFile() throws Exception
+    {
+        createFiles(3);
+        LinkedHashMap<String, byte[]> files = new LinkedHashMap<String, byte[]>(m_files);
+        String first = files.keySet().iterator().next();
+        files.put(first, new byte[20]); // wrong digest
+        files.put(new File(m_dir, "missing.so").getAbsolutePath(), new byte[20]);
+        List<LibraryVerifier.Result> results = new LibraryVerifier().verify(files);
+        assertEquals(files.size(), results.size());
+        assertFalse(results.get(0).ok);
+        assertTrue(results.get(0).exists);
+        assertFalse(results.get(results.size()-1).exists);
+        for (int i=1;i<results.size()-1;i++)
+            assertTrue(results.get(i).ok);
+    }
+}
@@ -0,0 +1,111 @@
+/*
+    Copyright (c) 2011, BogDan Vatra <bog_dan_ro@yahoo.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package org.kde.necessitas.ministro;
+
+import java.util.Random;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+/** Hex encoding and digest comparison of {@link Library} compared with the StringBuffer
+* encoder and the hex string comparison they replaced, for 10,000 SHA-1 digests.
+*/
+@LargeTest
+public class HexBenchmark extends TestCase
+{
+    private static final String TAG = "HexBenchmark";
+    private static final int DIGESTS = 10000;
+    private static final int WARMUP = 10;
+    private static final int RUNS = 50;
+
+    private final byte[][] m_digests = new byte[DIGESTS][];
+    private final byte[][] m_expected = new byte[DIGESTS][]; // a copy, as parsed from the manifest
+    private final String[] m_expectedHex = new String[DIGESTS]; // upper case, as getLibrary stored it
+    private int m_matches = 0; // keeps the results alive
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        Random random = new Random(DIGESTS);
+        for (int i=0;i<DIGESTS;i++)
+        {
+            m_digests[i] = new byte[20];
+            random.nextBytes(m_digests[i]);
+            m_expected[i] = m_digests[i].clone();
+            m_expectedHex[i] = HashingBenchmark.stringBufferHex(m_digests[i]).toUpperCase();
+        }
+    }
+
+    public void testSameHex()
+    {
+        for (int i=0;i<100;i++)
+        {
+            assertEquals(HashingBenchmark.stringBufferHex(m_digests[i]), Library.convertToHex(m_digests[i]));
+            assertTrue(Library.sameDigest(m_digests[i], Library.convertFromHex(m_expectedHex[i])));
+        }
+    }
+
+    public void testEncode() throws Exception
+    {
+        Measurement old = Measurement.run(TAG, "StringBuffer hex, "+DIGESTS+" digests", WARMUP, RUNS, new Measurement.Task() {
+            void run()
+            {
+                for (byte[] digest: m_digests)
+                    m_matches += HashingBenchmark.stringBufferHex(digest).length();
+            }
+        });
+        Measurement table = Measurement.run(TAG, "lookup table hex, "+DIGESTS+" digests", WARMUP, RUNS, new Measurement.Task() {
+            void run()
+            {
+                for (byte[] digest: m_digests)
+                    m_matches += Library.convertToHex(digest).length();
+            }
+        });
+        Log.i(TAG, String.format("encode: %.1fx faster, %.1fx fewer bytes allocated"
+                , (double)old.nanos/Math.max(1, table.nanos)
+                , (double)old.allocatedBytes/Math.max(1, table.allocatedBytes)));
+    }
+
+    public void testCompare() throws Exception
+    {
+        m_matches = 0;
+        Measurement old = Measurement.run(TAG, "hex string compare, "+DIGESTS+" digests", WARMUP, RUNS, new Measurement.Task() {
+            void run()
+            {
+                for (int i=0;i<DIGESTS;i++)
+                    if (m_expectedHex[i].equalsIgnoreCase(HashingBenchmark.stringBufferHex(m_digests[i])))
+                        ++m_matches;
+            }
+        });
+        Measurement bytewise = Measurement.run(TAG, "bytewise compare, "+DIGESTS+" digests", WARMUP, RUNS, new Measurement.Task() {
+            void run()
+            {
+                for (int i=0;i<DIGESTS;i++)
+                    if (Library.sameDigest(m_expected[i], m_digests[i]))
+                        ++m_matches;
+            }
+        });
+        assertEquals(2*(WARMUP+RUNS)*DIGESTS, m_matches);
+        Log.i(TAG, String.format("compare: %.1fx faster, %d instead of %d bytes allocated"
+                , (double)old.nanos/Math.max(1, bytewise.nanos), bytewise.bytes(), old.bytes()));
+    }
+}
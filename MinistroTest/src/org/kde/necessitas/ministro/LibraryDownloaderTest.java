@@ -0,0 +1,241 @@
+/*
+    Copyright (c) 2011, BogDan Vatra <bog_dan_ro@yahoo.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package org.kde.necessitas.ministro;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import android.test.AndroidTestCase;
+
+/** Downloads against a local HTTP server which drops connections: the transfers continue
+* with range requests, also from the journal a cancelled download left behind.
+*/
+public class LibraryDownloaderTest extends AndroidTestCase
+{
+    private static final int SIZE = 1024*1024;
+
+    private TestContext m_context;
+    private TestHttpServer m_server;
+    private File m_dir;
+    private String m_root; // qt directory the libraries are installed into
+    private byte[] m_data;
+    private Library m_library;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        m_context = new TestContext(getContext());
+        m_server = new TestHttpServer(SIZE);
+        m_dir = new File(getContext().getCacheDir(), "downloader-test");
+        InstallSlots.delete(m_dir);
+        m_root = new File(m_dir, "qt").getAbsolutePath()+"/";
+        new File(m_root).mkdirs();
+
+        m_data = new byte[SIZE];
+        new Random(SIZE).nextBytes(m_data);
+        m_server.put("/libs/libQtCore.so", m_data);
+        m_library = new Library();
+        m_library.name = "QtCore";
+        m_library.url = m_server.url("/libs/libQtCore.so");
+        m_library.filePath = "lib/libQtCore.so";
+        m_library.size = SIZE;
+        m_library.sha1 = MessageDigest.getInstance("SHA-1").digest(m_data);
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        m_server.close();
+        InstallSlots.delete(m_dir);
+        m_context.clearPreferences("Ministro", "MinistroMirrors");
+        super.tearDown();
+    }
+
+    private LibraryDownloader downloader(LibraryDownloader.Listener listener)
+    {
+        return new LibraryDownloader(m_root, 1, new MirrorList(m_context)
+                , new ObjectStore(new File(m_dir, "objects"))
+                , new DigestCache(new File(m_dir, "digests")), listener);
+    }
+
+    private List<Library> download(LibraryDownloader downloader) throws InterruptedException
+    {
+        return downloader.download(new Library[]{m_library});
+    }
+
+    private byte[] installed() throws IOException
+    {
+        File file = new File(m_root+m_library.filePath);
+        byte[] data = new byte[(int)file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try
+        {
+            int read = 0;
+            while (read < data.length)
+                read += in.read(data, read, data.length-read);
+        }
+        finally
+        {
+            in.close();
+        }
+        return data;
+    }
+
+    private void assertInstalled() throws IOException
+    {
+        assertTrue(Arrays.equals(m_data, installed()));
+        assertFalse(new File(m_root+m_library.filePath+LibraryDownloader.PART_SUFFIX).exists());
+        assertFalse(new File(m_root+m_library.filePath+LibraryDownloader.JOURNAL_SUFFIX).exists());
+    }
+
+    public void testDownload() throws Exception
+    {
+        assertEquals(1, download(downloader(null)).size());
+        assertInstalled();
+        assertEquals(1, m_server.requests().size());
+        assertNull(m_server.requests().get(0).range);
+    }
+
+    public void testResumesWithRange() throws Exception
+    {
+        m_server.dropResponses(1);
+        assertEquals(1, download(downloader(null)).size());
+        assertInstalled();
+        List<TestHttpServer.Request> requests = m_server.requests();
+        assertEquals(2, requests.size());
+        assertNull(requests.get(0).range);
+        assertTrue(requests.get(1).rangeStart() > 0);
+    }
+
+    public void testRandomDrops() throws Exception
+    {
+        // every attempt gets some data, the download never gives up
+        m_server.dropResponses(8);
+        assertEquals(1, download(downloader(null)).size());
+        assertInstalled();
+        List<TestHttpServer.Request> requests = m_server.requests();
+        assertEquals(9, requests.size());
+        long previous = -1;
+        for (TestHttpServer.Request request: requests)
+        {
+            assertTrue(request.rangeStart() > previous); // never starts again from the beginning
+            previous = request.rangeStart();
+        }
+    }
+
+    public void testServerWithoutRanges() throws Exception
+    {
+        m_server.setIgnoreRange(true);
+        m_server.dropResponses(2);
+        assertEquals(1, download(downloader(null)).size());
+        assertInstalled();
+    }
+
+    public void testContinuesFromJournal() throws Exception
+    {
+        // the first download is cancelled (the activity was closed) once half of the file is there
+        final LibraryDownloader[] first = new LibraryDownloader[1];
+        first[0] = downloader(new LibraryDownloader.Listener() {
+            public void onProgress(long downloaded, long total, String current)
+            {
+                if (downloaded >= SIZE/2)
+                    first[0].cancel();
+            }
+        });
+        assertTrue(download(first[0]).isEmpty());
+        File part = new File(m_root+m_library.filePath+LibraryDownloader.PART_SUFFIX);
+        assertTrue(part.exists());
+        assertTrue(new File(m_root+m_library.filePath+LibraryDownloader.JOURNAL_SUFFIX).exists());
+
+        // a new downloader (the process was restarted) continues where the journal says
+        assertEquals(1, download(downloader(null)).size());
+        assertInstalled();
+        List<TestHttpServer.Request> requests = m_server.requests();
+        assertEquals(2, requests.size());
+        assertTrue(requests.get(1).rangeStart() >= SIZE/4);
+    }
+
+    private void writeJournal(String url, byte[] sha1, int sha1Length, long offset) throws IOException
+    {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(m_root+m_library.filePath+LibraryDownloader.JOURNAL_SUFFIX));
+        try
+        {
+            out.writeInt(2); // journal version
+            out.writeUTF(url);
+            out.writeInt(sha1Length);
+            out.write(sha1);
+            out.writeLong(offset);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    private void writePart(int length) throws IOException
+    {
+        Library.mkdirParents(m_root, m_library.filePath, 1);
+        FileOutputStream out = new FileOutputStream(m_root+m_library.filePath+LibraryDownloader.PART_SUFFIX);
+        try
+        {
+            out.write(m_data, 0, length);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    public void testJournalOfAnotherFile() throws Exception
+    {
+        writePart(SIZE/2);
+        writeJournal(m_library.url, new byte[20], 20, SIZE/2); // another sha1
+        assertEquals(1, download(downloader(null)).size());
+        assertInstalled();
+        assertNull(m_server.requests().get(0).range);
+    }
+
+    public void testCorruptJournal() throws Exception
+    {
+        writePart(SIZE/2);
+        writeJournal(m_library.url, m_library.sha1, Integer.MAX_VALUE, SIZE/2);
+        assertEquals(1, download(downloader(null)).size());
+        assertInstalled();
+        assertNull(m_server.requests().get(0).range);
+    }
+
+    public void testValidJournal() throws Exception
+    {
+        writePart(SIZE/2);
+        writeJournal(m_library.url, m_library.sha1, 20, SIZE/2);
+        assertEquals(1, download(downloader(null)).size());
+        assertInstalled();
+        List<TestHttpServer.Request> requests = m_server.requests();
+        assertEquals(1, requests.size());
+        assertEquals(SIZE/2, requests.get(0).rangeStart());
+    }
+}
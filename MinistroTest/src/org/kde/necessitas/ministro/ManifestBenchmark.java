@@ -0,0 +1,227 @@
+/*
+    Copyright (c) 2011, BogDan Vatra <bog_dan_ro@yahoo.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package org.kde.necessitas.ministro;
+
+import java.io.ByteArrayInputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+/** Parse time and allocations of {@link LibrariesManifest} compared with the DOM parser
+* it replaced, for a synthetic manifest of the size of a large Qt repository.
+*/
+@LargeTest
+public class ManifestBenchmark extends TestCase
+{
+    private static final String TAG = "ManifestBenchmark";
+    private static final int LIBRARIES = 1000;
+    private static final int WARMUP = 5;
+    private static final int RUNS = 20;
+
+    private static String sha1(int i)
+    {
+        StringBuilder sha1 = new StringBuilder();
+        while (sha1.length() < 40)
+            sha1.append(String.format("%08x", i*0x9e3779b1+sha1.length()));
+        return sha1.substring(0, 40);
+    }
+
+    // every library depends on a few of the previous ones, some replace one and some need extra files
+    static byte[] manifest(int libraries)
+    {
+        StringBuilder xml = new StringBuilder();
+        xml.append("<libs version=\"1.0\" loaderClassName=\"org.kde.necessitas.industrius.QtActivityDelegate\"")
+           .append(" applicationParameters=\"-platform\tandroid\" environmentVariables=\"QT_USE_ANDROID_NATIVE_STYLE=1\">\n");
+        for (int i=0;i<libraries;i++)
+        {
+            xml.append("  <lib name=\"Lib").append(i).append("\" url=\"http://example.com/lib/libLib").append(i)
+               .append(".so\" file=\"lib/libLib").append(i).append(".so\" size=\"").append(100000+i)
+               .append("\" sha1=\"").append(sha1(i)).append("\" level=\"").append(i%10).append("\">\n");
+            if (i > 0)
+            {
+                xml.append("    <depends>\n");
+                for (int d=1;d<=Math.min(i, 5);d++)
+                    xml.append("      <lib name=\"Lib").append(i-d).append("\"/>\n");
+                xml.append("    </depends>\n");
+            }
+            if (i%20 == 1)
+                xml.append("    <replaces>\n      <lib name=\"Old").append(i).append("\"/>\n    </replaces>\n");
+            if (i%4 == 0)
+            {
+                xml.append("    <needs>\n");
+                for (int n=0;n<3;n++)
+                    xml.append("      <item name=\"plugin").append(n).append("\" url=\"http://example.com/plugins/libp")
+                       .append(i).append('_').append(n).append(".so\" file=\"plugins/libp").append(i).append('_').append(n)
+                       .append(".so\" size=\"1000\" sha1=\"").append(sha1(i*3+n)).append("\" type=\"plugin\"/>\n");
+                xml.append("    </needs>\n");
+            }
+            xml.append("  </lib>\n");
+        }
+        xml.append("</libs>\n");
+        try
+        {
+            return xml.toString().getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // the DOM parser the service used before LibrariesManifest: the whole tree is built, then
+    // getElementsByTagName walks the subtree of every library several times
+    private static ArrayList<Library> parseDom(byte[] manifest, boolean includeNeed) throws Exception
+    {
+        Element root = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                .parse(new ByteArrayInputStream(manifest)).getDocumentElement();
+        root.normalize();
+        ArrayList<Library> libraries = new ArrayList<Library>();
+        Node node = root.getFirstChild();
+        while (node != null)
+        {
+            if (node.getNodeType() == Node.ELEMENT_NODE)
+                libraries.add(domLibrary((Element)node, includeNeed));
+            node = node.getNextSibling();
+        }
+        return libraries;
+    }
+
+    private static Library domLibrary(Element libNode, boolean includeNeed)
+    {
+        Library lib = new Library();
+        lib.name = libNode.getAttribute("name");
+        lib.sha1 = Library.convertFromHex(libNode.getAttribute("sha1").toUpperCase());
+        lib.filePath = libNode.getAttribute("file");
+        lib.url = libNode.getAttribute("url");
+        lib.level = Integer.parseInt(libNode.getAttribute("level"));
+        lib.size = Long.parseLong(libNode.getAttribute("size"));
+        Element element = firstElement(libNode, "depends");
+        if (null != element)
+            lib.depends = domLibNames(element);
+        element = firstElement(libNode, "replaces");
+        if (null != element)
+            lib.replaces = domLibNames(element);
+        if (!includeNeed)
+            return lib;
+        element = firstElement(libNode, "needs");
+        if (null != element)
+        {
+            NodeList list = element.getElementsByTagName("item");
+            lib.needs = new NeedsStruct[list.getLength()];
+            for (int i=0;i<list.getLength();i++)
+            {
+                Element item = (Element)list.item(i);
+                NeedsStruct need = new NeedsStruct();
+                need.name = item.getAttribute("name");
+                need.filePath = item.getAttribute("file");
+                need.url = item.getAttribute("url");
+                need.sha1 = Library.convertFromHex(item.getAttribute("sha1"));
+                need.size = Long.valueOf(item.getAttribute("size"));
+                if (item.hasAttribute("type"))
+                    need.type = item.getAttribute("type");
+                lib.needs[i] = need;
+            }
+        }
+        return lib;
+    }
+
+    private static Element firstElement(Element parent, String tag)
+    {
+        NodeList list = parent.getElementsByTagName(tag);
+        return list.getLength() > 0 ? (Element)list.item(0) : null;
+    }
+
+    private static String[] domLibNames(Element element)
+    {
+        NodeList list = element.getElementsByTagName("lib");
+        String[] names = new String[list.getLength()];
+        for (int i=0;i<names.length;i++)
+            names[i] = ((Element)list.item(i)).getAttribute("name");
+        return names;
+    }
+
+    private static List<String> names(String[] names)
+    {
+        return null == names ? null : Arrays.asList(names);
+    }
+
+    public void testSameLibraries() throws Exception
+    {
+        byte[] manifest = manifest(50);
+        ArrayList<Library> dom = parseDom(manifest, true);
+        ArrayList<Library> pull = LibrariesManifest.read(new ByteArrayInputStream(manifest), true).libraries;
+        assertEquals(dom.size(), pull.size());
+        for (int i=0;i<dom.size();i++)
+        {
+            Library a = dom.get(i);
+            Library b = pull.get(i);
+            assertEquals(a.name, b.name);
+            assertTrue(Library.sameDigest(a.sha1, b.sha1));
+            assertEquals(a.filePath, b.filePath);
+            assertEquals(a.level, b.level);
+            assertEquals(a.size, b.size);
+            assertEquals(names(a.depends), names(b.depends));
+            assertEquals(names(a.replaces), names(b.replaces));
+            assertEquals(null == a.needs ? 0 : a.needs.length, null == b.needs ? 0 : b.needs.length);
+        }
+    }
+
+    private void compare(final boolean includeNeed) throws Exception
+    {
+        final byte[] manifest = manifest(LIBRARIES);
+        String what = LIBRARIES+" libraries, "+manifest.length/1024+" KB, "+(includeNeed ? "with" : "without")+" needs";
+        Measurement dom = Measurement.run(TAG, "DOM, "+what, WARMUP, RUNS, new Measurement.Task() {
+            void run() throws Exception
+            {
+                parseDom(manifest, includeNeed);
+            }
+        });
+        Measurement pull = Measurement.run(TAG, "pull parser, "+what, WARMUP, RUNS, new Measurement.Task() {
+            void run() throws Exception
+            {
+                LibrariesManifest.read(new ByteArrayInputStream(manifest), includeNeed);
+            }
+        });
+        Log.i(TAG, String.format("pull parser: %.1fx faster, %.1fx fewer bytes allocated"
+                , (double)dom.nanos/Math.max(1, pull.nanos)
+                , (double)dom.allocatedBytes/Math.max(1, pull.allocatedBytes)));
+    }
+
+    public void testParseWithNeeds() throws Exception
+    {
+        compare(true);
+    }
+
+    public void testParseWithoutNeeds() throws Exception
+    {
+        compare(false);
+    }
+}
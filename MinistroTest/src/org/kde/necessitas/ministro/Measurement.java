@@ -0,0 +1,100 @@
+/*
+    Copyright (c) 2011, BogDan Vatra <bog_dan_ro@yahoo.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package org.kde.necessitas.ministro;
+
+import android.os.Debug;
+import android.util.Log;
+
+/** Time and allocations of a piece of code run a number of times, for the benchmarks.
+*
+* The allocations are counted by the VM for the current thread only, a VM which doesn't
+* count them reports 0.
+*/
+class Measurement
+{
+    abstract static class Task
+    {
+        abstract void run() throws Exception;
+    }
+
+    final String name;
+    final int runs;
+    long nanos = 0;
+    long allocatedBytes = 0;
+
+    private Measurement(String name, int runs)
+    {
+        this.name = name;
+        this.runs = runs;
+    }
+
+    /**
+    * Runs task warmup times without measuring it, then runs times measured, and logs the result.
+    */
+    static Measurement run(String tag, String name, int warmup, int runs, Task task) throws Exception
+    {
+        for (int i=0;i<warmup;i++)
+            task.run();
+        System.gc();
+
+        Measurement measurement = new Measurement(name, runs);
+        Debug.startAllocCounting();
+        try
+        {
+            for (int i=0;i<runs;i++)
+            {
+                Debug.resetThreadAllocSize();
+                long start = System.nanoTime();
+                task.run();
+                measurement.nanos += System.nanoTime()-start;
+                measurement.allocatedBytes += Debug.getThreadAllocSize();
+            }
+        }
+        finally
+        {
+            Debug.stopAllocCounting();
+        }
+        Log.i(tag, measurement.toString());
+        return measurement;
+    }
+
+    /** Mean time of a run in microseconds. */
+    long micros()
+    {
+        return nanos/runs/1000;
+    }
+
+    /** Mean allocations of a run in bytes. */
+    long bytes()
+    {
+        return allocatedBytes/runs;
+    }
+
+    /** Mean throughput in MB/s (10^6 bytes) for runs which process size bytes each. */
+    double megabytesPerSecond(long size)
+    {
+        return nanos > 0 ? size*runs*1000.0/nanos : 0;
+    }
+
+    @Override
+    public String toString()
+    {
+        return name+": "+micros()+" us, "+bytes()+" bytes allocated per run";
+    }
+}
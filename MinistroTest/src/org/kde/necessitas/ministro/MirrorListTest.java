@@ -0,0 +1,165 @@
+/*
+    Copyright (c) 2011, BogDan Vatra <bog_dan_ro@yahoo.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package org.kde.necessitas.ministro;
+
+import java.io.File;
+import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+
+/** Mirror selection and failover against local stand-ins for the mirrors, which answer
+* with different delays or fail.
+*/
+public class MirrorListTest extends AndroidTestCase
+{
+    private static final String FILE = "android/libs.xml";
+
+    private TestContext m_context;
+    private TestHttpServer[] m_servers;
+    private File m_dir;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+        m_context = new TestContext(getContext());
+        m_dir = new File(getContext().getCacheDir(), "mirrors-test");
+        InstallSlots.delete(m_dir);
+        m_servers = new TestHttpServer[3];
+        StringBuilder mirrors = new StringBuilder();
+        for (int i=0;i<m_servers.length;i++)
+        {
+            m_servers[i] = new TestHttpServer(i);
+            m_servers[i].put("/repo/"+FILE, ("<libs mirror=\""+i+"\"/>").getBytes("UTF-8"));
+            mirrors.append(mirror(i)).append(' ');
+        }
+        m_context.getSharedPreferences("Ministro", Context.MODE_PRIVATE).edit()
+                .putString("MIRRORS", mirrors.toString()).commit();
+        // the real repository is never the best choice for these tests
+        m_context.getSharedPreferences("MinistroMirrors", Context.MODE_PRIVATE).edit()
+                .putInt(MirrorList.DEFAULT_MIRROR+"#failures", 100).commit();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        for (TestHttpServer server: m_servers)
+            server.close();
+        InstallSlots.delete(m_dir);
+        m_context.clearPreferences("Ministro", "MinistroMirrors");
+        super.tearDown();
+    }
+
+    private String mirror(int server)
+    {
+        return m_servers[server].url("/repo/");
+    }
+
+    public void testProbeOrdersByDelay() throws Exception
+    {
+        m_servers[0].setDelay(600);
+        m_servers[2].setDelay(200);
+        MirrorList mirrors = new MirrorList(m_context);
+        mirrors.probe(FILE);
+        assertEquals(Arrays.asList(mirror(1), mirror(2), mirror(0)), mirrors.ordered().subList(0, 3));
+        assertEquals(MirrorList.DEFAULT_MIRROR, mirrors.ordered().get(3));
+
+        // the health is kept across runs
+        assertEquals(mirrors.ordered(), new MirrorList(m_context).ordered());
+    }
+
+    public void testConnectFailsOver() throws Exception
+    {
+        m_servers[0].put("/repo/"+FILE, null); // the healthiest mirror lost the file
+        MirrorList mirrors = new MirrorList(m_context);
+        mirrors.reportSuccess(mirror(0)+FILE, 10);
+        mirrors.reportSuccess(mirror(1)+FILE, 20);
+        assertEquals(mirror(0)+FILE, mirrors.url(mirror(2)+FILE));
+
+        URLConnection connection = mirrors.connect(mirror(2)+FILE, null);
+        HttpTransfer.release(connection, connection.getInputStream(), true);
+        assertEquals(mirror(1)+FILE, connection.getURL().toString());
+        assertEquals(1, m_servers[0].requests().size());
+        assertEquals(mirror(1), mirrors.ordered().get(0));
+        assertEquals(MirrorList.DEFAULT_MIRROR, mirrors.ordered().get(3)); // behind the failed one
+    }
+
+    public void testDownloadContinuesOnAnotherMirror() throws Exception
+    {
+        byte[] data = new byte[512*1024];
+        new Random(data.length).nextBytes(data);
+        for (TestHttpServer server: m_servers)
+            server.put("/repo/lib/libQtCore.so", data);
+        m_servers[0].dropResponses(Integer.MAX_VALUE); // the healthiest mirror always breaks down
+        MirrorList mirrors = new MirrorList(m_context);
+        mirrors.reportSuccess(mirror(0)+FILE, 10);
+        mirrors.reportSuccess(mirror(1)+FILE, 20);
+
+        Library library = new Library();
+        library.name = "QtCore";
+        library.url = mirror(2)+"lib/libQtCore.so";
+        library.filePath = "lib/libQtCore.so";
+        library.size = data.length;
+        library.sha1 = MessageDigest.getInstance("SHA-1").digest(data);
+        String root = new File(m_dir, "qt").getAbsolutePath()+"/";
+        new File(root).mkdirs();
+        LibraryDownloader downloader = new LibraryDownloader(root, 1, mirrors
+                , new ObjectStore(new File(m_dir, "objects")), new DigestCache(new File(m_dir, "digests")), null);
+        assertEquals(1, downloader.download(new Library[]{library}).size());
+        assertEquals(data.length, new File(root+library.filePath).length());
+
+        assertEquals(1, m_servers[0].requests().size());
+        List<TestHttpServer.Request> requests = m_servers[1].requests();
+        assertEquals(1, requests.size());
+        assertTrue(requests.get(0).rangeStart() > 0); // continued what the first mirror sent
+        assertTrue(m_servers[2].requests().isEmpty());
+    }
+
+    public void testAnnouncedMirrorsMustUseHttps() throws Exception
+    {
+        MirrorList mirrors = new MirrorList(m_context);
+        mirrors.setAnnouncedMirrors(Arrays.asList("http://plain.example.com/repo/", "https://secure.example.com/repo"));
+        List<String> urls = Arrays.asList(mirrors.urls(mirror(0)+FILE));
+        assertTrue(urls.contains("https://secure.example.com/repo/"+FILE));
+        assertFalse(urls.contains("http://plain.example.com/repo/"+FILE));
+
+        // also after a restart
+        mirrors.save();
+        assertFalse(new MirrorList(m_context).ordered().contains("http://plain.example.com/repo/"));
+    }
+
+    public void testManifestOnlyFromConfiguredMirrors() throws Exception
+    {
+        String announced = "https://127.0.0.1:1/repo/"; // nobody listens there
+        MirrorList mirrors = new MirrorList(m_context);
+        mirrors.setAnnouncedMirrors(Arrays.asList(announced));
+        mirrors.reportSuccess(announced+FILE, 0);
+        assertEquals(announced, mirrors.ordered().get(0));
+
+        URLConnection connection = mirrors.connectConfigured(mirror(2)+FILE, null);
+        HttpTransfer.release(connection, connection.getInputStream(), true);
+        assertTrue(connection.getURL().toString().startsWith("http://127.0.0.1:"+m_servers[0].port()));
+        assertEquals(announced, mirrors.ordered().get(0)); // it wasn't even tried
+    }
+}
@@ -0,0 +1,157 @@
+/*
+    Copyright (c) 2011, BogDan Vatra <bog_dan_ro@yahoo.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package org.kde.necessitas.ministro;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+/** Module resolution through {@link DependencyGraph} for catalogs of 100, 1,000 and 10,000
+* synthetic libraries, compared with the linear scans of the downloaded libraries the
+* service did before.
+*
+* The libraries are stacked in ten layers, every library depends on two libraries close to
+* it in the layer below. The closure of the modules grows much slower than the catalog, the
+* scans cost closure times catalog size, the graph only the closure.
+*/
+@LargeTest
+public class ResolutionBenchmark extends TestCase
+{
+    private static final String TAG = "ResolutionBenchmark";
+    private static final int LAYERS = 10;
+    private static final int MODULES = 10; // modules an application asks for
+    private static final int WARMUP = 5;
+    private static final int RUNS = 20;
+
+    static List<Library> catalog(int size)
+    {
+        Random random = new Random(size);
+        int layerSize = size/LAYERS;
+        ArrayList<Library> libraries = new ArrayList<Library>(size);
+        for (int i=0;i<size;i++)
+        {
+            Library library = new Library();
+            library.name = "Lib"+i;
+            library.filePath = "lib/libLib"+i+".so";
+            library.level = i/layerSize;
+            if (i >= layerSize)
+            {
+                int base = i-layerSize;
+                library.depends = new String[]{"Lib"+Math.max(base-random.nextInt(8), library.level*layerSize-layerSize)
+                                            , "Lib"+base};
+            }
+            libraries.add(library);
+        }
+        return libraries;
+    }
+
+    // modules of the top layer, spread over it
+    static List<String> modules(int size)
+    {
+        ArrayList<String> modules = new ArrayList<String>();
+        for (int i=0;i<MODULES;i++)
+            modules.add("Lib"+(size-1-i*(size/LAYERS/MODULES)));
+        return modules;
+    }
+
+    // the resolution of the service before the dependency graph: every module and every
+    // dependency is looked up by scanning the resolved and the downloaded libraries
+    private static boolean scanModules(String module, List<Library> downloaded, ArrayList<Library> modules)
+    {
+        for (int i=0;i<modules.size();i++)
+            if (modules.get(i).name.equals(module))
+                return true;
+        for (Library library: downloaded)
+        {
+            if (library.name.equals(module))
+            {
+                modules.add(library);
+                boolean res = true;
+                if (library.depends != null)
+                    for (String depend: library.depends)
+                        res = res & scanModules(depend, downloaded, modules);
+                return res;
+            }
+        }
+        return false;
+    }
+
+    public void testSameClosure()
+    {
+        List<Library> catalog = catalog(1000);
+        ArrayList<Library> scanned = new ArrayList<Library>();
+        for (String module: modules(1000))
+            assertTrue(scanModules(module, catalog, scanned));
+        DependencyGraph.Resolution resolution = new DependencyGraph(catalog).resolve(modules(1000));
+        assertTrue(resolution.missing.isEmpty());
+        assertEquals(scanned.size(), resolution.libraries.size());
+        assertTrue(resolution.libraries.containsAll(scanned));
+    }
+
+    private void compare(int size) throws Exception
+    {
+        final List<Library> catalog = catalog(size);
+        final List<String> modules = modules(size);
+        final DependencyGraph[] graph = new DependencyGraph[1];
+        Measurement.run(TAG, "build graph, "+size+" libraries", WARMUP, RUNS, new Measurement.Task() {
+            void run()
+            {
+                graph[0] = new DependencyGraph(catalog);
+            }
+        });
+        int closure = graph[0].resolve(modules).libraries.size();
+        Measurement scan = Measurement.run(TAG, "scan, "+size+" libraries, closure "+closure, WARMUP, RUNS, new Measurement.Task() {
+            void run()
+            {
+                ArrayList<Library> resolved = new ArrayList<Library>();
+                for (String module: modules)
+                    scanModules(module, catalog, resolved);
+            }
+        });
+        Measurement resolve = Measurement.run(TAG, "graph, "+size+" libraries, closure "+closure, WARMUP, RUNS, new Measurement.Task() {
+            void run()
+            {
+                graph[0].resolve(modules);
+            }
+        });
+        Log.i(TAG, String.format("%d libraries: the graph resolves %.1fx faster", size
+                , (double)scan.nanos/Math.max(1, resolve.nanos)));
+    }
+
+    public void testResolve100() throws Exception
+    {
+        compare(100);
+    }
+
+    public void testResolve1000() throws Exception
+    {
+        compare(1000);
+    }
+
+    public void testResolve10000() throws Exception
+    {
+        compare(10000);
+    }
+}
@@ -0,0 +1,51 @@
+/*
+    Copyright (c) 2011, BogDan Vatra <bog_dan_ro@yahoo.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package org.kde.necessitas.ministro;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.SharedPreferences;
+
+/** A context whose shared preferences are kept apart from the ones of Ministro, tests
+* can configure mirrors and record their health without touching the real settings.
+*/
+class TestContext extends ContextWrapper
+{
+    private static final String PREFIX = "test-";
+
+    TestContext(Context base)
+    {
+        super(base);
+    }
+
+    @Override
+    public SharedPreferences getSharedPreferences(String name, int mode)
+    {
+        return super.getSharedPreferences(PREFIX+name, mode);
+    }
+
+    /**
+    * Removes everything the tests wrote into the preferences with the given names.
+    */
+    void clearPreferences(String... names)
+    {
+        for (String name: names)
+            getSharedPreferences(name, MODE_PRIVATE).edit().clear().commit();
+    }
+}
@@ -0,0 +1,286 @@
+/*
+    Copyright (c) 2011, BogDan Vatra <bog_dan_ro@yahoo.com>
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package org.kde.necessitas.ministro;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+/** A minimal HTTP/1.1 server on the loopback interface for the transfer tests.
+*
+* It serves files from memory with persistent connections and answers <code>Range</code>
+* requests with 206. Faults can be injected: a delay before every answer, responses which
+* are cut at a random offset of their body (the connection is dropped) and range requests
+* which are answered with the whole file. Every request is recorded.
+*/
+class TestHttpServer
+{
+    /** A request the server received. */
+    static class Request
+    {
+        final String method;
+        final String path;
+        final String range; // value of the Range header, null if there was none
+
+        Request(String method, String path, String range)
+        {
+            this.method = method;
+            this.path = path;
+            this.range = range;
+        }
+
+        // first byte of a "bytes=first-" range, 0 without a range
+        long rangeStart()
+        {
+            if (null == range)
+                return 0;
+            return Long.parseLong(range.substring(range.indexOf('=')+1, range.indexOf('-')).trim());
+        }
+    }
+
+    private final ServerSocket m_socket;
+    private final Random m_random;
+    private final HashMap<String, byte[]> m_files = new HashMap<String, byte[]>();
+    private final ArrayList<Request> m_requests = new ArrayList<Request>();
+    private final ArrayList<Socket> m_connections = new ArrayList<Socket>();
+    private volatile long m_delay = 0;
+    private volatile boolean m_ignoreRange = false;
+    private int m_drops = 0; // responses which are still to be cut
+    private volatile boolean m_closed = false;
+
+    TestHttpServer(long seed) throws IOException
+    {
+        m_random = new Random(seed);
+        m_socket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread acceptor = new Thread("TestHttpServer:"+port()) {
+            public void run()
+            {
+                while (!m_closed)
+                {
+                    try
+                    {
+                        final Socket connection = m_socket.accept();
+                        synchronized (m_connections)
+                        {
+                            m_connections.add(connection);
+                        }
+                        new Thread(getName()+" connection") {
+                            public void run()
+                            {
+                                serve(connection);
+                            }
+                        }.start();
+                    }
+                    catch (IOException e)
+                    {
+                        if (!m_closed)
+                            e.printStackTrace();
+                    }
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    int port()
+    {
+        return m_socket.getLocalPort();
+    }
+
+    /**
+    * Returns the url of path, which must start with a slash.
+    */
+    String url(String path)
+    {
+        return "http://127.0.0.1:"+port()+path;
+    }
+
+    synchronized void put(String path, byte[] data)
+    {
+        m_files.put(path, data);
+    }
+
+    /**
+    * Waits delay milliseconds before every answer.
+    */
+    void setDelay(long delay)
+    {
+        m_delay = delay;
+    }
+
+    /**
+    * Answers range requests with the whole file.
+    */
+    void setIgnoreRange(boolean ignore)
+    {
+        m_ignoreRange = ignore;
+    }
+
+    /**
+    * Cuts the bodies of the next count GET responses at a random offset and drops their
+    * connections.
+    */
+    synchronized void dropResponses(int count)
+    {
+        m_drops = count;
+    }
+
+    synchronized List<Request> requests()
+    {
+        return new ArrayList<Request>(m_requests);
+    }
+
+    void close()
+    {
+        m_closed = true;
+        try
+        {
+            m_socket.close();
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+        synchronized (m_connections)
+        {
+            for (Socket connection: m_connections)
+                closeQuietly(connection);
+            m_connections.clear();
+        }
+    }
+
+    private static void closeQuietly(Socket connection)
+    {
+        try
+        {
+            connection.close();
+        }
+        catch (IOException e)
+        {
+            // already closed
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException
+    {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1 && c != '\n')
+            if (c != '\r')
+                line.append((char)c);
+        return c == -1 && line.length() == 0 ? null : line.toString();
+    }
+
+    private void serve(Socket connection)
+    {
+        try
+        {
+            InputStream in = new BufferedInputStream(connection.getInputStream());
+            OutputStream out = connection.getOutputStream();
+            String requestLine;
+            while (!m_closed && (requestLine = readLine(in)) != null)
+            {
+                if (requestLine.length() == 0)
+                    continue;
+                String[] parts = requestLine.split(" ");
+                String range = null;
+                String header;
+                while ((header = readLine(in)) != null && header.length() > 0)
+                    if (header.toLowerCase().startsWith("range:"))
+                        range = header.substring(6).trim();
+                Request request = new Request(parts[0], parts[1], range);
+                if (!respond(request, out))
+                    break;
+            }
+        }
+        catch (Exception e)
+        {
+            // the client went away
+        }
+        finally
+        {
+            closeQuietly(connection);
+        }
+    }
+
+    // returns false if the connection was dropped
+    private boolean respond(Request request, OutputStream out) throws IOException, InterruptedException
+    {
+        byte[] data;
+        int cut = -1;
+        synchronized (this)
+        {
+            m_requests.add(request);
+            data = m_files.get(request.path);
+        }
+        if (m_delay > 0)
+            Thread.sleep(m_delay);
+
+        if (null == data)
+        {
+            out.write("HTTP/1.1 404 Not Found\r\nContent-Length: 0\r\n\r\n".getBytes("US-ASCII"));
+            out.flush();
+            return true;
+        }
+
+        long start = m_ignoreRange ? 0 : request.rangeStart();
+        if (start >= data.length && start > 0)
+        {
+            out.write(("HTTP/1.1 416 Requested Range Not Satisfiable\r\nContent-Range: bytes */"+data.length
+                        +"\r\nContent-Length: 0\r\n\r\n").getBytes("US-ASCII"));
+            out.flush();
+            return true;
+        }
+        int length = data.length-(int)start;
+        StringBuilder headers = new StringBuilder();
+        if (start > 0)
+            headers.append("HTTP/1.1 206 Partial Content\r\nContent-Range: bytes ").append(start).append('-')
+                   .append(data.length-1).append('/').append(data.length).append("\r\n");
+        else
+            headers.append("HTTP/1.1 200 OK\r\n");
+        headers.append("Content-Length: ").append(length).append("\r\n\r\n");
+        out.write(headers.toString().getBytes("US-ASCII"));
+        if (request.method.equals("HEAD"))
+        {
+            out.flush();
+            return true;
+        }
+
+        synchronized (this)
+        {
+            if (m_drops > 0 && length > 1)
+            {
+                --m_drops;
+                cut = m_random.nextInt(length-1)+1;
+            }
+        }
+        out.write(data, (int)start, cut < 0 ? length : cut);
+        out.flush();
+        return cut < 0;
+    }
+}